@@ -0,0 +1,75 @@
+package com.lauriethefish.betterportals.api;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Packs block coordinates into a single <code>long</code>, so that positions can be stored and used as keys without creating an {@link IntVector}.
+ * The layout is the same as the one Minecraft uses: 26 bits for X, 26 bits for Z and 12 bits for Y.
+ * This covers every position within the world border, and Y coordinates from -2048 to 2047.
+ */
+public final class PackedBlockPosition {
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+
+    private static final int X_SHIFT = Y_BITS + XZ_BITS;
+    private static final int Z_SHIFT = Y_BITS;
+
+    private PackedBlockPosition() {}
+
+    /**
+     * Packs the given coordinates.
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param z Z coordinate
+     * @return The packed position
+     */
+    public static long pack(int x, int y, int z) {
+        return ((x & XZ_MASK) << X_SHIFT) | ((z & XZ_MASK) << Z_SHIFT) | (y & Y_MASK);
+    }
+
+    /**
+     * Packs the coordinates of <code>position</code>.
+     * @param position The position to pack
+     * @return The packed position
+     */
+    public static long pack(@NotNull IntVector position) {
+        return pack(position.getX(), position.getY(), position.getZ());
+    }
+
+    /**
+     * @param packed A packed position
+     * @return The X coordinate of the position
+     */
+    public static int unpackX(long packed) {
+        return (int) (packed >> X_SHIFT);
+    }
+
+    /**
+     * @param packed A packed position
+     * @return The Y coordinate of the position
+     */
+    public static int unpackY(long packed) {
+        // Shifted to the top first, so that the sign is extended back down
+        return (int) (packed << (Long.SIZE - Y_BITS) >> (Long.SIZE - Y_BITS));
+    }
+
+    /**
+     * @param packed A packed position
+     * @return The Z coordinate of the position
+     */
+    public static int unpackZ(long packed) {
+        return (int) (packed << (Long.SIZE - X_SHIFT) >> (Long.SIZE - XZ_BITS));
+    }
+
+    /**
+     * Creates an {@link IntVector} from a packed position.
+     * @param packed The packed position
+     * @return A new vector with the same coordinates
+     */
+    public static @NotNull IntVector unpack(long packed) {
+        return new IntVector(unpackX(packed), unpackY(packed), unpackZ(packed));
+    }
+}
@@ -0,0 +1,173 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.grid.ReachedMap;
+import com.lauriethefish.betterportals.bukkit.math.IntTransform;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the flood fill used by {@link FloodFillBlockMap} against the one it replaced.
+ * The old fill allocated its stack and reached map for each fill, and transformed every block to the destination with a {@link Matrix}, creating several vectors.
+ * The new fill reuses its stack and {@link ReachedMap}, and transforms with an {@link IntTransform}.
+ * <p>
+ * Block data is replaced with a generated occlusion grid, so only the fill itself is measured.
+ * Run with <code>-PjmhArgs="FloodFillBenchmark -prof gc"</code> to see the allocation rate of each fill as well as the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FloodFillBenchmark {
+    // The default portal effect size, and double it
+    @Param({"13", "26"})
+    private int sizeXZ;
+
+    // How much of the destination is solid. The fill visits most of the area when this is low, and stops early when it is high
+    @Param({"0.1", "0.4"})
+    private double solidFraction;
+
+    private int sizeY;
+    private int zMultip;
+    private int yMultip;
+    private int totalArrayLength;
+    private int[] intOffsets;
+    private int startIndex;
+
+    // Stands in for the destination block data. Indexed by destination position relative to the destination grid's corner
+    private boolean[] destOccluding;
+    private IntVector destCorner;
+
+    private Matrix rotateOriginToDest;
+    private IntTransform rotateOriginToDestInt;
+
+    private int[] scratchStack;
+    private ReachedMap reachedMap;
+
+    @Setup
+    public void setup() {
+        sizeY = (sizeXZ + 1) / 2;
+        zMultip = sizeXZ * 2 + 1;
+        yMultip = zMultip * zMultip;
+        totalArrayLength = yMultip * (sizeY * 2 + 1);
+        intOffsets = new int[]{1, -1, zMultip, -zMultip, yMultip, -yMultip};
+        startIndex = sizeXZ + sizeXZ * zMultip + sizeY * yMultip;
+
+        // A portal facing north, leading to one facing east far away, like a nether portal
+        Vector destPos = new Vector(-3012.0, 31.0, 880.0);
+        rotateOriginToDest = Matrix.makeTranslation(destPos).multiply(Matrix.makeRotation(PortalDirection.NORTH, PortalDirection.EAST));
+        rotateOriginToDestInt = IntTransform.fromMatrix(rotateOriginToDest);
+
+        // The rotation swaps the X and Z axes, which are the same size, so the destination fits in a grid of the same shape
+        destCorner = new IntVector(destPos.getBlockX() - sizeXZ, destPos.getBlockY() - sizeY, destPos.getBlockZ() - sizeXZ);
+        Random random = new Random(-4106532287716590112L);
+        destOccluding = new boolean[totalArrayLength];
+        for(int i = 0; i < totalArrayLength; i++) {
+            destOccluding[i] = random.nextDouble() < solidFraction;
+        }
+
+        scratchStack = new int[totalArrayLength + 1];
+        reachedMap = new ReachedMap(totalArrayLength);
+    }
+
+    private boolean isOutsideBounds(int relX, int relY, int relZ) {
+        return relX <= -sizeXZ || relX >= sizeXZ || relY <= -sizeY || relY >= sizeY || relZ <= -sizeXZ || relZ >= sizeXZ;
+    }
+
+    private boolean isDestOccluding(int x, int y, int z) {
+        int relX = x - destCorner.getX();
+        int relY = y - destCorner.getY();
+        int relZ = z - destCorner.getZ();
+        return destOccluding[relX + relZ * zMultip + relY * yMultip];
+    }
+
+    /**
+     * The fill before allocations were removed from it.
+     * @return The number of blocks visited
+     */
+    @Benchmark
+    public int legacyFill() {
+        byte[] alreadyReachedMap = new byte[totalArrayLength];
+        int[] stack = new int[Math.max(16, totalArrayLength)];
+        stack[0] = startIndex;
+        int stackPos = 0;
+        int visited = 0;
+
+        while(stackPos >= 0) {
+            int positionInt = stack[stackPos--];
+            visited++;
+
+            int relX = positionInt % zMultip - sizeXZ;
+            int relY = Math.floorDiv(positionInt, yMultip);
+            int relZ = Math.floorDiv(positionInt - relY * yMultip, zMultip) - sizeXZ;
+            relY -= sizeY;
+
+            IntVector destPos = rotateOriginToDest.transform(relX, relY, relZ);
+            if(isDestOccluding(destPos.getX(), destPos.getY(), destPos.getZ()) || isOutsideBounds(relX, relY, relZ)) {continue;}
+
+            for(int offset : intOffsets) {
+                int newPos = positionInt + offset;
+                if(alreadyReachedMap[newPos] == 0) {
+                    alreadyReachedMap[newPos] = 1;
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * The fill as done by {@link FloodFillBlockMap#searchFromBlock(int, java.util.List, boolean)}.
+     * The reached map is cleared each time, as it is when a block map is reset.
+     * @return The number of blocks visited
+     */
+    @Benchmark
+    public int currentFill() {
+        reachedMap.clear();
+        int[] stack = scratchStack;
+        stack[0] = startIndex;
+        int stackPos = 0;
+        int visited = 0;
+
+        while(stackPos >= 0) {
+            int index = stack[stackPos--];
+            visited++;
+
+            int relX = index % zMultip - sizeXZ;
+            int relY = Math.floorDiv(index, yMultip);
+            int relZ = Math.floorDiv(index - relY * yMultip, zMultip) - sizeXZ;
+            relY -= sizeY;
+
+            int destX = rotateOriginToDestInt.transformX(relX, relY, relZ);
+            int destY = rotateOriginToDestInt.transformY(relX, relY, relZ);
+            int destZ = rotateOriginToDestInt.transformZ(relX, relY, relZ);
+            if(isDestOccluding(destX, destY, destZ) || isOutsideBounds(relX, relY, relZ)) {continue;}
+
+            for(int offset : intOffsets) {
+                int newPos = index + offset;
+                if(reachedMap.get(newPos) == ReachedMap.UNREACHED) {
+                    reachedMap.set(newPos, ReachedMap.REACHED);
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+        return visited;
+    }
+}
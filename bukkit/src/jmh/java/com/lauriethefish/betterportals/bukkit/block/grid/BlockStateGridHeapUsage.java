@@ -0,0 +1,158 @@
+package com.lauriethefish.betterportals.bukkit.block.grid;
+
+import com.lauriethefish.betterportals.api.IntVector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the retained heap of the block data kept for each portal by {@link BlockStateGrid}, and by the per-block objects that it replaced.
+ * Run with <code>./gradlew :bukkit:heapUsage</code>.
+ * <p>
+ * The Bukkit and ProtocolLib block data can't be created without a server, so the old layout is rebuilt with stand-ins of the same shape:
+ * each block had an {@link IntVector}, a block info holding four references, and its own origin and destination block data, each wrapped for ProtocolLib.
+ * The grid side uses the real classes, apart from the palette entries, which are shared by every block with the same state so are left out of both.
+ */
+public class BlockStateGridHeapUsage {
+    // The default portal effect size of 13 by 7
+    private static final int ARRAY_LENGTH = 27 * 27 * 15;
+    private static final int ROW_LENGTH = 27;
+    // Enough maps that the differences are much larger than the noise from measuring
+    private static final int MAP_COUNT = 40;
+
+    // Like CraftBlockData, which holds the vanilla state
+    private static class BlockDataStandIn {
+        private final Object state;
+
+        private BlockDataStandIn(Object state) {
+            this.state = state;
+        }
+    }
+
+    // Like WrappedBlockData, which holds the vanilla state it wraps
+    private static class WrappedBlockDataStandIn {
+        private final Object handle;
+
+        private WrappedBlockDataStandIn(Object handle) {
+            this.handle = handle;
+        }
+    }
+
+    // Same fields as the removed BukkitBlockInfo
+    private static class LegacyBlockInfo {
+        private final IntVector originPos;
+        private final BlockDataStandIn baseOriginData;
+        private final BlockDataStandIn baseDestData;
+        private final WrappedBlockDataStandIn originData;
+        private final WrappedBlockDataStandIn renderedDestData;
+
+        private LegacyBlockInfo(IntVector originPos, BlockDataStandIn baseOriginData, BlockDataStandIn baseDestData, WrappedBlockDataStandIn renderedDestData) {
+            this.originPos = originPos;
+            this.baseOriginData = baseOriginData;
+            this.baseDestData = baseDestData;
+            this.originData = new WrappedBlockDataStandIn(baseOriginData.state);
+            this.renderedDestData = renderedDestData;
+        }
+    }
+
+    private static IntVector getPosition(int index) {
+        return new IntVector(index % ROW_LENGTH, index / (ROW_LENGTH * ROW_LENGTH), (index / ROW_LENGTH) % ROW_LENGTH);
+    }
+
+    /**
+     * Every block in the area was reached, and kept an object for each of its states.
+     */
+    private static Object createLegacyMap(Object[] vanillaStates) {
+        List<LegacyBlockInfo> nonObscuredStates = new ArrayList<>();
+        for(int i = 0; i < ARRAY_LENGTH; i++) {
+            Object state = vanillaStates[i % vanillaStates.length];
+            nonObscuredStates.add(new LegacyBlockInfo(getPosition(i),
+                    new BlockDataStandIn(state),
+                    new BlockDataStandIn(state),
+                    new WrappedBlockDataStandIn(state)
+            ));
+        }
+        return nonObscuredStates;
+    }
+
+    /**
+     * Every block in the area was reached, and one in every <code>viewableInterval</code> blocks is viewable.
+     */
+    private static Object createGridMap(int viewableInterval) {
+        BlockStateGrid grid = new BlockStateGrid(ARRAY_LENGTH, null);
+        int[] nonObscuredIndices = new int[0];
+        List<GridBlockInfo> viewableStates = new ArrayList<>();
+
+        for(int i = 0; i < ARRAY_LENGTH; i++) {
+            int id = 1 + i % 200;
+            grid.setOriginId(i, id);
+            grid.setDestId(i, id);
+            grid.setRenderedId(i, id);
+
+            // Grown in the same way as FloodFillBlockMap
+            if(i == nonObscuredIndices.length) {
+                nonObscuredIndices = Arrays.copyOf(nonObscuredIndices, Math.max(64, nonObscuredIndices.length * 2));
+            }
+            nonObscuredIndices[i] = i;
+
+            if(i % viewableInterval == 0) {
+                viewableStates.add(new GridBlockInfo(grid, i, getPosition(i)));
+            }
+        }
+        return new Object[]{grid, nonObscuredIndices, viewableStates};
+    }
+
+    private static long getUsedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collections can free more on later runs, so this is repeated until it stops going down
+        for(int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(50);
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if(current >= used) {break;}
+            used = current;
+        }
+        return used;
+    }
+
+    private interface MapCreator {
+        Object create();
+    }
+
+    private static long measureBytesPerMap(MapCreator creator) throws InterruptedException {
+        List<Object> maps = new ArrayList<>(MAP_COUNT);
+        long before = getUsedHeap();
+        for(int i = 0; i < MAP_COUNT; i++) {
+            maps.add(creator.create());
+        }
+        long after = getUsedHeap();
+
+        // Keep the maps reachable until after measuring
+        if(maps.size() != MAP_COUNT) {throw new IllegalStateException();}
+        return (after - before) / MAP_COUNT;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Shared by every block with the same state, like the vanilla block states
+        Object[] vanillaStates = new Object[200];
+        for(int i = 0; i < vanillaStates.length; i++) {
+            vanillaStates[i] = new Object();
+        }
+
+        // Warm up, so that class loading isn't counted
+        measureBytesPerMap(() -> createLegacyMap(vanillaStates));
+        measureBytesPerMap(() -> createGridMap(1));
+
+        System.out.printf("Blocks per map: %d%n", ARRAY_LENGTH);
+        System.out.printf("%-40s %12s %16s%n", "Layout", "KB per map", "Bytes per block");
+        printResult("Per-block objects", measureBytesPerMap(() -> createLegacyMap(vanillaStates)));
+        printResult("Grid, every block viewable", measureBytesPerMap(() -> createGridMap(1)));
+        printResult("Grid, one in 10 blocks viewable", measureBytesPerMap(() -> createGridMap(10)));
+    }
+
+    private static void printResult(String layout, long bytesPerMap) {
+        System.out.printf("%-40s %12.1f %16.1f%n", layout, bytesPerMap / 1024.0, (double) bytesPerMap / ARRAY_LENGTH);
+    }
+}
@@ -0,0 +1,71 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares checking entity positions one at a time against the batch check.
+ * Run once with <code>--add-modules jdk.incubator.vector</code> (the default for the jmh task) and once without, to compare the Vector API with the scalar fallback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaneIntersectionCheckerBenchmark {
+    // Roughly the number of entities around a portal in a quiet area, a busy area and a mob farm
+    @Param({"16", "128", "1024"})
+    private int count;
+
+    private PlaneIntersectionChecker checker;
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    private boolean[] output;
+
+    @Setup
+    public void setup() {
+        Vector center = new Vector(100.5, 64.5, -40.5);
+        checker = new PlaneIntersectionChecker(center, new Vector(0.0, 0.0, 1.0), new Vector(101.2, 65.1, -44.0), new Vector(1.5, 2.0, 0.5));
+
+        // Entities are placed within the entity finding radius on both sides of the portal
+        Random random = new Random(4587213690451L);
+        xs = new double[count];
+        ys = new double[count];
+        zs = new double[count];
+        output = new boolean[count];
+        for(int i = 0; i < count; i++) {
+            xs[i] = center.getX() + random.nextDouble() * 40.0 - 20.0;
+            ys[i] = center.getY() + random.nextDouble() * 20.0 - 10.0;
+            zs[i] = center.getZ() + random.nextDouble() * 40.0 - 20.0;
+        }
+    }
+
+    @Benchmark
+    public boolean[] checkEachPosition() {
+        for(int i = 0; i < count; i++) {
+            output[i] = checker.checkIfIntersects(xs[i], ys[i], zs[i]);
+        }
+        return output;
+    }
+
+    @Benchmark
+    public boolean[] checkBatch() {
+        checker.checkIfIntersects(xs, ys, zs, count, output);
+        return output;
+    }
+}
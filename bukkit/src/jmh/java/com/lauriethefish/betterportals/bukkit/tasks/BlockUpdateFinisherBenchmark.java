@@ -0,0 +1,162 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long each {@link BlockUpdateFinisher} takes to finish one round of updates, from scheduling an update for every view until the last one has finished.
+ * This is done once per tick on the server, so a round taking longer than 50ms means that updates are falling behind.
+ * <p>
+ * Views are stand-ins that spend a fixed amount of CPU time on each update instead of doing the raycasts, and flushing changes is simulated in the same way.
+ * The Bukkit scheduler is replaced by an executor that runs {@link AsyncBlockUpdateFinisher} every 50ms, like an asynchronous task timer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BlockUpdateFinisherBenchmark {
+    private static final long TICK_MILLIS = 50;
+    private static final long FLUSH_TOKENS = 2000;
+
+    @Param({"async", "threads", "virtual"})
+    private String mode;
+
+    @Param({"10", "100", "500"})
+    private int viewCount;
+
+    // CPU time spent on each simulated view update. Blackhole tokens are roughly linear in time
+    @Param({"20000"})
+    private long updateTokens;
+
+    private BlockUpdateFinisher finisher;
+    private ScheduledExecutorService asyncScheduler;
+    private SimulatedBlockView[] views;
+
+    // Replaced for each round, then counted down by each view as it finishes
+    private volatile CountDownLatch remainingUpdates;
+
+    /**
+     * Stands in for a view without needing a player or portal. Instances are created without calling the constructor, since nothing in the view is used.
+     */
+    private static class SimulatedBlockView extends PlayerBlockView {
+        private BlockUpdateFinisherBenchmark benchmark;
+
+        private SimulatedBlockView() {
+            super(null, null, null, null, null, null, null, null, null);
+        }
+
+        @Override
+        public void finishUpdate(boolean refresh) {
+            Blackhole.consumeCPU(benchmark.updateTokens);
+            benchmark.remainingUpdates.countDown();
+        }
+
+        @Override
+        public void finishReset() { }
+    }
+
+    private static Logger createLogger() {
+        Logger logger = new Logger("BetterPortals Benchmark", null) {};
+        logger.setLevel(java.util.logging.Level.WARNING);
+        return logger;
+    }
+
+    private SimulatedBlockView[] createViews(int count) throws ReflectiveOperationException {
+        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Unsafe unsafe = (Unsafe) unsafeField.get(null);
+
+        SimulatedBlockView[] result = new SimulatedBlockView[count];
+        for(int i = 0; i < count; i++) {
+            result[i] = (SimulatedBlockView) unsafe.allocateInstance(SimulatedBlockView.class);
+            result[i].benchmark = this;
+        }
+        return result;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws ReflectiveOperationException {
+        views = createViews(viewCount);
+        remainingUpdates = new CountDownLatch(0);
+        Logger logger = createLogger();
+
+        // The change aggregator is never used, since flushing is simulated
+        switch(mode) {
+            case "async":
+                AsyncBlockUpdateFinisher asyncFinisher = new AsyncBlockUpdateFinisher(null, logger, null) {
+                    @Override
+                    protected void flushChanges() {
+                        Blackhole.consumeCPU(FLUSH_TOKENS);
+                    }
+                };
+                asyncScheduler = Executors.newSingleThreadScheduledExecutor();
+                asyncScheduler.scheduleAtFixedRate(asyncFinisher, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+                finisher = asyncFinisher;
+                break;
+            case "threads":
+                // The default thread count is used, since the config is never loaded
+                finisher = new ThreadedBlockUpdateFinisher(logger, null, new RenderConfig(logger, null)) {
+                    @Override
+                    protected void flushChanges() {
+                        Blackhole.consumeCPU(FLUSH_TOKENS);
+                    }
+                };
+                finisher.start();
+                break;
+            case "virtual":
+                finisher = new VirtualThreadBlockUpdateFinisher(logger, null) {
+                    @Override
+                    protected void flushChanges() {
+                        Blackhole.consumeCPU(FLUSH_TOKENS);
+                    }
+                };
+                finisher.start();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown finisher " + mode);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        finisher.stop();
+        if(asyncScheduler != null) {
+            asyncScheduler.shutdownNow();
+            asyncScheduler = null;
+        }
+    }
+
+    @Benchmark
+    public void updateAllViews() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(viewCount);
+        remainingUpdates = latch;
+        for(SimulatedBlockView view : views) {
+            finisher.scheduleUpdate(view, false);
+        }
+        latch.await();
+    }
+}
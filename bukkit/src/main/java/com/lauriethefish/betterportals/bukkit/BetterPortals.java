@@ -3,6 +3,8 @@ package com.lauriethefish.betterportals.bukkit;
 import com.google.inject.Guice;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
+import com.lauriethefish.betterportals.bukkit.block.OverwrittenSectionTracker;
 import com.lauriethefish.betterportals.bukkit.command.framework.CommandTree;
 import com.lauriethefish.betterportals.bukkit.config.ConfigManager;
 import com.lauriethefish.betterportals.bukkit.config.MiscConfig;
@@ -12,6 +14,7 @@ import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.player.IPlayerDataManager;
 import com.lauriethefish.betterportals.bukkit.portal.IPortalManager;
 import com.lauriethefish.betterportals.bukkit.portal.storage.IPortalStorage;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapWorkerPool;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.tasks.MainUpdate;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
@@ -36,6 +39,9 @@ public class BetterPortals extends JavaPlugin {
     @Inject private IPortalClient portalClient;
     @Inject private MainUpdate mainUpdate;
     @Inject private BlockUpdateFinisher blockUpdateFinisher;
+    @Inject private BlockChangeAggregator blockChangeAggregator;
+    @Inject private OverwrittenSectionTracker overwrittenSectionTracker;
+    @Inject private BlockMapWorkerPool blockMapWorkerPool;
     @Inject private IPortalManager portalManager;
     @Inject private IEventRegistrar eventRegistrar;
     @Inject private API apiImplementation;
@@ -70,6 +76,7 @@ public class BetterPortals extends JavaPlugin {
             portalManager.onReload();
         }
 
+        overwrittenSectionTracker.start();
         blockUpdateFinisher.start();
         mainUpdate.start();
         portalStorage.start();
@@ -144,12 +151,16 @@ public class BetterPortals extends JavaPlugin {
 
         try {
             playerDataManager.onPluginDisable();
+            // The main update won't run again to send the resets
+            blockChangeAggregator.flush();
         }  catch(RuntimeException ex) {
             logger.severe("Error occurred while resetting player views");
             ex.printStackTrace();
         }
 
         blockUpdateFinisher.stop();
+        blockMapWorkerPool.stop();
+        overwrittenSectionTracker.stop();
 
         try {
             portalStorage.savePortals();
@@ -15,14 +15,17 @@ import com.lauriethefish.betterportals.bukkit.events.EventsModule;
 import com.lauriethefish.betterportals.bukkit.net.NetworkModule;
 import com.lauriethefish.betterportals.bukkit.player.PlayerModule;
 import com.lauriethefish.betterportals.bukkit.portal.PortalModule;
+import com.lauriethefish.betterportals.bukkit.tasks.AsyncBlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.tasks.ThreadedBlockUpdateFinisher;
+import com.lauriethefish.betterportals.bukkit.tasks.VirtualThreadBlockUpdateFinisher;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.logging.OverrideLogger;
 import com.lauriethefish.betterportals.shared.util.ReflectionUtil;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import java.lang.reflect.Constructor;
+import java.util.Locale;
 
 public class MainModule extends AbstractModule {
     /**
@@ -38,6 +41,22 @@ public class MainModule extends AbstractModule {
         this.pl = pl;
     }
 
+    // This is read before the rest of the config is loaded, so changing it requires a restart
+    private Class<? extends BlockUpdateFinisher> findBlockUpdateFinisherType() {
+        String mode = pl.getConfig().getString("blockViewUpdateMode", "threads");
+        switch(mode.toLowerCase(Locale.ROOT)) {
+            case "async":
+                return AsyncBlockUpdateFinisher.class;
+            case "virtual":
+                return VirtualThreadBlockUpdateFinisher.class;
+            case "threads":
+                return ThreadedBlockUpdateFinisher.class;
+            default:
+                pl.getLogger().warning("Unknown block view update mode " + mode + ", using threads");
+                return ThreadedBlockUpdateFinisher.class;
+        }
+    }
+
     @Override
     protected void configure() {
         bind(JavaPlugin.class).toInstance(pl);
@@ -47,7 +66,7 @@ public class MainModule extends AbstractModule {
         bind(IBlockRotator.class).to(ModernBlockRotator.class);
         bind(IChunkGenerationChecker.class).to(ModernChunkGenerationChecker.class);
 
-        bind(BlockUpdateFinisher.class).to(ThreadedBlockUpdateFinisher.class);
+        bind(BlockUpdateFinisher.class).to(findBlockUpdateFinisherType());
 
         install(new EventsModule());
         install(new CommandsModule());
@@ -0,0 +1,219 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.PacketContainer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.util.Vector;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Merges the block changes sent to each player by all of their portal views, as well as block resets and portal block changes.
+ * Each chunk section is then sent at most once per flush, even if several portals changed blocks within it.
+ * Flushes happen whenever the view update thread runs out of work, and at the end of each tick.
+ * Each player is only sent up to <code>maxBlockChangesPerTick</code> blocks per tick. The chunk sections closest to the portals they're looking through,
+ * and closest to the center of their view through them, are sent first. The rest are kept until the next flush.
+ */
+@Singleton
+public class BlockChangeAggregator {
+    private static class PendingChanges {
+        private final Player player;
+        private IMultiBlockChangeManager changes;
+        private List<PacketContainer> tileEntityUpdates = new ArrayList<>();
+
+        // Portal position to the eye position it was last viewed from, used to prioritise sections
+        private final Map<Vector, Vector> viewFoci = new HashMap<>();
+
+        private int budgetTick = -1;
+        private int sentThisTick = 0;
+
+        // Set once the changes have been removed from the map, after which new changes must go in a new instance
+        private boolean removed = false;
+
+        private PendingChanges(Player player) {
+            this.player = player;
+        }
+
+        private int findRemainingBudget(int maxPerTick) {
+            if(maxPerTick <= 0) {return Integer.MAX_VALUE;}
+
+            int currentTick = Bukkit.getCurrentTick();
+            if(currentTick != budgetTick) {
+                budgetTick = currentTick;
+                sentThisTick = 0;
+            }
+            return maxPerTick - sentThisTick;
+        }
+
+        /**
+         * Sections are prioritised by their distance from the portal, plus their distance from the line between the eye and the portal.
+         * This favours blocks just behind the portal window, and those in the middle of the player's view through it.
+         */
+        private double findPriority(int sectionX, int sectionY, int sectionZ) {
+            double x = (sectionX << 4) + 8.0;
+            double y = (sectionY << 4) + 8.0;
+            double z = (sectionZ << 4) + 8.0;
+
+            double best = viewFoci.isEmpty() ? 0.0 : Double.MAX_VALUE;
+            for(Map.Entry<Vector, Vector> entry : viewFoci.entrySet()) {
+                Vector portalPos = entry.getKey();
+                Vector eyePos = entry.getValue();
+
+                double portalDistSq = square(x - portalPos.getX()) + square(y - portalPos.getY()) + square(z - portalPos.getZ());
+
+                double lineX = portalPos.getX() - eyePos.getX();
+                double lineY = portalPos.getY() - eyePos.getY();
+                double lineZ = portalPos.getZ() - eyePos.getZ();
+                double relX = x - eyePos.getX();
+                double relY = y - eyePos.getY();
+                double relZ = z - eyePos.getZ();
+
+                double lineLengthSq = lineX * lineX + lineY * lineY + lineZ * lineZ;
+                double along = lineLengthSq == 0.0 ? 0.0 : (relX * lineX + relY * lineY + relZ * lineZ) / lineLengthSq;
+                double lineDistSq = square(relX - lineX * along) + square(relY - lineY * along) + square(relZ - lineZ * along);
+
+                best = Math.min(best, portalDistSq + lineDistSq);
+            }
+            return best;
+        }
+
+        private static double square(double value) {
+            return value * value;
+        }
+    }
+
+    private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
+    private final RenderConfig renderConfig;
+    private final Logger logger;
+
+    private final Map<UUID, PendingChanges> pendingChanges = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlockChangeAggregator(IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, RenderConfig renderConfig, Logger logger) {
+        this.multiBlockChangeManagerFactory = multiBlockChangeManagerFactory;
+        this.renderConfig = renderConfig;
+        this.logger = logger;
+    }
+
+    /**
+     * Adds changes to be sent to <code>player</code> on the next flush. Safe to call from any thread.
+     * Changes to the same block replace any earlier changes that haven't been sent yet.
+     * @param player The player to send the changes to
+     * @param minChunkY The minimum chunk section Y coordinate in the player's world
+     * @param maxChunkY The maximum chunk section Y coordinate in the player's world
+     * @param changeAdder Called with the player's pending block changes, and the list of tile entity update packets, which are sent after the block changes.
+     *                    These must not be kept after it returns
+     */
+    public void queueChanges(Player player, int minChunkY, int maxChunkY, BiConsumer<IMultiBlockChangeManager, List<PacketContainer>> changeAdder) {
+        // The changes may be removed by a flush before we lock them, in which case they're found again
+        while(true) {
+            PendingChanges pending = getPendingChanges(player);
+
+            synchronized(pending) {
+                if(pending.removed) {continue;}
+
+                if(pending.changes == null) {
+                    pending.changes = multiBlockChangeManagerFactory.create(pending.player, minChunkY, maxChunkY);
+                }
+
+                changeAdder.accept(pending.changes, pending.tileEntityUpdates);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Finds the pending changes for <code>player</code>, creating them if there are none.
+     * If the player has relogged, the changes of the old player are replaced, since they would be dropped by the next flush.
+     */
+    private PendingChanges getPendingChanges(Player player) {
+        return pendingChanges.compute(player.getUniqueId(), (id, existing) -> {
+            if(existing == null || (existing.player != player && !existing.player.isOnline())) {
+                return new PendingChanges(player);
+            }
+            return existing;
+        });
+    }
+
+    /**
+     * Sets the position that <code>player</code> is viewing a portal from, so that the blocks they can see through it are sent first.
+     * This is kept until all of the player's pending changes have been sent. Safe to call from any thread.
+     * @param player The player viewing the portal
+     * @param portalPosition Center position of the portal
+     * @param eyePosition Position of the player's eye
+     */
+    public void setViewFocus(Player player, Vector portalPosition, Vector eyePosition) {
+        while(true) {
+            PendingChanges pending = getPendingChanges(player);
+
+            synchronized(pending) {
+                if(pending.removed) {continue;}
+
+                pending.viewFoci.put(portalPosition, eyePosition);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the pending changes of every player, up to each player's budget for this tick. Safe to call from any thread.
+     */
+    public void flush() {
+        int maxPerTick = renderConfig.getMaxBlockChangesPerTick();
+
+        for(Map.Entry<UUID, PendingChanges> entry : pendingChanges.entrySet()) {
+            PendingChanges pending = entry.getValue();
+
+            // The changes are sent while holding the lock, since any that are deferred must be merged with those added afterwards
+            synchronized(pending) {
+                if(pending.removed) {continue;}
+
+                // Sending packets to a player that has left would throw an exception
+                // Only this instance is removed, so that changes for the same player after relogging are kept
+                if(!pending.player.isOnline()) {
+                    pending.removed = true;
+                    pendingChanges.remove(entry.getKey(), pending);
+                    continue;
+                }
+
+                if(pending.changes != null) {
+                    int budget = pending.findRemainingBudget(maxPerTick);
+                    if(budget > 0) {
+                        pending.sentThisTick += pending.changes.sendChanges(budget, pending::findPriority);
+                    }
+
+                    if(pending.changes.hasChanges()) {
+                        logger.finest("Deferred block changes for player %s until the next tick", pending.player.getName());
+                    }   else    {
+                        pending.changes = null;
+                        pending.viewFoci.clear();
+                    }
+                }
+
+                // Tile entity updates must arrive after the blocks that they're for
+                if(pending.changes != null || pending.tileEntityUpdates.isEmpty()) {continue;}
+
+                try {
+                    for(PacketContainer packet : pending.tileEntityUpdates) {
+                        ProtocolLibrary.getProtocolManager().sendServerPacket(pending.player, packet);
+                    }
+                }   catch(Exception ex) {
+                    logger.warning("Failed to send tile entity update to player %s", pending.player.getName());
+                    ex.printStackTrace();
+                }
+                pending.tileEntityUpdates = new ArrayList<>();
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import com.lauriethefish.betterportals.bukkit.block.external.BlockChangeWatcher;
 import com.lauriethefish.betterportals.bukkit.block.external.ExternalBlockWatcherManager;
 import com.lauriethefish.betterportals.bukkit.block.external.IBlockChangeWatcher;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
+import com.lauriethefish.betterportals.bukkit.block.journal.BlockChangeJournal;
+import com.lauriethefish.betterportals.bukkit.block.journal.IBlockChangeJournal;
 import com.lauriethefish.betterportals.bukkit.block.lighting.DummyLightDataManager;
 import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
 import com.lauriethefish.betterportals.bukkit.block.lighting.LightDataManger;
@@ -37,6 +39,7 @@ public class BlockModule extends AbstractModule {
         );
 
         bind(IExternalBlockWatcherManager.class).to(ExternalBlockWatcherManager.class);
+        bind(IBlockChangeJournal.class).to(BlockChangeJournal.class);
 
         try {
             Class.forName("org.bukkit.block.data.type.Light");
@@ -3,20 +3,26 @@ package com.lauriethefish.betterportals.bukkit.block;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PackedBlockPosition;
 import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.grid.BlockStateGrid;
+import com.lauriethefish.betterportals.bukkit.block.grid.GridBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.grid.ReachedMap;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.math.IntTransform;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongObjectMap;
 import com.lauriethefish.betterportals.bukkit.util.performance.OperationTimer;
 import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.util.Vector;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Abstract viewable block map that is intended to have the update functions perform a flood fill to find which blocks are viewable.
@@ -24,18 +30,34 @@ import java.util.concurrent.ConcurrentHashMap;
 public abstract class FloodFillBlockMap implements IBlockMap {
     protected final Logger logger;
     protected final RenderConfig renderConfig;
+    protected final WrappedBlockDataPool dataPool;
 
-    protected final ConcurrentHashMap<IntVector, PacketContainer> originTileStates = new ConcurrentHashMap<>();
-    protected final ConcurrentHashMap<IntVector, PacketContainer> destTileStates = new ConcurrentHashMap<>();
+    // Tile entity packets keyed by packed origin position. These are only modified by the update, which never runs concurrently with itself,
+    // then copies are published for the view threads with publishTileStates
+    protected final LongObjectMap<PacketContainer> originTileStates = new LongObjectMap<>();
+    protected final LongObjectMap<PacketContainer> destTileStates = new LongObjectMap<>();
+    private volatile LongObjectMap<PacketContainer> publishedOriginTileStates = new LongObjectMap<>();
+    private volatile LongObjectMap<PacketContainer> publishedDestTileStates = new LongObjectMap<>();
+    // Set whenever either tile state map is modified, so that copies are only published if something changed
+    protected boolean tileStatesChanged = false;
 
-    protected StateQueue stateQueue;
+    protected ViewableStateStore stateStore;
 
-    protected List<IViewableBlockInfo> nonObscuredStates = new ArrayList<>();
+    // The data of every block is stored in the grid, and the indices of the blocks reached by the flood fill are stored here.
+    // This avoids keeping an object alive for each reached block.
+    protected BlockStateGrid grid;
+    protected int[] nonObscuredIndices = new int[0];
+    protected int nonObscuredCount = 0;
 
-    protected byte[] alreadyReachedMap;
+    // Kept between resets, since it is small and only needs clearing.
+    // Not initialised here since reset is called from the constructor
+    protected ReachedMap reachedMap;
+
+    // The flood fill is done in the same thread for the whole fill, so each worker thread can keep one stack
+    private static final ThreadLocal<int[]> scratchStack = ThreadLocal.withInitial(() -> new int[0]);
 
     protected final IPortal portal;
-    protected final Matrix rotateOriginToDest;
+    protected final IntTransform rotateOriginToDestInt;
     protected final IntVector portalOriginPos;
     protected final IntVector portalDestPos;
 
@@ -43,12 +65,20 @@ public abstract class FloodFillBlockMap implements IBlockMap {
     protected final PortalDirection destDirection;
     protected boolean firstUpdate;
 
-    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig) {
+    // Breadth-first queue of the initial fill, kept between updates when it is spread over several ticks
+    private int[] fillQueue;
+    private int fillQueueHead;
+    private int fillQueueTail;
+    // Read on the main thread to decide whether to update every tick
+    private volatile boolean initialFillRunning;
+
+    public FloodFillBlockMap(IPortal portal, Logger logger, RenderConfig renderConfig, WrappedBlockDataPool dataPool) {
         this.portal = portal;
         this.logger = logger;
         this.renderConfig = renderConfig;
+        this.dataPool = dataPool;
         this.centerPos = new IntVector(portal.getOriginPos().getVector());
-        this.rotateOriginToDest = portal.getTransformations().getRotateToDestination();
+        this.rotateOriginToDestInt = portal.getTransformations().getRotateToDestinationInt();
         this.destDirection = portal.getDestPos().getDirection();
         this.portalOriginPos = new IntVector(portal.getOriginPos().getVector());
         this.portalDestPos = roundBasedOnDirection(portal);
@@ -67,22 +97,171 @@ public abstract class FloodFillBlockMap implements IBlockMap {
     }
 
     protected boolean isInLine(IntVector relPos) {
-        return destDirection.swapVector(relPos).getZ() == 0;
+        return isInLine(relPos.getX(), relPos.getY(), relPos.getZ());
+    }
+
+    /**
+     * Same as {@link FloodFillBlockMap#isInLine(IntVector)}, but avoids creating a vector.
+     */
+    protected boolean isInLine(int relX, int relY, int relZ) {
+        switch(destDirection) {
+            case EAST:
+            case WEST:
+                return relX == 0;
+            case UP:
+            case DOWN:
+                return relY == 0;
+            default:
+                return relZ == 0;
+        }
+    }
+
+    /**
+     * Gets a stack for the flood fill that can be reused by the current thread.
+     * Since each block is only pushed once, a stack as long as the array map (plus the start position) can never overflow.
+     * @return The stack, which may contain data from previous fills
+     */
+    protected final int[] getScratchStack() {
+        int requiredLength = renderConfig.getTotalArrayLength() + 1;
+
+        int[] stack = scratchStack.get();
+        if(stack.length < requiredLength) {
+            stack = new int[requiredLength];
+            scratchStack.set(stack);
+        }
+        return stack;
     }
 
     protected final int getArrayMapIndex(IntVector relPos) {
         return ((relPos.getX() + (int) renderConfig.getMaxXZ()) + (relPos.getZ() + (int) renderConfig.getMaxXZ()) * renderConfig.getZMultip() + (relPos.getY() + (int) renderConfig.getMaxY()) * renderConfig.getYMultip());
     }
 
+    /**
+     * Converts an array map index back into a position relative to the portal origin.
+     * @param index The array map index
+     * @return The relative position
+     */
+    protected final IntVector getRelativePosition(int index) {
+        int relY = Math.floorDiv(index, renderConfig.getYMultip());
+        int relZ = Math.floorDiv(index - relY * renderConfig.getYMultip(), renderConfig.getZMultip());
+        int relX = index % renderConfig.getZMultip();
+
+        return new IntVector(
+                relX - (int) renderConfig.getMaxXZ(),
+                relY - (int) renderConfig.getMaxY(),
+                relZ - (int) renderConfig.getMaxXZ()
+        );
+    }
+
+    /**
+     * Marks the block at <code>index</code> as reached by the flood fill, so that it will be checked for changes.
+     * @param index Array map index of the block
+     */
+    protected final void addNonObscuredIndex(int index) {
+        if(nonObscuredCount == nonObscuredIndices.length) {
+            nonObscuredIndices = Arrays.copyOf(nonObscuredIndices, Math.max(64, nonObscuredIndices.length * 2));
+        }
+        nonObscuredIndices[nonObscuredCount++] = index;
+    }
+
+    /**
+     * Fetches the origin and destination data of one block reached by the flood fill, and places it in the viewable states if necessary.
+     * @param index Array map index of the block
+     * @param statesOutput List to place the new viewable states within
+     * @param isStartReached Whether this block has already been reached by a previous fill. Useful for incremental updates
+     * @return Whether the fill should continue to the surrounding blocks. This is false for occluding blocks, as we don't need to render other blocks behind these
+     */
+    protected abstract boolean visitBlock(int index, List<IViewableBlockInfo> statesOutput, boolean isStartReached);
+
     /**
      * Starts a flood fill from <code>start</code> out to the edges of the viewed portal area.
      * The fill stops when it reaches occluding blocks, as we don't need to render other blocks behind these.
-     * The origin data is also fetched, and this is placed in the viewable states
-     * @param originPos Start position of the flood fill, at the origin (non-relative)
+     * @param startIndex Array map index of the start position of the flood fill
      * @param statesOutput List to place the new viewable states within
-     * @param firstBlockInfo Optional, used instead of adding a new block to the map for the first block. Useful for incremental updates
+     * @param isStartReached Whether the first block has already been reached by a previous fill. Useful for incremental updates
      */
-    protected abstract void searchFromBlock(IntVector originPos, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo);
+    protected final void searchFromBlock(int startIndex, List<IViewableBlockInfo> statesOutput, boolean isStartReached) {
+        final int[] intOffsets = renderConfig.getIntOffsets();
+
+        // Each block is only pushed once, so the stack can't overflow
+        int[] stack = getScratchStack();
+        stack[0] = startIndex;
+        int stackPos = 0;
+
+        while (stackPos >= 0) {
+            int index = stack[stackPos--];
+            boolean shouldContinue = visitBlock(index, statesOutput, isStartReached);
+            isStartReached = false;
+            if(!shouldContinue) {continue;}
+
+            // Continue for surrounding blocks
+            for (int offset : intOffsets) {
+                int newPos = index + offset;
+                if (reachedMap.get(newPos) == ReachedMap.UNREACHED) {
+                    reachedMap.set(newPos, ReachedMap.REACHED);
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+    }
+
+    /**
+     * Continues the initial flood fill breadth-first, so that the blocks closest to the portal are found first.
+     * The fill stops once it has run for longer than the configured budget, and is continued on the next update.
+     * Any states found so far are published, so players can see the blocks near the portal before the fill has finished.
+     * @param budgetNanos Maximum time to spend on this part of the fill
+     */
+    private void continueInitialFill(long budgetNanos) {
+        final int[] intOffsets = renderConfig.getIntOffsets();
+        long deadline = System.nanoTime() + budgetNanos;
+
+        // The queue is kept between updates, so the thread-local stack can't be used.
+        // Each block is only queued once, so this can't overflow either
+        if(fillQueue == null) {
+            int startIndex = getArrayMapIndex(centerPos.subtract(portalOriginPos));
+            fillQueue = new int[renderConfig.getTotalArrayLength() + 1];
+            fillQueue[0] = startIndex;
+            fillQueueHead = 0;
+            fillQueueTail = 1;
+            reachedMap.set(startIndex, ReachedMap.REACHED);
+            initialFillRunning = true;
+        }
+
+        List<IViewableBlockInfo> newStates = new ArrayList<>();
+        int visitedCount = 0;
+        while(fillQueueHead < fillQueueTail) {
+            int index = fillQueue[fillQueueHead++];
+            if(visitBlock(index, newStates, false)) {
+                for (int offset : intOffsets) {
+                    int newPos = index + offset;
+                    if (reachedMap.get(newPos) == ReachedMap.UNREACHED) {
+                        reachedMap.set(newPos, ReachedMap.REACHED);
+                        fillQueue[fillQueueTail++] = newPos;
+                    }
+                }
+            }
+
+            // Checking the time is comparatively slow, so is only done every so often
+            if((++visitedCount & 255) == 0 && System.nanoTime() > deadline) {
+                break;
+            }
+        }
+        stateStore.addStates(newStates);
+
+        if(fillQueueHead == fillQueueTail) {
+            logger.finer("Finished progressive initial fill");
+            fillQueue = null;
+            initialFillRunning = false;
+            firstUpdate = false;
+        }
+    }
+
+    /**
+     * @return Whether a progressive initial fill has been started, but has not yet finished
+     */
+    protected final boolean isInitialFillRunning() {
+        return initialFillRunning;
+    }
 
     /**
      * Checks the origin and destination blocks for changes.
@@ -91,62 +270,151 @@ public abstract class FloodFillBlockMap implements IBlockMap {
      */
     protected abstract void checkForChanges();
 
+    /**
+     * Re-runs the flood fill over the destination data already in the grid, then removes any blocks that it can no longer reach.
+     * Incremental updates only ever add blocks, so this is needed to drop blocks that have since been covered up at the destination.
+     * Blocks that were never reached don't need to be checked, since a re-flood-fill is done whenever the destination changes.
+     */
+    protected final void removeObscuredStates() {
+        int length = reachedMap.length();
+        ReachedMap stillReached = new ReachedMap(length);
+        int[] stack = getScratchStack();
+        int[] offsets = renderConfig.getIntOffsets();
+        int yMultip = renderConfig.getYMultip();
+        int zMultip = renderConfig.getZMultip();
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+
+        int stackPos = 0;
+        stack[0] = getArrayMapIndex(centerPos.subtract(portalOriginPos));
+        stillReached.set(stack[0], ReachedMap.REACHED);
+        while(stackPos >= 0) {
+            int index = stack[stackPos--];
+
+            BlockData destData = grid.getDest(index);
+            if(destData == null || destData.getMaterial().isOccluding()) {continue;}
+
+            int relY = Math.floorDiv(index, yMultip);
+            int relZ = Math.floorDiv(index - relY * yMultip, zMultip);
+            int relX = index % zMultip;
+            if(renderConfig.isOutsideBounds(relX - maxXZ, relY - maxY, relZ - maxXZ)) {continue;}
+
+            for(int offset : offsets) {
+                int newPos = index + offset;
+                if(reachedMap.get(newPos) != ReachedMap.UNREACHED && stillReached.get(newPos) == ReachedMap.UNREACHED) {
+                    stillReached.set(newPos, ReachedMap.REACHED);
+                    stack[++stackPos] = newPos;
+                }
+            }
+        }
+
+        int newCount = 0;
+        for(int i = 0; i < nonObscuredCount; i++) {
+            int index = nonObscuredIndices[i];
+            if(stillReached.get(index) != ReachedMap.UNREACHED) {
+                nonObscuredIndices[newCount++] = index;
+            }   else    {
+                reachedMap.set(index, ReachedMap.UNREACHED);
+            }
+        }
+        if(newCount == nonObscuredCount) {return;}
+        nonObscuredCount = newCount;
+
+        int removedCount = stateStore.removeStates(state -> {
+            GridBlockInfo blockInfo = (GridBlockInfo) state;
+            if(reachedMap.get(blockInfo.getIndex()) == ReachedMap.UNREACHED) {
+                blockInfo.markRemoved();
+                return true;
+            }
+            return false;
+        });
+        logger.finer("Removed %d obscured viewable states", removedCount);
+    }
+
     protected final WrappedBlockData getBackgroundData() {
         return renderConfig.findBackgroundData(portal.getDestPos());
     }
 
     @Override
     public void update(int ticksSinceActivated) {
-        if(ticksSinceActivated % renderConfig.getBlockUpdateInterval() != 0) {return;}
+        // A progressive initial fill is continued every tick until it finishes
+        if(ticksSinceActivated % renderConfig.getBlockUpdateInterval() != 0 && !initialFillRunning) {return;}
 
         updateInternal();
     }
 
     protected void updateInternal() {
-        if(alreadyReachedMap == null) {
-            alreadyReachedMap = new byte[renderConfig.getTotalArrayLength()];
+        if(grid == null) {
+            // The array length can change if the config is reloaded
+            if(reachedMap == null || reachedMap.length() != renderConfig.getTotalArrayLength()) {
+                reachedMap = new ReachedMap(renderConfig.getTotalArrayLength());
+            }
+            grid = new BlockStateGrid(renderConfig.getTotalArrayLength(), dataPool);
         }
 
         OperationTimer timer = new OperationTimer();
-        if(firstUpdate) {
+        long fillBudget = renderConfig.getInitialFillBudget();
+        if(firstUpdate && fillBudget > 0) {
+            continueInitialFill(fillBudget * 1000);
+        }   else if(firstUpdate) {
             List<IViewableBlockInfo> initialStates = new ArrayList<>();
-            searchFromBlock(centerPos, initialStates, null);
-            stateQueue.addStatesInitially(initialStates);
+            searchFromBlock(getArrayMapIndex(centerPos.subtract(portalOriginPos)), initialStates, false);
+            stateStore.addStatesInitially(initialStates);
+            firstUpdate = false;
         }   else    {
             checkForChanges();
         }
-        firstUpdate = false;
-        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredStates.size(), stateQueue.stateCount());
+        logger.fine("Viewable block array update took: %.3f ms. Block count: %d. Viewable count: %d", timer.getTimeTakenMillis(), nonObscuredCount, stateStore.stateCount());
     }
 
     @Override
     public void reset() {
         logger.finer("Clearing block array to save memory");
 
-        stateQueue = new StateQueue(logger);
-        nonObscuredStates = new ArrayList<>();
+        stateStore = new ViewableStateStore();
+        nonObscuredIndices = new int[0];
+        nonObscuredCount = 0;
+        grid = null;
         originTileStates.clear();
         destTileStates.clear();
+        tileStatesChanged = true;
+        publishTileStates();
         firstUpdate = true;
-        alreadyReachedMap = null;
+        fillQueue = null;
+        initialFillRunning = false;
+        if(reachedMap != null) {
+            reachedMap.clear();
+        }
     }
 
     @Override
-    public List<IViewableBlockInfo> getViewableStates() {
-        if(stateQueue == null) {
+    public ViewableStateStore.Snapshot getViewableStates() {
+        if(stateStore == null) {
             return null;
         }
 
-        return stateQueue.getViewableStates();
+        return stateStore.getSnapshot();
+    }
+
+    /**
+     * Makes the current tile state maps visible to {@link FloodFillBlockMap#getOriginTileEntityPacket(IntVector)} and {@link FloodFillBlockMap#getDestinationTileEntityPacket(IntVector)}.
+     * Does nothing unless {@link FloodFillBlockMap#tileStatesChanged} was set after modifying the maps.
+     */
+    protected void publishTileStates() {
+        if(!tileStatesChanged) {return;}
+
+        tileStatesChanged = false;
+        publishedOriginTileStates = originTileStates.copy();
+        publishedDestTileStates = destTileStates.copy();
     }
 
     @Override
     public @Nullable PacketContainer getOriginTileEntityPacket(@NotNull IntVector position) {
-        return originTileStates.get(position);
+        return publishedOriginTileStates.get(PackedBlockPosition.pack(position));
     }
 
     @Override
     public @Nullable PacketContainer getDestinationTileEntityPacket(@NotNull IntVector position) {
-        return destTileStates.get(position);
+        return publishedDestTileStates.get(PackedBlockPosition.pack(position));
     }
 }
@@ -11,17 +11,15 @@ import org.bukkit.util.Vector;
 public interface IMultiBlockChangeManager {
     /**
      * Adds a new change to the map via a {@link IViewableBlockInfo}. The origin data of the block will be used.
-     * @param position Position relative to the world that the player is in
-     * @param newData The new block data that the player will see. Each overrider will specify a different {@link IViewableBlockInfo} subtype that allows them to fetch the data.
+     * @param newData The new block data that the player will see. The data and position are read from the {@link IViewableBlockInfo}.
      */
-    void addChangeOrigin(Vector position, IViewableBlockInfo newData);
+    void addChangeOrigin(IViewableBlockInfo newData);
 
     /**
      * Adds a new change to the map via a {@link IViewableBlockInfo}. The rendered destination data of this block will be used
-     * @param position Position relative to the world that the player is in
-     * @param newData The new block data that the player will see. Each overrider will specify a different {@link IViewableBlockInfo} subtype that allows them to fetch the data.
+     * @param newData The new block data that the player will see. The data and position are read from the {@link IViewableBlockInfo}.
      */
-    void addChangeDestination(Vector position, IViewableBlockInfo newData);
+    void addChangeDestination(IViewableBlockInfo newData);
 
     /**
      * Adds a new change to the map.
@@ -31,11 +29,34 @@ public interface IMultiBlockChangeManager {
     void addChange(Vector position, WrappedBlockData newData);
 
     /**
-     * Sends all queued changes.
-     * Does <i>not</i> clear changes.
+     * Adds a new change to the map at the given block coordinates, relative to the world that the player is in.
+     * @param newData The new block data that the player will see.
+     */
+    void addChange(int x, int y, int z, WrappedBlockData newData);
+
+    /**
+     * Sends all queued changes, then clears them.
      */
     void sendChanges();
 
+    /**
+     * Sends queued changes one chunk section at a time in order of priority, until at least <code>maxBlocks</code> blocks have been sent.
+     * Sent changes are cleared, and the rest are kept for the next call.
+     * @param maxBlocks The number of blocks to send before stopping
+     * @param sectionPriority Finds the priority of each chunk section. Sections with lower values are sent first
+     * @return The number of blocks sent
+     */
+    int sendChanges(int maxBlocks, SectionPriority sectionPriority);
+
+    /**
+     * @return Whether there are any changes that haven't been sent yet
+     */
+    boolean hasChanges();
+
+    interface SectionPriority {
+        double getPriority(int sectionX, int sectionY, int sectionZ);
+    }
+
     interface Factory {
         IMultiBlockChangeManager create(Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY);
     }
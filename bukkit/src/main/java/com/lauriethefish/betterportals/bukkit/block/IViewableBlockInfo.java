@@ -1,5 +1,6 @@
 package com.lauriethefish.betterportals.bukkit.block;
 
+import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.lauriethefish.betterportals.api.IntVector;
 
 /**
@@ -7,4 +8,24 @@ import com.lauriethefish.betterportals.api.IntVector;
  */
 public interface IViewableBlockInfo {
     IntVector getOriginPos();
+
+    /**
+     * @return The index of this block within the array map of its block map
+     */
+    int getIndex();
+
+    /**
+     * @return The current data of this block at the origin, used to reset the block
+     */
+    WrappedBlockData getOriginData();
+
+    /**
+     * @return The data shown in place of this block when it is visible through the portal
+     */
+    WrappedBlockData getRenderedDestData();
+
+    /**
+     * @return Whether this block has been removed from the viewable states of its block map, e.g. since it was covered up at the destination
+     */
+    boolean isRemoved();
 }
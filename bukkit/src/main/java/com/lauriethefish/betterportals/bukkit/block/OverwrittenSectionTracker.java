@@ -0,0 +1,229 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.events.ListenerPriority;
+import com.comphenix.protocol.events.PacketAdapter;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.events.PacketEvent;
+import com.comphenix.protocol.wrappers.BlockPosition;
+import com.comphenix.protocol.wrappers.WrappedLevelChunkData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.bukkit.ChunkColumnSplice;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches the chunk and block change packets that the server sends to each player, and records which chunk sections they overwrite.
+ * Any fake blocks that were sent within these sections are lost on the client, so block views use this to resend only those sections.
+ * Light update packets are not watched, since they don't change any blocks.
+ * Our own block changes are sent without packet filters, so they aren't seen here.
+ * If chunk packet splicing is enabled, each view's blocks are instead placed directly into outgoing chunk packets, so the chunk doesn't need to be resent afterwards.
+ */
+@Singleton
+public class OverwrittenSectionTracker {
+    public interface ColumnSplicer {
+        /**
+         * Places the blocks of a view that are within a chunk into its packet.
+         * Called from whichever thread the chunk packet is sent on.
+         * @param splice The chunk packet's section data
+         * @return Whether the blocks were placed. If not, the chunk is treated as overwritten
+         */
+        boolean spliceColumn(ChunkColumnSplice splice);
+    }
+
+    /**
+     * The sections overwritten for one player since they were last taken.
+     * Each block view has its own, since each must resend its own blocks.
+     */
+    public static class Sections {
+        private final UUID playerId;
+        private final @Nullable ColumnSplicer splicer;
+        private final Set<Long> sections = ConcurrentHashMap.newKeySet();
+        private final Set<Long> columns = ConcurrentHashMap.newKeySet();
+
+        private Sections(UUID playerId, @Nullable ColumnSplicer splicer) {
+            this.playerId = playerId;
+            this.splicer = splicer;
+        }
+
+        /**
+         * @return Whether any sections have been overwritten since they were last taken
+         */
+        public boolean isEmpty() {
+            return sections.isEmpty() && columns.isEmpty();
+        }
+
+        /**
+         * Finds if the section containing the given block has been overwritten.
+         * @return Whether the block needs to be resent
+         */
+        public boolean isOverwritten(int blockX, int blockY, int blockZ) {
+            return columns.contains(packColumnKey(blockX >> 4, blockZ >> 4))
+                    || sections.contains(packSectionKey(blockX >> 4, blockY >> 4, blockZ >> 4));
+        }
+
+        /**
+         * Removes the currently overwritten sections.
+         * Sections overwritten while this is running are either included in the result, or kept for the next call.
+         * @return The removed sections
+         */
+        public Sections take() {
+            Sections taken = new Sections(playerId, null);
+            moveAll(sections, taken.sections);
+            moveAll(columns, taken.columns);
+            return taken;
+        }
+
+        private static void moveAll(Set<Long> from, Set<Long> to) {
+            Iterator<Long> iterator = from.iterator();
+            while(iterator.hasNext()) {
+                to.add(iterator.next());
+                iterator.remove();
+            }
+        }
+    }
+
+    private final JavaPlugin pl;
+    private final RenderConfig renderConfig;
+    private final Logger logger;
+
+    private final Map<UUID, List<Sections>> playerSections = new ConcurrentHashMap<>();
+    private PacketAdapter listener;
+
+    @Inject
+    public OverwrittenSectionTracker(JavaPlugin pl, RenderConfig renderConfig, Logger logger) {
+        this.pl = pl;
+        this.renderConfig = renderConfig;
+        this.logger = logger;
+    }
+
+    private static long packSectionKey(int sectionX, int sectionY, int sectionZ) {
+        return ((long) sectionX & 0x3FFFFF) << 42 | ((long) sectionZ & 0x3FFFFF) << 20 | ((long) sectionY & 0xFFFFF);
+    }
+
+    private static long packColumnKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public void start() {
+        if(listener != null) {return;}
+
+        // Chunk packets may be modified, so this can't be a monitor listener
+        listener = new PacketAdapter(pl, ListenerPriority.HIGHEST,
+                PacketType.Play.Server.MAP_CHUNK, PacketType.Play.Server.BLOCK_CHANGE, PacketType.Play.Server.MULTI_BLOCK_CHANGE) {
+            @Override
+            public void onPacketSending(PacketEvent event) {
+                if(event.isCancelled()) {return;}
+                onOutgoingPacket(event.getPlayer(), event.getPacket());
+            }
+        };
+        ProtocolLibrary.getProtocolManager().addPacketListener(listener);
+        logger.fine("Started tracking overwritten chunk sections");
+    }
+
+    public void stop() {
+        if(listener == null) {return;}
+
+        ProtocolLibrary.getProtocolManager().removePacketListener(listener);
+        listener = null;
+        playerSections.clear();
+    }
+
+    private void onOutgoingPacket(Player player, PacketContainer packet) {
+        List<Sections> viewSections = playerSections.get(player.getUniqueId());
+        if(viewSections == null) {return;}
+
+        PacketType type = packet.getType();
+        if(type == PacketType.Play.Server.MAP_CHUNK) {
+            // The whole chunk column is replaced
+            int chunkX = packet.getIntegers().read(0);
+            int chunkZ = packet.getIntegers().read(1);
+            long key = packColumnKey(chunkX, chunkZ);
+
+            List<Sections> overwritten = renderConfig.isChunkPacketSplicing() ? spliceColumn(player, packet, chunkX, chunkZ, viewSections) : viewSections;
+            overwritten.forEach(sections -> sections.columns.add(key));
+        }   else if(type == PacketType.Play.Server.BLOCK_CHANGE) {
+            BlockPosition position = packet.getBlockPositionModifier().read(0);
+            long key = packSectionKey(position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4);
+            viewSections.forEach(sections -> sections.sections.add(key));
+        }   else    {
+            BlockPosition sectionPosition = packet.getSectionPositions().read(0);
+            long key = packSectionKey(sectionPosition.getX(), sectionPosition.getY(), sectionPosition.getZ());
+            viewSections.forEach(sections -> sections.sections.add(key));
+        }
+    }
+
+    /**
+     * Places the blocks of each view into a chunk packet.
+     * The server creates chunk packets separately for each player, so they can be modified in place.
+     * @return The views whose blocks couldn't be placed
+     */
+    private List<Sections> spliceColumn(Player player, PacketContainer packet, int chunkX, int chunkZ, List<Sections> viewSections) {
+        try {
+            WrappedLevelChunkData.ChunkData chunkData = packet.getLevelChunkData().read(0);
+            ChunkColumnSplice splice = new ChunkColumnSplice(chunkX, chunkZ, HeightUtil.getMinHeight(player.getWorld()) >> 4, chunkData.getBuffer());
+
+            List<Sections> unspliced = new ArrayList<>();
+            for(Sections sections : viewSections) {
+                if(sections.splicer == null || !sections.splicer.spliceColumn(splice)) {
+                    unspliced.add(sections);
+                }
+            }
+            if(!splice.isModified()) {return unspliced;}
+
+            byte[] newBuffer = splice.encode();
+            if(newBuffer == null) {
+                logger.finer("Chunk (%d, %d) had too many different blocks to splice", chunkX, chunkZ);
+                return viewSections;
+            }
+
+            chunkData.setBuffer(newBuffer);
+            packet.getLevelChunkData().write(0, chunkData);
+            return unspliced;
+        }   catch(RuntimeException ex) {
+            logger.warning("Failed to splice portal blocks into chunk packet for player %s", player.getName());
+            ex.printStackTrace();
+            return viewSections;
+        }
+    }
+
+    /**
+     * Starts recording the sections overwritten for <code>player</code>.
+     * @param player The player to record sections for
+     * @param splicer Used to place the view's blocks into chunk packets if splicing is enabled, or null if the view has none
+     * @return The recorded sections, which must be passed to {@link OverwrittenSectionTracker#unregister(Sections)} once no longer needed
+     */
+    public Sections register(Player player, @Nullable ColumnSplicer splicer) {
+        Sections sections = new Sections(player.getUniqueId(), splicer);
+        playerSections.compute(player.getUniqueId(), (id, viewSections) -> {
+            if(viewSections == null) {
+                viewSections = new CopyOnWriteArrayList<>();
+            }
+            viewSections.add(sections);
+            return viewSections;
+        });
+        return sections;
+    }
+
+    public void unregister(Sections sections) {
+        playerSections.computeIfPresent(sections.playerId, (id, viewSections) -> {
+            viewSections.remove(sections);
+            return viewSections.isEmpty() ? null : viewSections;
+        });
+    }
+}
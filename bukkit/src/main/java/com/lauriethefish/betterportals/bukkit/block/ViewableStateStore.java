@@ -0,0 +1,147 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Stores the viewable block states of a block map.
+ * Each change publishes a new immutable {@link Snapshot} through a single volatile reference,
+ * so any number of view threads can read a consistent list without copying or locking.
+ * Changes must only be made by one thread at a time, which is always the case since a block map only runs one update at once.
+ */
+public class ViewableStateStore {
+    /**
+     * An immutable list of the viewable states at one point in time.
+     */
+    @Getter
+    public static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(0, 0, Collections.emptyList());
+
+        /**
+         * Incremented whenever the states change
+         */
+        private final long epoch;
+
+        /**
+         * The epoch at which states were last removed. If this changes, then views should reset any blocks that are no longer viewable
+         */
+        private final long removalEpoch;
+
+        private final List<IViewableBlockInfo> states;
+
+        // The states sorted by array map index, which are only created if a view needs to look up states by index
+        @Getter(AccessLevel.NONE) private volatile int[] sortedIndices;
+        @Getter(AccessLevel.NONE) private volatile IViewableBlockInfo[] sortedStates;
+
+        private Snapshot(long epoch, long removalEpoch, List<IViewableBlockInfo> states) {
+            this.epoch = epoch;
+            this.removalEpoch = removalEpoch;
+            this.states = states;
+        }
+
+        /**
+         * Finds the state at an array map index. The lookup is built the first time this is called, which takes O(n log n).
+         * @param index Array map index of the state
+         * @return The state, or null if the block at this index isn't viewable
+         */
+        public @Nullable IViewableBlockInfo getStateAt(int index) {
+            IViewableBlockInfo[] lookupStates = sortedStates;
+            int[] lookupIndices = sortedIndices;
+            if(lookupStates == null) {
+                // Multiple threads may build the lookup at once, but they will all build the same thing
+                lookupStates = states.toArray(new IViewableBlockInfo[0]);
+                Arrays.sort(lookupStates, Comparator.comparingInt(IViewableBlockInfo::getIndex));
+                lookupIndices = new int[lookupStates.length];
+                for(int i = 0; i < lookupStates.length; i++) {
+                    lookupIndices[i] = lookupStates[i].getIndex();
+                }
+
+                sortedIndices = lookupIndices;
+                sortedStates = lookupStates;
+            }
+
+            int position = Arrays.binarySearch(lookupIndices, index);
+            return position >= 0 ? lookupStates[position] : null;
+        }
+    }
+
+    private volatile Snapshot current = Snapshot.EMPTY;
+
+    /**
+     * Finds the current viewable states. Safe to call from any thread.
+     * @return The current snapshot. This is empty until the initial states have been added
+     */
+    public @NotNull Snapshot getSnapshot() {
+        return current;
+    }
+
+    private void publish(List<IViewableBlockInfo> states, boolean removedStates) {
+        Snapshot previous = current;
+        long epoch = previous.epoch + 1;
+        current = new Snapshot(epoch, removedStates ? epoch : previous.removalEpoch, states);
+    }
+
+    public void addStatesInitially(@NotNull List<IViewableBlockInfo> blockInfoList) {
+        if(current != Snapshot.EMPTY) {
+            throw new IllegalStateException("Cannot add initial states multiple times");
+        }
+
+        publish(Collections.unmodifiableList(new ArrayList<>(blockInfoList)), false);
+    }
+
+    /**
+     * Adds new viewable states, publishing a new snapshot.
+     * @param blockInfoList The states to add
+     */
+    public void addStates(@NotNull List<IViewableBlockInfo> blockInfoList) {
+        if(blockInfoList.isEmpty()) {return;}
+
+        List<IViewableBlockInfo> previous = current.states;
+        List<IViewableBlockInfo> newStates = new ArrayList<>(previous.size() + blockInfoList.size());
+        newStates.addAll(previous);
+        newStates.addAll(blockInfoList);
+        publish(Collections.unmodifiableList(newStates), false);
+    }
+
+    /**
+     * Publishes a new snapshot with the same states, since the data of some of them has changed.
+     * This lets views know that they need to check the states again.
+     */
+    public void markChanged() {
+        publish(current.states, false);
+    }
+
+    /**
+     * Removes the states matching <code>shouldRemove</code>, publishing a new snapshot if any were removed.
+     * @param shouldRemove Returns true for states that are no longer viewable
+     * @return The number of states removed
+     */
+    public int removeStates(@NotNull Predicate<IViewableBlockInfo> shouldRemove) {
+        List<IViewableBlockInfo> previous = current.states;
+        List<IViewableBlockInfo> newStates = new ArrayList<>(previous.size());
+        for(IViewableBlockInfo state : previous) {
+            if(!shouldRemove.test(state)) {
+                newStates.add(state);
+            }
+        }
+
+        int removedCount = previous.size() - newStates.size();
+        if(removedCount > 0) {
+            publish(Collections.unmodifiableList(newStates), true);
+        }
+        return removedCount;
+    }
+
+    public int stateCount() {
+        return current.states.size();
+    }
+}
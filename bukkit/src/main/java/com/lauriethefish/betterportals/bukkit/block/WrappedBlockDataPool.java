@@ -0,0 +1,61 @@
+package com.lauriethefish.betterportals.bukkit.block;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.google.inject.Singleton;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Returns one canonical {@link WrappedBlockData} for each block state, so that each state is only wrapped once.
+ * Since the same instance is always returned for equal states, wrapped data from this pool can be compared by identity.
+ * There are a limited number of block states, so nothing is ever removed.
+ * This is safe to use from any thread.
+ */
+@Singleton
+public class WrappedBlockDataPool {
+    private final Map<BlockData, WrappedBlockData> byBlockData = new ConcurrentHashMap<>();
+    private final Map<Material, WrappedBlockData> byMaterial = new ConcurrentHashMap<>();
+    private final Map<Integer, WrappedBlockData> byLegacyData = new ConcurrentHashMap<>();
+
+    /**
+     * Finds the canonical wrapper for <code>data</code>.
+     * @param data The data to wrap. This must not be modified afterwards
+     * @return The wrapped data
+     */
+    public @NotNull WrappedBlockData intern(@NotNull BlockData data) {
+        WrappedBlockData existing = byBlockData.get(data);
+        if(existing != null) {
+            return existing;
+        }
+
+        return byBlockData.computeIfAbsent(data, WrappedBlockData::createData);
+    }
+
+    /**
+     * Finds the canonical wrapper for the default state of <code>material</code>.
+     * @param material The material to wrap
+     * @return The wrapped data
+     */
+    public @NotNull WrappedBlockData intern(@NotNull Material material) {
+        WrappedBlockData existing = byMaterial.get(material);
+        if(existing != null) {
+            return existing;
+        }
+
+        return byMaterial.computeIfAbsent(material, key -> intern(key.createBlockData()));
+    }
+
+    /**
+     * Finds the canonical wrapper for a material and legacy data value, e.g. for the rotation of portal blocks.
+     * @param material The material to wrap
+     * @param data The legacy data value, from 0 to 15
+     * @return The wrapped data
+     */
+    public @NotNull WrappedBlockData intern(@NotNull Material material, int data) {
+        return byLegacyData.computeIfAbsent(material.ordinal() << 4 | (data & 15), key -> WrappedBlockData.createData(material, data));
+    }
+}
@@ -5,280 +5,490 @@ import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PackedBlockPosition;
 import com.lauriethefish.betterportals.bukkit.block.FloodFillBlockMap;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
+import com.lauriethefish.betterportals.bukkit.block.grid.GridBlockInfo;
+import com.lauriethefish.betterportals.bukkit.block.grid.ReachedMap;
 import com.lauriethefish.betterportals.bukkit.block.fetch.BlockDataFetcherFactory;
 import com.lauriethefish.betterportals.bukkit.block.fetch.IBlockDataFetcher;
+import com.lauriethefish.betterportals.bukkit.block.journal.DirtyRegion;
+import com.lauriethefish.betterportals.bukkit.block.journal.IBlockChangeJournal;
 import com.lauriethefish.betterportals.bukkit.block.lighting.ILightDataManager;
-import com.lauriethefish.betterportals.bukkit.block.rotation.IBlockRotator;
+import com.lauriethefish.betterportals.bukkit.block.rotation.BlockRotationCache;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotArea;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotCache;
+import com.lauriethefish.betterportals.bukkit.block.tile.TileEntityIndex;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.bukkit.math.IntTransform;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.tasks.BlockMapWorkerPool;
 import com.lauriethefish.betterportals.bukkit.util.MaterialUtil;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongObjectMap;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongSet;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.Material;
 import org.bukkit.World;
-import org.bukkit.block.Block;
-import org.bukkit.block.BlockState;
 import org.bukkit.block.data.BlockData;
-import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
 
 /**
  * A bukkit implementation of a flood fill block map.
+ * The blocks around the origin and destination are captured as chunk snapshots on the main thread,
+ * then the flood fill and change checks are done on a {@link BlockMapWorkerPool} thread.
+ * Tile entity packets require the Bukkit API, so these are created back on the main thread once the update has finished.
+ * After the first update, only blocks marked as changed by the {@link IBlockChangeJournal} are re-checked, apart from a periodic full check.
  */
 public class BukkitBlockMap extends FloodFillBlockMap {
-    private final IBlockRotator blockRotator;
+    private final BlockRotationCache.Rotation blockRotation;
+    private final IntTransform rotateDestToOriginInt;
     private final BlockDataFetcherFactory dataFetcherFactory;
-    private final Matrix rotateDestToOrigin;
     private IBlockDataFetcher dataFetcher;
 
     private final World originWorld;
     private final ILightDataManager lightDataManager;
+    private final BlockMapWorkerPool workerPool;
+    private final IBlockChangeJournal changeJournal;
+    private final ChunkSnapshotCache snapshotCache;
+    private final TileEntityIndex tileEntityIndex;
 
     private WrappedBlockData wrappedLightData;
+    // Air blocks passed since the last light block was placed, carried between fills
+    private int airCount;
+    private WrappedBlockData backgroundData;
+    private ChunkSnapshotCache.Region originCacheRegion;
+    private ChunkSnapshotArea originSnapshot;
+
+    // Packed origin positions of the tile entities found by the last update, which need their packets created on the main thread.
+    // These are not initialised here since reset is called from the super constructor
+    private LongSet foundOriginTileEntities;
+    private LongSet foundDestTileEntities;
+    private TileEntityIndex.Region originTileRegion;
+    private TileEntityIndex.Region destTileRegion;
+    // The shared packet that each destination packet was copied from, used to avoid copying it again if it hasn't changed
+    private LongObjectMap<PacketContainer> destTileSources;
+
+    // Regions watched for block changes, and the array map indices of the changed blocks that still need checking
+    private DirtyRegion originRegion;
+    private DirtyRegion destRegion;
+    private BitSet dirtyIndices;
+    private boolean isFullCheckDue;
+    private boolean isFullCheck;
+
+    // Guarded by this, since a reset may be requested while a worker thread is updating the map
+    private boolean isUpdateRunning;
+    private boolean isResetPending;
+    private boolean updateFinishedSinceTilePublish;
 
     @Inject
-    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, IBlockRotator blockRotator, BlockDataFetcherFactory dataFetcherFactory, ILightDataManager lightDataManager) {
-        super(portal, logger, renderConfig);
-        this.blockRotator = blockRotator;
+    public BukkitBlockMap(@Assisted IPortal portal, Logger logger, RenderConfig renderConfig, BlockRotationCache rotationCache,
+                          BlockDataFetcherFactory dataFetcherFactory, ILightDataManager lightDataManager, BlockMapWorkerPool workerPool,
+                          IBlockChangeJournal changeJournal, ChunkSnapshotCache snapshotCache, WrappedBlockDataPool dataPool,
+                          TileEntityIndex tileEntityIndex) {
+        super(portal, logger, renderConfig, dataPool);
         this.dataFetcherFactory = dataFetcherFactory;
-        this.rotateDestToOrigin = portal.getTransformations().getRotateToOrigin();
+        this.rotateDestToOriginInt = portal.getTransformations().getRotateToOriginInt();
+        this.blockRotation = rotationCache.getRotation(portal.getTransformations().getRotateToOrigin());
         this.lightDataManager = lightDataManager;
+        this.workerPool = workerPool;
+        this.changeJournal = changeJournal;
+        this.snapshotCache = snapshotCache;
+        this.tileEntityIndex = tileEntityIndex;
 
         this.originWorld = portal.getOriginPos().getWorld();
         logger.fine("Origin pos: %s, Dest pos: %s", portalOriginPos, portalDestPos);
         logger.fine("Origin direction: %s, Dest Direction: %s", portal.getOriginPos().getDirection(), portal.getDestPos().getDirection());
     }
 
-    protected void searchFromBlock(IntVector start, List<IViewableBlockInfo> statesOutput, @Nullable IViewableBlockInfo firstBlockInfo) {
-        WrappedBlockData backgroundData = getBackgroundData();
-
+    @Override
+    protected boolean visitBlock(int positionInt, List<IViewableBlockInfo> statesOutput, boolean isStartReached) {
         final int timeBetweenLightBlocks = renderConfig.getLightSimulationInterval();
-
-        if (wrappedLightData == null) {
-            wrappedLightData = lightDataManager.getLightData(portal);
-        }
-
         boolean enableLightBlocks = wrappedLightData != null && timeBetweenLightBlocks >= 1;
-        int airCount = 0;
 
-        // Preallocate stack with a reasonable size
-        int[] stack = new int[Math.max(16, renderConfig.getTotalArrayLength())]; // Adjusted to prevent frequent resizing
-        stack[0] = getArrayMapIndex(start.subtract(centerPos));
-        int stackPos = 0;
+        final int zMultip = renderConfig.getZMultip();
+        final int yMultip = renderConfig.getYMultip();
+
+        int relY = positionInt / yMultip;
+        int relZ = (positionInt - relY * yMultip) / zMultip;
+        int relX = positionInt - relY * yMultip - relZ * zMultip;
 
-        while (stackPos >= 0) {
-            int positionInt = stack[stackPos--];
+        relX -= (int) renderConfig.getMaxXZ();
+        relY -= (int) renderConfig.getMaxY();
+        relZ -= (int) renderConfig.getMaxXZ();
 
-            int relX = (positionInt % renderConfig.getZMultip());
-            int relY = Math.floorDiv(positionInt, renderConfig.getYMultip());
-            int relZ = Math.floorDiv(positionInt - relY * renderConfig.getYMultip(), renderConfig.getZMultip());
+        int destRelX = rotateOriginToDestInt.transformX(relX, relY, relZ);
+        int destRelY = rotateOriginToDestInt.transformY(relX, relY, relZ);
+        int destRelZ = rotateOriginToDestInt.transformZ(relX, relY, relZ);
 
-            relX -= renderConfig.getMaxXZ();
-            relY -= renderConfig.getMaxY();
-            relZ -= renderConfig.getMaxXZ();
+        BlockData destData = dataFetcher.getData(destRelX + portalDestPos.getX(), destRelY + portalDestPos.getY(), destRelZ + portalDestPos.getZ());
+        if (destData == null) {
+            logger.warning("Fetched data was null even though the request to get the data had already succeeded. This shouldn't happen!");
+            return false;
+        }
 
-            IntVector originPos = new IntVector(relX + portalOriginPos.getX(), relY + portalOriginPos.getY(), relZ + portalOriginPos.getZ());
-            IntVector destRelPos = rotateOriginToDest.transform(relX, relY, relZ);
-            IntVector destPos = destRelPos.add(portalDestPos);
+        Material destType = destData.getMaterial();
+        boolean isOccluding = destType.isOccluding();
 
-            BlockData destData = dataFetcher.getData(destPos);
-            if (destData == null) {
-                logger.warning("Fetched data was null even though the request to get the data had already succeeded. This shouldn't happen!");
-                return;
-            }
+        int originX = relX + portalOriginPos.getX();
+        int originY = relY + portalOriginPos.getY();
+        int originZ = relZ + portalOriginPos.getZ();
+        BlockData originData = originSnapshot.getData(originX, originY, originZ);
 
-            boolean isOccluding = destData.getMaterial().isOccluding();
+        findTileEntities(originX, originY, originZ, originData.getMaterial(), destType);
 
-            Block originBlock = originPos.getBlock(originWorld);
-            BlockData originData = originBlock.getBlockData();
+        grid.setOrigin(positionInt, originData);
+        grid.setDest(positionInt, destData);
+        boolean isEdge = renderConfig.isOutsideBounds(relX, relY, relZ);
 
-            handleTileEntityUpdates(originBlock, originPos, originData, destData, destPos);
+        // Update rendered destination data
+        updateRenderedData(isEdge, isOccluding, positionInt, backgroundData, destData);
 
-            // Use the existing first block if given, otherwise make a new block info
-            BukkitBlockInfo blockInfo = firstBlockInfo == null ? new BukkitBlockInfo(originPos, originData, destData) : (BukkitBlockInfo) firstBlockInfo;
-            boolean isEdge = renderConfig.isOutsideBounds(relX, relY, relZ);
+        // The first block of an incremental update will already be in the reached list
+        if (!isStartReached) {
+            addNonObscuredIndex(positionInt);
+        }
 
-            // Update rendered destination data
-            updateRenderedData(isEdge, isOccluding, blockInfo, backgroundData, destData);
+        boolean canSkip = shouldSkipBlock(positionInt, firstUpdate, isEdge);
 
-            if (firstBlockInfo == null) {
-                nonObscuredStates.add(blockInfo);
-            }
-            firstBlockInfo = null;
-
-            boolean canSkip = shouldSkipBlock(destData, originData, firstUpdate, isEdge);
-
-            boolean isInLine = isInLine(destRelPos);
-
-            if (alreadyReachedMap[positionInt] < 2 && !isInLine) {
-                if (enableLightBlocks && destData.getMaterial().isAir() && !isEdge) {
-                    airCount++;
-                    if (airCount == timeBetweenLightBlocks) {
-                        airCount = 0;
-                        blockInfo.setRenderedDestData(wrappedLightData);
-                        alreadyReachedMap[positionInt] = 2; // Avoid adding multiple times
-                        statesOutput.add(blockInfo);
-                    }
-                } else if (!canSkip) {
-                    alreadyReachedMap[positionInt] = 2; // Avoid adding multiple times
-                    statesOutput.add(blockInfo);
+        if (reachedMap.get(positionInt) != ReachedMap.VIEWABLE && !isInLine(destRelX, destRelY, destRelZ)) {
+            if (enableLightBlocks && destType.isAir() && !isEdge) {
+                airCount++;
+                if (airCount >= timeBetweenLightBlocks) {
+                    airCount = 0;
+                    grid.setRendered(positionInt, wrappedLightData);
+                    reachedMap.set(positionInt, ReachedMap.VIEWABLE); // Avoid adding multiple times
+                    statesOutput.add(new GridBlockInfo(grid, positionInt, new IntVector(originX, originY, originZ)));
                 }
+            } else if (!canSkip) {
+                reachedMap.set(positionInt, ReachedMap.VIEWABLE); // Avoid adding multiple times
+                statesOutput.add(new GridBlockInfo(grid, positionInt, new IntVector(originX, originY, originZ)));
             }
+        }
 
-            if (isOccluding || isEdge) continue;
+        return !isOccluding && !isEdge;
+    }
 
-            // Avoid stack resizing if possible
-            if (!firstUpdate && stack.length - (stackPos + 1) < 5) {
-                stack = Arrays.copyOf(stack, stack.length * 2);
-            }
+    private void findTileEntities(int originX, int originY, int originZ, Material originType, Material destType) {
+        if (!portal.isCrossServer() && MaterialUtil.isTileEntity(destType)) {
+            foundDestTileEntities.add(PackedBlockPosition.pack(originX, originY, originZ));
+        }
 
-            // Continue for surrounding blocks
-            for (int offset : renderConfig.getIntOffsets()) {
-                int newPos = positionInt + offset;
-                if (alreadyReachedMap[newPos] == 0) {
-                    alreadyReachedMap[newPos] = 1;
-                    stack[++stackPos] = newPos;
-                }
-            }
+        if (MaterialUtil.isTileEntity(originType)) {
+            foundOriginTileEntities.add(PackedBlockPosition.pack(originX, originY, originZ));
         }
     }
 
-    private void handleTileEntityUpdates(Block originBlock, IntVector originPos, BlockData originData, BlockData destData, IntVector destPos) {
-        // Handle tile entity updates for destination block if applicable
-        if (!portal.isCrossServer() && MaterialUtil.isTileEntity(destData.getMaterial())) {
-            logger.finer("Adding tile state to map . . .");
-            Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
-            PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-            if (updatePacket != null) {
-                BlockDataUtil.setTileEntityPosition(updatePacket, originPos);
-                destTileStates.put(originPos, updatePacket);
-            }
+    /**
+     * Creates the update packets for the tile entities found during the last update.
+     * Must be called on the main thread, and not while an update is running.
+     */
+    private void createTileEntityPackets() {
+        // Nothing can have changed on idle ticks, so the maps don't need to be checked
+        boolean updateFinished = takeUpdateFinished();
+        if(foundOriginTileEntities.isEmpty() && foundDestTileEntities.isEmpty() && !updateFinished) {
+            return;
         }
 
-        // Handle tile entity updates for origin block if applicable
-        if (MaterialUtil.isTileEntity(originBlock.getType())) {
-            logger.finer("Adding tile state to map . . .");
-            PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
+        // The packets are only rebuilt by the index if the tile entity may have changed
+        foundOriginTileEntities.forEach(packedPos -> {
+            PacketContainer updatePacket = originTileRegion.getPacket(PackedBlockPosition.unpack(packedPos), isFullCheck);
             if (updatePacket != null) {
-                originTileStates.put(originPos, updatePacket);
+                originTileStates.put(packedPos, updatePacket);
+                tileStatesChanged = true;
             }
-        }
+        });
+        foundOriginTileEntities.clear();
+
+        foundDestTileEntities.forEach(packedPos -> {
+            int relX = PackedBlockPosition.unpackX(packedPos) - portalOriginPos.getX();
+            int relY = PackedBlockPosition.unpackY(packedPos) - portalOriginPos.getY();
+            int relZ = PackedBlockPosition.unpackZ(packedPos) - portalOriginPos.getZ();
+            IntVector destPos = new IntVector(
+                    rotateOriginToDestInt.transformX(relX, relY, relZ) + portalDestPos.getX(),
+                    rotateOriginToDestInt.transformY(relX, relY, relZ) + portalDestPos.getY(),
+                    rotateOriginToDestInt.transformZ(relX, relY, relZ) + portalDestPos.getZ()
+            );
+            PacketContainer sourcePacket = destTileRegion.getPacket(destPos, isFullCheck);
+            if (sourcePacket == null || destTileSources.get(packedPos) == sourcePacket) {return;}
+
+            // The shared packet must not be modified, so it is copied before moving it to the origin
+            logger.finer("Adding tile state to map . . .");
+            PacketContainer updatePacket = sourcePacket.shallowClone();
+            BlockDataUtil.setTileEntityPosition(updatePacket, PackedBlockPosition.unpack(packedPos));
+            destTileSources.put(packedPos, sourcePacket);
+            destTileStates.put(packedPos, updatePacket);
+            tileStatesChanged = true;
+        });
+        foundDestTileEntities.clear();
+
+        // Tile entities may have been removed from the map by the last update
+        destTileSources.removeIf((packedPos, sourcePacket) -> !destTileStates.containsKey(packedPos));
+        publishTileStates();
     }
 
-
-    private void updateRenderedData(boolean isEdge, boolean isOccluding, BukkitBlockInfo blockInfo, WrappedBlockData backgroundData, BlockData destData) {
+    private void updateRenderedData(boolean isEdge, boolean isOccluding, int index, WrappedBlockData backgroundData, BlockData destData) {
         if (isEdge && !isOccluding) {
-            blockInfo.setRenderedDestData(backgroundData);
+            grid.setRendered(index, backgroundData);
         } else {
-            blockInfo.setRenderedDestData(WrappedBlockData.createData(blockRotator.rotateByMatrix(rotateDestToOrigin, destData)));
+            grid.setRendered(index, blockRotation.rotate(destData));
         }
     }
 
-    private boolean shouldSkipBlock(BlockData destData, BlockData originData, boolean firstUpdate, boolean isEdge) {
-        return destData.equals(originData) && firstUpdate && !isEdge;
+    private boolean shouldSkipBlock(int index, boolean firstUpdate, boolean isEdge) {
+        return grid.isOriginSameAsDest(index) && firstUpdate && !isEdge;
     }
 
     @Override
     protected void checkForChanges() {
         List<IViewableBlockInfo> newStates = new ArrayList<>();
-        int statesLength = nonObscuredStates.size();
-
-        // Loop through non-obscured states
-        for (int i = 0; i < statesLength; i++) {
-            BukkitBlockInfo blockInfo = (BukkitBlockInfo) nonObscuredStates.get(i);
-            IntVector originPos = blockInfo.getOriginPos();
-            IntVector destPos = rotateOriginToDest.transform(originPos.subtract(portalOriginPos)).add(portalDestPos);
-
-            // Fetch destination block data once
-            BlockData newDestData = dataFetcher.getData(destPos);
-            if (newDestData == null) continue; // Skip if data fetch failed
-
-            // Check for changes at the destination block
-            if (!newDestData.equals(blockInfo.getBaseDestData())) {
-                logger.finer("Destination block change detected at " + destPos);
-                blockInfo.setBaseDestData(newDestData);
-                searchFromBlock(originPos, newStates, blockInfo); // Reflood fill if necessary
-            }
 
-            // Handle tile entity updates if not cross-server
-            if (!portal.isCrossServer() && MaterialUtil.isTileEntity(newDestData.getMaterial())) {
-                Block destBlock = destPos.getBlock(Objects.requireNonNull(portal.getDestPos().getWorld()));
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(destBlock.getState());
-                if (updatePacket != null) {
-                    BlockDataUtil.setTileEntityPosition(updatePacket, originPos);
-                    destTileStates.put(originPos, updatePacket);
-                }
+        boolean anyChanged = false;
+        if(isFullCheck) {
+            int statesLength = nonObscuredCount;
+            for (int i = 0; i < statesLength; i++) {
+                anyChanged |= checkBlockForChanges(nonObscuredIndices[i], newStates);
             }
-
-            // Fetch and compare origin block data
-            Block originBlock = originPos.getBlock(originWorld);
-            BlockData newOriginData = originBlock.getBlockData();
-
-            // Handle origin tile entity updates
-            if (MaterialUtil.isTileEntity(originBlock.getType())) {
-                PacketContainer updatePacket = BlockDataUtil.getUpdatePacket(originBlock.getState());
-                if (updatePacket != null) {
-                    originTileStates.put(originPos, updatePacket);
+        }   else    {
+            for (int index = dirtyIndices.nextSetBit(0); index >= 0; index = dirtyIndices.nextSetBit(index + 1)) {
+                // Changes to blocks that the flood fill never reached can't affect what is viewable
+                if (reachedMap.get(index) != ReachedMap.UNREACHED) {
+                    anyChanged |= checkBlockForChanges(index, newStates);
                 }
             }
+        }
+        dirtyIndices.clear();
 
-            // Check for changes at the origin block
-            if (!newOriginData.equals(blockInfo.getBaseOriginData())) {
-                blockInfo.setOriginData(newOriginData);
-                if (!newOriginData.equals(newDestData) && !portal.getOriginPos().isInLine(originPos)) {
-                    int position = getArrayMapIndex(originPos.subtract(portalOriginPos));
-                    // Add to newStates if it's not already marked as viewable
-                    if (alreadyReachedMap[position] < 2) {
-                        alreadyReachedMap[position] = 2;
-                        newStates.add(blockInfo);
-                    }
-                }
-            }
+        // Blocks are only removed on full checks, since finding them requires going over every reached block
+        if(isFullCheck) {
+            removeObscuredStates();
         }
 
         // Update the tile state maps
-        updateTileStateMap(originTileStates, originWorld, false);
+        removeOldTileStates(originTileStates, false);
         if (!portal.isCrossServer()) {
-            updateTileStateMap(destTileStates, portal.getDestPos().getWorld(), true);
+            removeOldTileStates(destTileStates, true);
         }
+        publishTileStates();
 
         // Enqueue new states if any were found
+        // Otherwise, views still need to know if the data of existing states has changed
         if (!newStates.isEmpty()) {
-            stateQueue.enqueueStates(newStates);
+            stateStore.addStates(newStates);
+        }   else if(anyChanged) {
+            stateStore.markChanged();
         }
     }
 
+    /**
+     * Checks the origin and destination of one block for changes, re-flood-filling from it if the destination has changed.
+     * @return Whether either block changed
+     */
+    private boolean checkBlockForChanges(int index, List<IViewableBlockInfo> newStates) {
+        // Coordinates are transformed one axis at a time, so checking a block doesn't allocate
+        final int zMultip = renderConfig.getZMultip();
+        final int yMultip = renderConfig.getYMultip();
+
+        int relY = index / yMultip;
+        int relZ = (index - relY * yMultip) / zMultip;
+        int relX = index - relY * yMultip - relZ * zMultip;
+
+        relX -= (int) renderConfig.getMaxXZ();
+        relY -= (int) renderConfig.getMaxY();
+        relZ -= (int) renderConfig.getMaxXZ();
+
+        int destRelX = rotateOriginToDestInt.transformX(relX, relY, relZ);
+        int destRelY = rotateOriginToDestInt.transformY(relX, relY, relZ);
+        int destRelZ = rotateOriginToDestInt.transformZ(relX, relY, relZ);
+        int destX = destRelX + portalDestPos.getX();
+        int destY = destRelY + portalDestPos.getY();
+        int destZ = destRelZ + portalDestPos.getZ();
+
+        // Fetch destination block data once
+        BlockData newDestData = dataFetcher.getData(destX, destY, destZ);
+        if (newDestData == null) return false; // Skip if data fetch failed
+
+        // Check for changes at the destination block
+        boolean destChanged = grid.setDest(index, newDestData);
+        if (destChanged) {
+            logger.finer("Destination block change detected at (%d, %d, %d)", destX, destY, destZ);
+            searchFromBlock(index, newStates, true); // Reflood fill if necessary
+        }
+
+        // Fetch and compare origin block data
+        int originX = relX + portalOriginPos.getX();
+        int originY = relY + portalOriginPos.getY();
+        int originZ = relZ + portalOriginPos.getZ();
+        BlockData newOriginData = originSnapshot.getData(originX, originY, originZ);
+
+        // Tile entities are re-sent each check in case their data has changed
+        findTileEntities(originX, originY, originZ, newOriginData.getMaterial(), newDestData.getMaterial());
+
+        // Check for changes at the origin block
+        if (!grid.setOrigin(index, newOriginData)) {
+            return destChanged;
+        }
 
-    private void updateTileStateMap(ConcurrentMap<IntVector, PacketContainer> map, World world, boolean isDestination) {
-        for(Map.Entry<IntVector, PacketContainer> entry : map.entrySet()) {
-            IntVector position;
+        // Blocks in the plane of the portal are skipped, the same as in the flood fill
+        if (!grid.isOriginSameAsDest(index) && !isInLine(destRelX, destRelY, destRelZ)) {
+            // Add to newStates if it's not already marked as viewable
+            if (reachedMap.get(index) != ReachedMap.VIEWABLE) {
+                reachedMap.set(index, ReachedMap.VIEWABLE);
+                newStates.add(new GridBlockInfo(grid, index, new IntVector(originX, originY, originZ)));
+            }
+        }
+        return true;
+    }
+
+
+    private void removeOldTileStates(LongObjectMap<PacketContainer> map, boolean isDestination) {
+        boolean anyRemoved = map.removeIf((packedPos, packet) -> {
+            int x = PackedBlockPosition.unpackX(packedPos);
+            int y = PackedBlockPosition.unpackY(packedPos);
+            int z = PackedBlockPosition.unpackZ(packedPos);
+
+            Material type;
             if(isDestination) {
-                IntVector portalRelativePos = entry.getKey().subtract(portalOriginPos);
-                position = rotateOriginToDest.transform(portalRelativePos).add(portalDestPos);
+                int relX = x - portalOriginPos.getX();
+                int relY = y - portalOriginPos.getY();
+                int relZ = z - portalOriginPos.getZ();
+                type = dataFetcher.getData(
+                        rotateOriginToDestInt.transformX(relX, relY, relZ) + portalDestPos.getX(),
+                        rotateOriginToDestInt.transformY(relX, relY, relZ) + portalDestPos.getY(),
+                        rotateOriginToDestInt.transformZ(relX, relY, relZ) + portalDestPos.getZ()
+                ).getMaterial();
             }   else    {
-                position = entry.getKey();
+                type = originSnapshot.getType(x, y, z);
             }
 
-            Block block = position.getBlock(world);
-            BlockState state = block.getState();
-            if(!MaterialUtil.isTileEntity(state.getType())) {
-                logger.finer("Removing tile state from map . . . %b", isDestination);
-                map.remove(entry.getKey());
-            }
+            return !MaterialUtil.isTileEntity(type);
+        });
+
+        if(anyRemoved) {
+            tileStatesChanged = true;
+            logger.finer("Removed tile states from map . . . %b", isDestination);
+        }
+    }
+
+    private synchronized boolean isUpdateRunning() {
+        return isUpdateRunning;
+    }
+
+    /**
+     * Returns whether an update has finished since this was last called, and clears the flag.
+     */
+    private synchronized boolean takeUpdateFinished() {
+        boolean result = updateFinishedSinceTilePublish;
+        updateFinishedSinceTilePublish = false;
+        return result;
+    }
+
+    @Override
+    public void update(int ticksSinceActivated) {
+        if(!isUpdateRunning()) {
+            createTileEntityPackets();
+        }
+
+        int fullCheckInterval = renderConfig.getFullBlockCheckInterval();
+        if(fullCheckInterval <= 0 || ticksSinceActivated % fullCheckInterval == 0) {
+            isFullCheckDue = true;
+        }
+
+        super.update(ticksSinceActivated);
+    }
+
+    private void watchAreas() {
+        IntVector halfSize = renderConfig.getHalfFullSize();
+        originRegion = changeJournal.watch(originWorld, portalOriginPos.subtract(halfSize), portalOriginPos.add(halfSize));
+        originCacheRegion = snapshotCache.retain(originWorld, portalOriginPos.subtract(halfSize), portalOriginPos.add(halfSize));
+        originTileRegion = tileEntityIndex.retain(originWorld, portalOriginPos.subtract(halfSize), portalOriginPos.add(halfSize));
+
+        // Changes at the destination of cross-server portals are found by the destination server instead
+        if(!portal.isCrossServer()) {
+            World destWorld = Objects.requireNonNull(portal.getDestPos().getWorld());
+            int radius = Math.max(halfSize.getX(), halfSize.getY()) + 1; // The destination area may be rotated
+            IntVector destCenter = new IntVector(portal.getDestPos().getVector());
+            destRegion = changeJournal.watch(destWorld, destCenter.subtract(radius, radius, radius), destCenter.add(radius, radius, radius));
+            destTileRegion = tileEntityIndex.retain(destWorld, destCenter.subtract(radius, radius, radius), destCenter.add(radius, radius, radius));
+        }
+    }
+
+    private void releaseWatchedAreas() {
+        if(dataFetcher != null) {
+            dataFetcher.close();
+        }
+
+        if(originCacheRegion != null) {
+            originCacheRegion.release();
+            originCacheRegion = null;
+        }
+
+        if(originTileRegion != null) {
+            originTileRegion.release();
+            originTileRegion = null;
+        }
+
+        if(destTileRegion != null) {
+            destTileRegion.release();
+            destTileRegion = null;
+        }
+
+        if(originRegion != null) {
+            changeJournal.unwatch(originRegion);
+            originRegion = null;
+        }
+
+        if(destRegion != null) {
+            changeJournal.unwatch(destRegion);
+            destRegion = null;
+        }
+    }
+
+    private void markDirty(IntVector relPos) {
+        // The destination region is big enough for any rotation, so can contain blocks outside of the array map
+        if(Math.abs(relPos.getX()) > renderConfig.getMaxXZ() || Math.abs(relPos.getY()) > renderConfig.getMaxY() || Math.abs(relPos.getZ()) > renderConfig.getMaxXZ()) {
+            return;
+        }
+
+        dirtyIndices.set(getArrayMapIndex(relPos));
+    }
+
+    /**
+     * Moves the changes recorded by the journal into {@link BukkitBlockMap#dirtyIndices}.
+     * Must not be called while an update is running, since the worker thread reads the dirty indices.
+     */
+    private void collectDirtyBlocks() {
+        originRegion.drain(originPos -> markDirty(originPos.subtract(portalOriginPos)));
+        if(destRegion != null) {
+            destRegion.drain(destPos -> markDirty(rotateDestToOriginInt.transform(destPos.subtract(portalDestPos))));
         }
     }
 
     @Override
     protected void updateInternal() {
+        if(isUpdateRunning()) {
+            logger.fine("Not updating portal, the previous update has not yet finished");
+            return;
+        }
+
         if(dataFetcher == null) {
             dataFetcher = dataFetcherFactory.create(portal);
+            watchAreas();
         }
-        dataFetcher.update();
+
+        // Cross-server portals can't watch for changes at the destination, so must check every block
+        // While a progressive initial fill is running, changes are left in the dirty indices to be checked once it has finished
+        collectDirtyBlocks();
+        boolean continuingFill = isInitialFillRunning();
+        boolean fullCheck = !continuingFill && (firstUpdate || isFullCheckDue || portal.isCrossServer());
+        if(!continuingFill && !fullCheck && dirtyIndices.isEmpty()) {
+            logger.finest("Not updating portal, no blocks have changed");
+            return;
+        }
+
+        dataFetcher.update(fullCheck);
 
         // If fetching external blocks has not yet finished, we can't do the flood-fill.
         if(!dataFetcher.isReady()) {
@@ -286,13 +496,71 @@ public class BukkitBlockMap extends FloodFillBlockMap {
             return;
         }
 
-        super.updateInternal();
+        // Everything that needs the Bukkit API is fetched now, since the update itself happens on another thread
+        originSnapshot = originCacheRegion.capture(fullCheck);
+        backgroundData = getBackgroundData();
+        if(wrappedLightData == null) {
+            wrappedLightData = lightDataManager.getLightData(portal);
+        }
+
+        // Every block will be checked, so the recorded changes aren't needed
+        if(fullCheck) {
+            dirtyIndices.clear();
+            isFullCheckDue = false;
+        }
+        isFullCheck = fullCheck;
+
+        synchronized(this) {
+            isUpdateRunning = true;
+        }
+
+        workerPool.submit(() -> {
+            try {
+                super.updateInternal();
+            }   catch(RuntimeException ex) {
+                logger.severe("An error occurred while updating the blocks of a portal");
+                ex.printStackTrace();
+            }   finally {
+                onUpdateFinished();
+            }
+        });
+    }
+
+    private synchronized void onUpdateFinished() {
+        isUpdateRunning = false;
+        updateFinishedSinceTilePublish = true;
+
+        // If the portal was deactivated during the update, then the reset was left to us
+        if(isResetPending) {
+            isResetPending = false;
+            resetInternal();
+        }
     }
 
     @Override
     public void reset() {
+        // The journal and snapshot cache must only be used on the main thread, so this can't be left until a running update finishes
+        releaseWatchedAreas();
+
+        synchronized(this) {
+            if(isUpdateRunning) {
+                logger.finer("Delaying block map reset until the current update finishes");
+                isResetPending = true;
+                return;
+            }
+        }
+
+        resetInternal();
+    }
+
+    private void resetInternal() {
+        dirtyIndices = new BitSet();
         dataFetcher = null;
         wrappedLightData = null;
+        originSnapshot = null;
+        foundOriginTileEntities = new LongSet();
+        foundDestTileEntities = new LongSet();
+        destTileSources = new LongObjectMap<>();
         super.reset();
     }
-}
\ No newline at end of file
+}
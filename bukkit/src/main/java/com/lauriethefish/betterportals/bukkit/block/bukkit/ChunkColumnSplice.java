@@ -0,0 +1,314 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import lombok.Getter;
+import org.bukkit.Material;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Places blocks into the section data of an outgoing chunk packet, so that portal views arrive along with the chunk instead of being sent afterwards.
+ * Sections are only decoded once a block is placed in them, and only those sections are encoded again.
+ * Each section is a block count, followed by a paletted container of block states, and then one of biomes which is copied unchanged.
+ */
+public class ChunkColumnSplice {
+    private static final int SECTION_VOLUME = 4096;
+    private static final int BIOME_VOLUME = 64;
+    private static final int MAX_INDIRECT_BLOCK_BITS = 8;
+    private static final int MIN_INDIRECT_BLOCK_BITS = 4;
+    private static final int MAX_INDIRECT_BIOME_BITS = 3;
+
+    // The number of bits used for global IDs isn't sent for indirect sections, so it is remembered from any direct sections seen
+    private static volatile int knownDirectBits = -1;
+
+    // Found when first used, since the global IDs can't be looked up until the server has started
+    private static class AirIds {
+        private static final int[] IDS = {
+                BlockDataUtil.getGlobalId(WrappedBlockData.createData(Material.AIR)),
+                BlockDataUtil.getGlobalId(WrappedBlockData.createData(Material.CAVE_AIR)),
+                BlockDataUtil.getGlobalId(WrappedBlockData.createData(Material.VOID_AIR))
+        };
+    }
+
+    @Getter private final int chunkX;
+    @Getter private final int chunkZ;
+    private final int minSectionY;
+    private final byte[] buffer;
+
+    // Data arrays were prefixed with their length before 1.21.5
+    private final boolean lengthPrefixed;
+    // Global IDs that don't count towards the block count of a section
+    private final int[] airIds;
+
+    // Offset of each section's block count, and the start of its biomes. One extra entry holds the end of the last section
+    private int[] sectionStarts;
+    private int[] biomeStarts;
+    // Decoded global IDs of the sections that have been modified
+    private int[][] modifiedSections;
+    @Getter private boolean modified = false;
+
+    /**
+     * @param chunkX X coordinate of the chunk
+     * @param chunkZ Z coordinate of the chunk
+     * @param minSectionY Y coordinate of the lowest section in the world
+     * @param buffer The section data from the chunk packet
+     */
+    public ChunkColumnSplice(int chunkX, int chunkZ, int minSectionY, byte[] buffer) {
+        this(chunkX, chunkZ, minSectionY, buffer, !VersionUtil.isMcVersionAtLeast("1.21.5"), AirIds.IDS);
+    }
+
+    /**
+     * Creates a splice without looking up anything from the server.
+     * @param lengthPrefixed Whether data arrays are prefixed with their length
+     * @param airIds Global IDs of each type of air
+     */
+    ChunkColumnSplice(int chunkX, int chunkZ, int minSectionY, byte[] buffer, boolean lengthPrefixed, int[] airIds) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minSectionY = minSectionY;
+        this.buffer = buffer;
+        this.lengthPrefixed = lengthPrefixed;
+        this.airIds = airIds;
+    }
+
+    private boolean isAir(int id) {
+        for(int airId : airIds) {
+            if(airId == id) {return true;}
+        }
+        return false;
+    }
+
+    /**
+     * Places <code>data</code> at the given world coordinates.
+     * Positions outside of this chunk or the world's height are ignored.
+     * @throws IllegalStateException If the section data couldn't be read
+     */
+    public void setBlock(int x, int y, int z, WrappedBlockData data) {
+        setBlock(x, y, z, BlockDataUtil.getGlobalId(data));
+    }
+
+    /**
+     * Places the block with the given global ID at the given world coordinates.
+     * Positions outside of this chunk or the world's height are ignored.
+     * @throws IllegalStateException If the section data couldn't be read
+     */
+    void setBlock(int x, int y, int z, int globalId) {
+        if(x >> 4 != chunkX || z >> 4 != chunkZ) {return;}
+
+        if(sectionStarts == null) {
+            findSections();
+        }
+
+        int section = (y >> 4) - minSectionY;
+        if(section < 0 || section >= modifiedSections.length) {return;}
+
+        if(modifiedSections[section] == null) {
+            modifiedSections[section] = decodeBlocks(section);
+        }
+        modifiedSections[section][((y & 15) << 8) | ((z & 15) << 4) | (x & 15)] = globalId;
+        modified = true;
+    }
+
+    private void findSections() {
+        ByteBuffer reader = ByteBuffer.wrap(buffer);
+        int sectionCount = 0;
+        int[] starts = new int[32];
+        int[] biomes = new int[32];
+        while(reader.hasRemaining()) {
+            if(sectionCount + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                biomes = Arrays.copyOf(biomes, biomes.length * 2);
+            }
+
+            starts[sectionCount] = reader.position();
+            reader.getShort(); // Block count
+            skipContainer(reader, SECTION_VOLUME, MAX_INDIRECT_BLOCK_BITS);
+            biomes[sectionCount] = reader.position();
+            skipContainer(reader, BIOME_VOLUME, MAX_INDIRECT_BIOME_BITS);
+            sectionCount++;
+        }
+        starts[sectionCount] = reader.position();
+
+        sectionStarts = starts;
+        biomeStarts = biomes;
+        modifiedSections = new int[sectionCount][];
+    }
+
+    private void skipContainer(ByteBuffer reader, int volume, int maxIndirectBits) {
+        int bits = reader.get() & 0xFF;
+        if(bits == 0) {
+            readVarInt(reader);
+        }   else if(bits <= maxIndirectBits) {
+            int paletteLength = readVarInt(reader);
+            for(int i = 0; i < paletteLength; i++) {
+                readVarInt(reader);
+            }
+        }
+        int longCount = readDataLength(reader, bits, volume);
+        reader.position(reader.position() + longCount * Long.BYTES);
+    }
+
+    private int readDataLength(ByteBuffer reader, int bits, int volume) {
+        if(lengthPrefixed) {
+            return readVarInt(reader);
+        }
+        return findLongCount(bits, volume);
+    }
+
+    private static int findLongCount(int bits, int volume) {
+        if(bits == 0) {return 0;}
+
+        int valuesPerLong = Long.SIZE / bits;
+        return (volume + valuesPerLong - 1) / valuesPerLong;
+    }
+
+    private int[] decodeBlocks(int section) {
+        ByteBuffer reader = ByteBuffer.wrap(buffer);
+        reader.position(sectionStarts[section] + Short.BYTES);
+
+        int[] ids = new int[SECTION_VOLUME];
+        int bits = reader.get() & 0xFF;
+        int[] palette = null;
+        if(bits == 0) {
+            Arrays.fill(ids, readVarInt(reader));
+            readDataLength(reader, bits, SECTION_VOLUME);
+            return ids;
+        }   else if(bits <= MAX_INDIRECT_BLOCK_BITS) {
+            palette = new int[readVarInt(reader)];
+            for(int i = 0; i < palette.length; i++) {
+                palette[i] = readVarInt(reader);
+            }
+        }   else    {
+            knownDirectBits = bits;
+        }
+
+        readDataLength(reader, bits, SECTION_VOLUME);
+        int valuesPerLong = Long.SIZE / bits;
+        long mask = (1L << bits) - 1;
+        for(int i = 0; i < SECTION_VOLUME; i++) {
+            long packed = reader.getLong(reader.position() + (i / valuesPerLong) * Long.BYTES);
+            int value = (int) ((packed >>> ((i % valuesPerLong) * bits)) & mask);
+            ids[i] = palette == null ? value : palette[value];
+        }
+        return ids;
+    }
+
+    /**
+     * Encodes any modified sections.
+     * @return The new section data, or null if a section has too many different blocks to be encoded
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(buffer.length + 1024);
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            int copiedUpTo = 0;
+            for(int section = 0; section < modifiedSections.length; section++) {
+                int[] ids = modifiedSections[section];
+                if(ids == null) {continue;}
+
+                output.write(buffer, copiedUpTo, sectionStarts[section] - copiedUpTo);
+                if(!encodeBlocks(ids, output)) {
+                    return null;
+                }
+                copiedUpTo = biomeStarts[section];
+            }
+            output.write(buffer, copiedUpTo, buffer.length - copiedUpTo);
+        }   catch(IOException ex) {
+            throw new IllegalStateException(ex); // Writing to a byte array can't fail
+        }
+        return bytes.toByteArray();
+    }
+
+    private boolean encodeBlocks(int[] ids, DataOutputStream output) throws IOException {
+        Map<Integer, Integer> paletteIndices = new HashMap<>();
+        int[] palette = new int[16];
+        int nonAirCount = 0;
+        for(int id : ids) {
+            if(!isAir(id)) {nonAirCount++;}
+
+            if(!paletteIndices.containsKey(id)) {
+                if(paletteIndices.size() == palette.length) {
+                    palette = Arrays.copyOf(palette, palette.length * 2);
+                }
+                palette[paletteIndices.size()] = id;
+                paletteIndices.put(id, paletteIndices.size());
+            }
+        }
+        output.writeShort(nonAirCount);
+
+        int paletteSize = paletteIndices.size();
+        if(paletteSize == 1) {
+            output.writeByte(0);
+            writeVarInt(output, palette[0]);
+            if(lengthPrefixed) {
+                writeVarInt(output, 0);
+            }
+            return true;
+        }
+
+        int bits = Math.max(MIN_INDIRECT_BLOCK_BITS, Integer.SIZE - Integer.numberOfLeadingZeros(paletteSize - 1));
+        boolean direct = bits > MAX_INDIRECT_BLOCK_BITS;
+        if(direct) {
+            bits = knownDirectBits;
+            if(bits == -1) {return false;}
+        }
+
+        output.writeByte(bits);
+        if(!direct) {
+            writeVarInt(output, paletteSize);
+            for(int i = 0; i < paletteSize; i++) {
+                writeVarInt(output, palette[i]);
+            }
+        }
+
+        int longCount = findLongCount(bits, SECTION_VOLUME);
+        if(lengthPrefixed) {
+            writeVarInt(output, longCount);
+        }
+
+        int valuesPerLong = Long.SIZE / bits;
+        for(int i = 0; i < longCount; i++) {
+            long packed = 0;
+            for(int j = 0; j < valuesPerLong; j++) {
+                int index = i * valuesPerLong + j;
+                if(index >= SECTION_VOLUME) {break;}
+
+                long value = direct ? ids[index] : paletteIndices.get(ids[index]);
+                packed |= value << (j * bits);
+            }
+            output.writeLong(packed);
+        }
+        return true;
+    }
+
+    private static int readVarInt(ByteBuffer reader) {
+        int value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            if(shift >= 35) {
+                throw new IllegalStateException("VarInt in chunk data was too long");
+            }
+            current = reader.get();
+            value |= (current & 0x7F) << shift;
+            shift += 7;
+        }   while((current & 0x80) != 0);
+        return value;
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+}
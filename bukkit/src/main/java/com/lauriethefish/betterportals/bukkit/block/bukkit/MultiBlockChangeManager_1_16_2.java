@@ -1,99 +1,192 @@
 package com.lauriethefish.betterportals.bukkit.block.bukkit;
 
-import com.comphenix.protocol.PacketType;
 import com.comphenix.protocol.ProtocolLibrary;
-import com.comphenix.protocol.events.PacketContainer;
-import com.comphenix.protocol.wrappers.BlockPosition;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Comparator;
 
+/**
+ * Writes changes straight into a pooled {@link SectionChangeBuffer} for each chunk section, then sends one packet per section.
+ * The sections are found with an open-addressing table keyed by the packed section position, so no objects are created per block.
+ */
 public class MultiBlockChangeManager_1_16_2 implements IMultiBlockChangeManager {
+    private static final int INITIAL_CAPACITY = 16;
+
     private final Player player;
+    private final SectionBufferPool bufferPool;
 
     private final int minChunkY;
     private final int maxChunkY;
 
-    // Section positions have to be done with BlockPositions for now in ProtocolLib
-    private final HashMap<BlockPosition, Map<Vector, WrappedBlockData>> changes = new HashMap<>();
+    // Empty slots have a null buffer. The table is kept at most half full
+    private long[] sectionKeys = new long[INITIAL_CAPACITY];
+    private SectionChangeBuffer[] sections = new SectionChangeBuffer[INITIAL_CAPACITY];
+    private int sectionCount = 0;
+
+    // Changes are usually added in runs within the same section
+    private SectionChangeBuffer lastSection;
+    private long lastSectionKey;
 
     @Inject
-    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY) {
+    public MultiBlockChangeManager_1_16_2(@Assisted Player player, @Assisted("minChunkY") int minChunkY, @Assisted("maxChunkY") int maxChunkY,
+                                          SectionBufferPool bufferPool) {
         this.player = player;
         this.minChunkY = minChunkY;
         this.maxChunkY = maxChunkY;
+        this.bufferPool = bufferPool;
+    }
+
+    private static long packSectionKey(int sectionX, int sectionY, int sectionZ) {
+        return ((long) sectionX & 0x3FFFFF) << 42 | ((long) sectionZ & 0x3FFFFF) << 20 | (sectionY & 0xFFFFF);
+    }
+
+    private int findSlot(long key, long[] keys, SectionChangeBuffer[] buffers) {
+        int mask = buffers.length - 1;
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while(buffers[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private SectionChangeBuffer getSection(int sectionX, int sectionY, int sectionZ) {
+        long key = packSectionKey(sectionX, sectionY, sectionZ);
+        if(lastSection != null && lastSectionKey == key) {
+            return lastSection;
+        }
+
+        int slot = findSlot(key, sectionKeys, sections);
+        SectionChangeBuffer section = sections[slot];
+        if(section == null) {
+            section = bufferPool.acquire();
+            section.setSection(sectionX, sectionY, sectionZ);
+            sectionKeys[slot] = key;
+            sections[slot] = section;
+            if(++sectionCount * 2 > sections.length) {
+                resize();
+            }
+        }
+
+        lastSection = section;
+        lastSectionKey = key;
+        return section;
+    }
+
+    private void resize() {
+        long[] newKeys = new long[sectionKeys.length * 2];
+        SectionChangeBuffer[] newSections = new SectionChangeBuffer[sections.length * 2];
+        for(int i = 0; i < sections.length; i++) {
+            if(sections[i] == null) {continue;}
+
+            int slot = findSlot(sectionKeys[i], newKeys, newSections);
+            newKeys[slot] = sectionKeys[i];
+            newSections[slot] = sections[i];
+        }
+        sectionKeys = newKeys;
+        sections = newSections;
+    }
+
+    @Override
+    public void addChange(int x, int y, int z, WrappedBlockData newData) {
+        SectionChangeBuffer section = getSection(x >> 4, y >> 4, z >> 4);
+        section.set(getShortLocation(x, y, z), newData);
     }
 
     @Override
     public void addChange(Vector position, WrappedBlockData newData) {
-        BlockPosition sectionPosition = new BlockPosition(
-                position.getBlockX() >> 4,
-                position.getBlockY() >> 4,
-                position.getBlockZ() >> 4
-        );
-
-        // Create/get the list for this chunk section
-        Map<Vector, WrappedBlockData> existingList = changes.computeIfAbsent(sectionPosition, k -> new HashMap<>());
-        existingList.put(position, newData);
+        addChange(position.getBlockX(), position.getBlockY(), position.getBlockZ(), newData);
     }
 
     @Override
-    public void addChangeOrigin(Vector position, IViewableBlockInfo newData) {
-        addChange(position, ((BukkitBlockInfo) newData).getOriginData());
+    public void addChangeOrigin(IViewableBlockInfo newData) {
+        IntVector position = newData.getOriginPos();
+        addChange(position.getX(), position.getY(), position.getZ(), newData.getOriginData());
     }
 
     @Override
-    public void addChangeDestination(Vector position, IViewableBlockInfo newData) {
-        addChange(position, ((BukkitBlockInfo) newData).getRenderedDestData());
+    public void addChangeDestination(IViewableBlockInfo newData) {
+        IntVector position = newData.getOriginPos();
+        addChange(position.getX(), position.getY(), position.getZ(), newData.getRenderedDestData());
     }
 
-    private short getShortLocation(Vector vec) {
-        int x = vec.getBlockX() & 0xF;
-        int y = vec.getBlockY() & 0xF;
-        int z = vec.getBlockZ() & 0xF;
+    private short getShortLocation(int x, int y, int z) {
+        return (short) ((x & 0xF) << 8 | (z & 0xF) << 4 | (y & 0xF));
+    }
 
-        return (short) (x << 8 | z << 4 | y);
+    private void sendSection(SectionChangeBuffer section) {
+        int chunkY = section.getSectionY();
+        if(chunkY <= maxChunkY && chunkY >= minChunkY && section.getCount() > 0) {
+            try {
+                // Sent without filters so that the OverwrittenSectionTracker doesn't see our own changes
+                ProtocolLibrary.getProtocolManager().sendServerPacket(player, section.createPacket(), false);
+            }   catch(Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        bufferPool.release(section);
     }
 
     @Override
     public void sendChanges() {
         // Each chunk position needs a different packet
-        for(Map.Entry<BlockPosition, Map<Vector, WrappedBlockData>> entry : changes.entrySet()) {
-            PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
-            int chunkY = entry.getKey().getY();
-            if(chunkY > maxChunkY || chunkY < minChunkY) {
-                continue;
+        for(SectionChangeBuffer section : sections) {
+            if(section != null) {
+                sendSection(section);
             }
+        }
 
-            // Write the correct chunk section
-            packet.getSectionPositions().write(0, entry.getKey());
-
-            // Add each changed block in the chunk
-            int blockCount = entry.getValue().size();
-            WrappedBlockData[] data = new WrappedBlockData[blockCount];
-            short[] positions = new short[blockCount];
-            int i = 0;
-            for(Map.Entry<Vector, WrappedBlockData> blockEntry : entry.getValue().entrySet()) {
-                positions[i] = getShortLocation(blockEntry.getKey());
-                data[i] = blockEntry.getValue();
-                i++;
-            }
+        Arrays.fill(sections, null);
+        sectionCount = 0;
+        lastSection = null;
+    }
 
-            packet.getBlockDataArrays().writeSafely(0, data);
-            packet.getShortArrays().writeSafely(0, positions);
+    @Override
+    public int sendChanges(int maxBlocks, SectionPriority sectionPriority) {
+        SectionChangeBuffer[] ordered = new SectionChangeBuffer[sectionCount];
+        int i = 0;
+        for(SectionChangeBuffer section : sections) {
+            if(section == null) {continue;}
+
+            section.priority = sectionPriority.getPriority(section.getSectionX(), section.getSectionY(), section.getSectionZ());
+            ordered[i++] = section;
+        }
+        Arrays.sort(ordered, Comparator.comparingDouble(section -> section.priority));
 
-            try {
-                ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
-            }   catch(Exception ex) {
-                ex.printStackTrace();
-            }
+        int sentBlocks = 0;
+        int sentSections = 0;
+        while(sentSections < ordered.length && sentBlocks < maxBlocks) {
+            sentBlocks += ordered[sentSections].getCount();
+            sendSection(ordered[sentSections++]);
+        }
+
+        // Place the sections that weren't sent back in the table
+        Arrays.fill(sections, null);
+        sectionCount = 0;
+        lastSection = null;
+        for(int j = sentSections; j < ordered.length; j++) {
+            SectionChangeBuffer section = ordered[j];
+            long key = packSectionKey(section.getSectionX(), section.getSectionY(), section.getSectionZ());
+            int slot = findSlot(key, sectionKeys, sections);
+            sectionKeys[slot] = key;
+            sections[slot] = section;
+            sectionCount++;
         }
+
+        return sentBlocks;
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return sectionCount > 0;
     }
 }
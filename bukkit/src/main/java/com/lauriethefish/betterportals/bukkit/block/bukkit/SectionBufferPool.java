@@ -0,0 +1,46 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.google.inject.Singleton;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reuses {@link SectionChangeBuffer}s between block change updates, since a few are needed by every update on the view threads.
+ */
+@Singleton
+public class SectionBufferPool {
+    // Each buffer is around 8 KB, so this limits the pool to a few megabytes
+    private static final int MAX_POOLED_BUFFERS = 256;
+
+    private final Queue<SectionChangeBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    /**
+     * @return An empty buffer, which should be released once it is no longer needed
+     */
+    public SectionChangeBuffer acquire() {
+        SectionChangeBuffer buffer = buffers.poll();
+        if(buffer == null) {
+            return new SectionChangeBuffer();
+        }
+
+        pooledCount.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Clears <code>buffer</code> and returns it to the pool.
+     * @param buffer The buffer to release. This must not be used afterwards
+     */
+    public void release(SectionChangeBuffer buffer) {
+        buffer.clear();
+        if(pooledCount.incrementAndGet() > MAX_POOLED_BUFFERS) {
+            pooledCount.decrementAndGet();
+            return;
+        }
+
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,84 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.wrappers.BlockPosition;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Holds the changes to one chunk section, packed in the same form as the multi block change packet.
+ * Buffers are reused by a {@link SectionBufferPool}, so they are cleared instead of being recreated for each update.
+ */
+public class SectionChangeBuffer {
+    private static final int SECTION_VOLUME = 4096;
+    private static final int INITIAL_CAPACITY = 64;
+
+    @Getter private int sectionX;
+    @Getter private int sectionY;
+    @Getter private int sectionZ;
+
+    private short[] positions = new short[INITIAL_CAPACITY];
+    private WrappedBlockData[] data = new WrappedBlockData[INITIAL_CAPACITY];
+    @Getter private int count = 0;
+
+    // Used when sending sections in order of priority
+    double priority;
+
+    // One more than the index of each position in the arrays above, or 0 if there's no change at that position yet.
+    // This is used to replace earlier changes to the same block.
+    private final short[] slots = new short[SECTION_VOLUME];
+
+    void setSection(int sectionX, int sectionY, int sectionZ) {
+        this.sectionX = sectionX;
+        this.sectionY = sectionY;
+        this.sectionZ = sectionZ;
+    }
+
+    /**
+     * Sets the data of a block, replacing any existing change to it.
+     * @param location Position of the block within the section, in the packet's short form
+     * @param newData The new data of the block
+     */
+    void set(short location, WrappedBlockData newData) {
+        int slot = slots[location] - 1;
+        if(slot >= 0) {
+            data[slot] = newData;
+            return;
+        }
+
+        if(count == positions.length) {
+            positions = Arrays.copyOf(positions, count * 2);
+            data = Arrays.copyOf(data, count * 2);
+        }
+        positions[count] = location;
+        data[count] = newData;
+        slots[location] = (short) ++count;
+    }
+
+    /**
+     * Creates the multi block change packet for the changes in this section.
+     * @return The packet
+     */
+    PacketContainer createPacket() {
+        PacketContainer packet = new PacketContainer(PacketType.Play.Server.MULTI_BLOCK_CHANGE);
+        // Section positions have to be done with BlockPositions for now in ProtocolLib
+        packet.getSectionPositions().write(0, new BlockPosition(sectionX, sectionY, sectionZ));
+        packet.getBlockDataArrays().writeSafely(0, Arrays.copyOf(data, count));
+        packet.getShortArrays().writeSafely(0, Arrays.copyOf(positions, count));
+        return packet;
+    }
+
+    /**
+     * Removes all changes, so that the buffer can be reused.
+     */
+    void clear() {
+        for(int i = 0; i < count; i++) {
+            slots[positions[i]] = 0;
+        }
+        Arrays.fill(data, 0, count, null); // Avoid keeping block data alive while pooled
+        count = 0;
+    }
+}
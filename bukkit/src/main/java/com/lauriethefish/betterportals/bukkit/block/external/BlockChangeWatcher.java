@@ -3,31 +3,32 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.api.IntVector;
-import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.api.PackedBlockPosition;
+import com.lauriethefish.betterportals.bukkit.math.IntTransform;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongIntMap;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongObjectMap;
 import org.bukkit.Bukkit;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class BlockChangeWatcher implements IBlockChangeWatcher  {
     private final IntVector center;
-    private final Matrix rotationMatrix;
+    private final IntTransform rotation;
     private World world;
 
     private final int xAndZRadius;
     private final int yRadius;
 
-    private final Map<IntVector, BlockData> previousData = new HashMap<>();
+    // Keyed by packed block position
+    private final LongObjectMap<BlockData> previousData = new LongObjectMap<>();
 
     @Inject
     public BlockChangeWatcher(@Assisted GetBlockDataChangesRequest request) {
         this.center = request.getPosition();
-        this.rotationMatrix = request.getRotateOriginToDest();
+        this.rotation = IntTransform.fromMatrix(request.getRotateOriginToDest());
         this.xAndZRadius = request.getXAndZRadius();
         this.yRadius = request.getYRadius();
         this.world = Bukkit.getWorld(request.getWorldId());
@@ -36,20 +37,23 @@ public class BlockChangeWatcher implements IBlockChangeWatcher  {
         }
     }
 
-    public @NotNull Map<IntVector, Integer> checkForChanges() {
-        Map<IntVector, Integer> result = new HashMap<>();
+    public @NotNull LongIntMap checkForChanges() {
+        LongIntMap result = new LongIntMap();
 
         for(int x = -xAndZRadius; x <= xAndZRadius ; x++) {
             for(int z = -xAndZRadius; z <= xAndZRadius; z++) {
                 for(int y = -yRadius; y <= yRadius; y++) {
-                    IntVector blockPos = rotationMatrix.transform(new IntVector(x, y, z)).add(center);
+                    int blockX = rotation.transformX(x, y, z) + center.getX();
+                    int blockY = rotation.transformY(x, y, z) + center.getY();
+                    int blockZ = rotation.transformZ(x, y, z) + center.getZ();
+                    long packedPos = PackedBlockPosition.pack(blockX, blockY, blockZ);
 
-                    BlockData data = blockPos.getBlock(world).getBlockData();
-                    BlockData oldData = previousData.get(blockPos);
+                    BlockData data = world.getBlockAt(blockX, blockY, blockZ).getBlockData();
+                    BlockData oldData = previousData.get(packedPos);
 
                     if(!data.equals(oldData)) {
-                        result.put(blockPos, BlockDataUtil.getCombinedId(data));
-                        previousData.put(blockPos, data);
+                        result.put(packedPos, BlockDataUtil.getCombinedId(data));
+                        previousData.put(packedPos, data);
                     }
                 }
             }
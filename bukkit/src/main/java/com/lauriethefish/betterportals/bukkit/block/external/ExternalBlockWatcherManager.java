@@ -2,8 +2,8 @@ package com.lauriethefish.betterportals.bukkit.block.external;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
-import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongIntMap;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.Response;
 
@@ -41,7 +41,7 @@ public class ExternalBlockWatcherManager implements IExternalBlockWatcherManager
         lastRequested.put(request.getChangeSetId(), Instant.now());
 
         Response response = new Response();
-        Map<IntVector, Integer> changes = watcher.checkForChanges();
+        LongIntMap changes = watcher.checkForChanges();
         logger.finer("Change count: %d", changes.size());
 
         response.setResult(changes);
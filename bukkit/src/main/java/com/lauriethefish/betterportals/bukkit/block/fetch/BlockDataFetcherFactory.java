@@ -2,6 +2,7 @@ package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotCache;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
@@ -12,19 +13,21 @@ public class BlockDataFetcherFactory {
     private final Logger logger;
     private final IPortalClient portalClient;
     private final RenderConfig renderConfig;
+    private final ChunkSnapshotCache snapshotCache;
 
     @Inject
-    public BlockDataFetcherFactory(Logger logger, IPortalClient portalClient, RenderConfig renderConfig) {
+    public BlockDataFetcherFactory(Logger logger, IPortalClient portalClient, RenderConfig renderConfig, ChunkSnapshotCache snapshotCache) {
         this.logger = logger;
         this.portalClient = portalClient;
         this.renderConfig = renderConfig;
+        this.snapshotCache = snapshotCache;
     }
 
     public IBlockDataFetcher create(IPortal portal) {
         if(portal.isCrossServer()) {
             return new ExternalBlockDataFetcher(logger, portalClient, renderConfig, portal);
         }   else    {
-            return new LocalBlockDataFetcher(portal);
+            return new LocalBlockDataFetcher(portal, renderConfig, snapshotCache);
         }
     }
 }
@@ -1,18 +1,19 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PackedBlockPosition;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.net.IPortalClient;
 import com.lauriethefish.betterportals.bukkit.net.requests.GetBlockDataChangesRequest;
 import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongIntMap;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongObjectMap;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.RequestException;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.UUID;
 
 /**
@@ -24,7 +25,8 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
     private final GetBlockDataChangesRequest request;
     private final String destServerName;
 
-    private final Map<IntVector, BlockData> currentStates = new HashMap<>();
+    // Keyed by packed block position. Read by the block map worker threads without locking, so each response builds a new map which then replaces this one
+    private volatile LongObjectMap<BlockData> currentStates = new LongObjectMap<>();
     private volatile boolean hasFirstRequestFinished = false;
     private volatile boolean hasPreviousRequestFinished = true;
 
@@ -44,8 +46,7 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
     }
 
     @Override
-    @SuppressWarnings("unchecked")
-    public void update() {
+    public void update(boolean forceRefresh) {
         if(!hasPreviousRequestFinished) {
             logger.fine("Still awaiting block data response");
             return;
@@ -53,17 +54,21 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
 
         hasPreviousRequestFinished = false;
         portalClient.sendRequestToServer(request, destServerName, (response) -> {
-            hasPreviousRequestFinished = true;
             try {
                 logger.finer("Received response to get block data request");
-                Map<IntVector, Integer> serializedChanges = (Map<IntVector, Integer>) response.getResult();
+                LongIntMap serializedChanges = (LongIntMap) response.getResult();
 
-                serializedChanges.forEach((position, newValue) -> currentStates.put(position, BlockDataUtil.getByCombinedId(newValue)));
+                // Only one request is sent at a time, so nothing else modifies the states while the new map is built
+                LongObjectMap<BlockData> newStates = currentStates.copy();
+                serializedChanges.forEach((position, newValue) -> newStates.put(position, BlockDataUtil.getByCombinedId(newValue)));
+                currentStates = newStates;
 
                 hasFirstRequestFinished = true;
             }   catch(RequestException ex) {
                 logger.warning("Failed to fetch block changes for external portal: ");
                 ex.printStackTrace();
+            }   finally {
+                hasPreviousRequestFinished = true;
             }
         });
     }
@@ -75,6 +80,14 @@ public class ExternalBlockDataFetcher implements IBlockDataFetcher  {
 
     @Override
     public @NotNull BlockData getData(@NotNull IntVector position) {
-        return currentStates.get(position);
+        return getData(position.getX(), position.getY(), position.getZ());
     }
+
+    @Override
+    public @NotNull BlockData getData(int x, int y, int z) {
+        return currentStates.get(PackedBlockPosition.pack(x, y, z));
+    }
+
+    @Override
+    public void close() {}
 }
@@ -4,11 +4,17 @@ import com.lauriethefish.betterportals.api.IntVector;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
+/**
+ * Fetches the block data at the destination of a portal.
+ * {@link IBlockDataFetcher#update(boolean)} is called on the main thread, but the data may then be read from the block map worker threads.
+ */
 public interface IBlockDataFetcher {
     /**
      * Updates the currently fetched data.
+     * Must be called on the main thread.
+     * @param forceRefresh Whether to re-fetch all of the data, rather than only the data known to have changed
      */
-    void update();
+    void update(boolean forceRefresh);
 
     /**
      * @return Whether the data has been fetched and can be read with {@link IBlockDataFetcher#getData(IntVector)}.
@@ -16,9 +22,20 @@ public interface IBlockDataFetcher {
     boolean isReady();
 
     /**
-     * Reads the data at <code>position</code>.
+     * Reads the data at <code>position</code>. This is safe to call from any thread.
      * @param position The position to get the data at. The destination world is implied
      * @return The block data at that position
      */
     @NotNull BlockData getData(@NotNull IntVector position);
+
+    /**
+     * Same as {@link IBlockDataFetcher#getData(IntVector)}, but allows implementations to avoid creating a vector.
+     */
+    @NotNull BlockData getData(int x, int y, int z);
+
+    /**
+     * Releases anything held by this fetcher. Must be called on the main thread once the fetcher is no longer used.
+     * Data that was already fetched can still be read.
+     */
+    void close();
 }
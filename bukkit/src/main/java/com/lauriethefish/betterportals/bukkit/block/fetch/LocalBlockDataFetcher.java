@@ -1,34 +1,58 @@
 package com.lauriethefish.betterportals.bukkit.block.fetch;
 
 import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotArea;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotCache;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import org.bukkit.World;
 import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Objects;
+
 /**
  * Local portals already have their blocks accessible.
- * This is a simple pass-through to Bukkit's API.
+ * The chunks around the destination are captured as snapshots on each update, so that they can be read off of the main thread.
+ * These snapshots come from the {@link ChunkSnapshotCache}, so are shared with any other portals viewing the same area.
  */
 public class LocalBlockDataFetcher implements IBlockDataFetcher {
-    private final World destinationWorld;
+    private final ChunkSnapshotCache.Region region;
+
+    private volatile ChunkSnapshotArea snapshot;
+
+    public LocalBlockDataFetcher(IPortal portal, RenderConfig renderConfig, ChunkSnapshotCache snapshotCache) {
+        World destinationWorld = Objects.requireNonNull(portal.getDestPos().getWorld(), "Destination world of local portal was null");
 
-    public LocalBlockDataFetcher(IPortal portal) {
-        this.destinationWorld = portal.getDestPos().getWorld();
+        // The destination area may be rotated, so we capture a cube big enough for any rotation.
+        // One extra block is added since the destination position is rounded based on the portal direction
+        int radius = (int) Math.max(renderConfig.getMaxXZ(), renderConfig.getMaxY()) + 1;
+        IntVector destPos = new IntVector(portal.getDestPos().getVector());
+        this.region = snapshotCache.retain(destinationWorld, destPos.subtract(radius, radius, radius), destPos.add(radius, radius, radius));
     }
 
     @Override
-    public void update() {
-        // Do nothing, this is just a pass-through to Bukkit's API for local blocks.
+    public void update(boolean forceRefresh) {
+        snapshot = region.capture(forceRefresh);
     }
 
     @Override
     public boolean isReady() {
-        return true;
+        return snapshot != null;
     }
 
     @Override
     public @NotNull BlockData getData(@NotNull IntVector position) {
-        return position.getBlock(destinationWorld).getBlockData();
+        return snapshot.getData(position);
+    }
+
+    @Override
+    public @NotNull BlockData getData(int x, int y, int z) {
+        return snapshot.getData(x, y, z);
+    }
+
+    @Override
+    public void close() {
+        region.release();
     }
 }
@@ -0,0 +1,112 @@
+package com.lauriethefish.betterportals.bukkit.block.grid;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
+import lombok.Getter;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the origin, destination and rendered state of every block around a portal in primitive arrays.
+ * Each array is indexed by the array map index of the block (see {@link com.lauriethefish.betterportals.bukkit.block.FloodFillBlockMap}),
+ * and holds an ID within the grid's {@link BlockStatePalette}.
+ * This avoids keeping several objects alive for every block reached by the flood fill.
+ */
+public class BlockStateGrid {
+    @Getter private final BlockStatePalette palette;
+
+    private final short[] originStates;
+    private final short[] destStates;
+    private final short[] renderedStates;
+
+    public BlockStateGrid(int length, WrappedBlockDataPool dataPool) {
+        this.palette = new BlockStatePalette(dataPool);
+        this.originStates = new short[length];
+        this.destStates = new short[length];
+        this.renderedStates = new short[length];
+    }
+
+    public int getOriginId(int index) {
+        return originStates[index] & 0xFFFF;
+    }
+
+    public int getDestId(int index) {
+        return destStates[index] & 0xFFFF;
+    }
+
+    public int getRenderedId(int index) {
+        return renderedStates[index] & 0xFFFF;
+    }
+
+    public void setOriginId(int index, int id) {
+        originStates[index] = (short) id;
+    }
+
+    public void setDestId(int index, int id) {
+        destStates[index] = (short) id;
+    }
+
+    public void setRenderedId(int index, int id) {
+        renderedStates[index] = (short) id;
+    }
+
+    /**
+     * Sets the origin data of the block at <code>index</code>.
+     * @param index Array map index of the block
+     * @param data The new origin data
+     * @return Whether the origin data changed
+     */
+    public boolean setOrigin(int index, @NotNull BlockData data) {
+        int id = palette.getId(data);
+        if(getOriginId(index) == id) {return false;}
+
+        setOriginId(index, id);
+        return true;
+    }
+
+    /**
+     * Sets the (unrotated) destination data of the block at <code>index</code>.
+     * @param index Array map index of the block
+     * @param data The new destination data
+     * @return Whether the destination data changed
+     */
+    public boolean setDest(int index, @NotNull BlockData data) {
+        int id = palette.getId(data);
+        if(getDestId(index) == id) {return false;}
+
+        setDestId(index, id);
+        return true;
+    }
+
+    public void setRendered(int index, @NotNull BlockData data) {
+        setRenderedId(index, palette.getId(data));
+    }
+
+    public void setRendered(int index, @NotNull WrappedBlockData data) {
+        setRenderedId(index, palette.getId(data));
+    }
+
+    public @Nullable BlockData getOrigin(int index) {
+        return palette.getState(getOriginId(index));
+    }
+
+    public @Nullable BlockData getDest(int index) {
+        return palette.getState(getDestId(index));
+    }
+
+    public @Nullable WrappedBlockData getWrappedOrigin(int index) {
+        return palette.getWrapped(getOriginId(index));
+    }
+
+    public @Nullable WrappedBlockData getWrappedRendered(int index) {
+        return palette.getWrapped(getRenderedId(index));
+    }
+
+    /**
+     * @return Whether the origin and destination state of the block at <code>index</code> are equal
+     */
+    public boolean isOriginSameAsDest(int index) {
+        return getOriginId(index) == getDestId(index);
+    }
+}
@@ -0,0 +1,127 @@
+package com.lauriethefish.betterportals.bukkit.block.grid;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Maps each distinct block state used by one block map to a small integer ID, so that the states can be stored in primitive arrays.
+ * ID 0 is reserved to mean that no state has been set.
+ * Adding states must only happen on one thread at a time, but the states can be read from any thread.
+ */
+public class BlockStatePalette {
+    /**
+     * The maximum number of states, since IDs are stored as unsigned shorts.
+     */
+    public static final int MAX_STATES = 0xFFFF;
+
+    private final WrappedBlockDataPool dataPool;
+
+    private final Map<BlockData, Integer> blockDataIds = new HashMap<>();
+    // Background, light and rotated data only exist as a ProtocolLib wrapper, and the same instance is used each time
+    private final Map<WrappedBlockData, Integer> wrappedOnlyIds = new IdentityHashMap<>();
+
+    private volatile BlockData[] states = new BlockData[16];
+    private volatile WrappedBlockData[] wrappedStates = new WrappedBlockData[16];
+    private int size = 1;
+
+    public BlockStatePalette(WrappedBlockDataPool dataPool) {
+        this.dataPool = dataPool;
+    }
+
+    /**
+     * Finds the ID of <code>data</code>, adding it to the palette if it is not already present.
+     * @param data The block data to find the ID of
+     * @return The ID of the data
+     */
+    public int getId(@NotNull BlockData data) {
+        Integer existing = blockDataIds.get(data);
+        if(existing != null) {
+            return existing;
+        }
+
+        int id = addEntry(data, null);
+        blockDataIds.put(data, id);
+        return id;
+    }
+
+    /**
+     * Finds the ID of <code>data</code>, adding it to the palette if it is not already present.
+     * This is intended for data that has no Bukkit representation, e.g. the background block or cached rotated states. Wrappers are compared by identity.
+     * @param data The wrapped block data to find the ID of
+     * @return The ID of the data
+     */
+    public int getId(@NotNull WrappedBlockData data) {
+        Integer existing = wrappedOnlyIds.get(data);
+        if(existing != null) {
+            return existing;
+        }
+
+        int id = addEntry(null, data);
+        wrappedOnlyIds.put(data, id);
+        return id;
+    }
+
+    private int addEntry(@Nullable BlockData data, @Nullable WrappedBlockData wrapped) {
+        if(size > MAX_STATES) {
+            throw new IllegalStateException("Block state palette is full");
+        }
+
+        BlockData[] newStates = states;
+        WrappedBlockData[] newWrappedStates = wrappedStates;
+        if(size == newStates.length) {
+            newStates = Arrays.copyOf(newStates, newStates.length * 2);
+            newWrappedStates = Arrays.copyOf(newWrappedStates, newWrappedStates.length * 2);
+        }
+
+        int id = size++;
+        newStates[id] = data;
+        newWrappedStates[id] = wrapped;
+
+        // Publish the arrays after the entry is written so that other threads always see a complete entry
+        wrappedStates = newWrappedStates;
+        states = newStates;
+        return id;
+    }
+
+    /**
+     * @param id The ID of the state
+     * @return The Bukkit data with this ID, or null if the ID is 0 or the state only exists as a wrapper
+     */
+    public @Nullable BlockData getState(int id) {
+        return states[id];
+    }
+
+    /**
+     * Finds the ProtocolLib wrapper of the state with ID <code>id</code>.
+     * Wrappers are found from the {@link WrappedBlockDataPool} lazily, so can be compared by identity.
+     * @param id The ID of the state
+     * @return The wrapped data, or null if the ID is 0
+     */
+    public @Nullable WrappedBlockData getWrapped(int id) {
+        WrappedBlockData[] currentWrapped = wrappedStates;
+        WrappedBlockData wrapped = currentWrapped[id];
+        if(wrapped != null || id == 0) {
+            return wrapped;
+        }
+
+        // Two threads may wrap the same state at once, but this is harmless since the pool returns the same instance
+        wrapped = dataPool.intern(states[id]);
+        currentWrapped[id] = wrapped;
+        return wrapped;
+    }
+
+    /**
+     * @return The number of states in the palette, including the reserved empty state
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,40 @@
+package com.lauriethefish.betterportals.bukkit.block.grid;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
+import lombok.Getter;
+
+/**
+ * A view of one block within a {@link BlockStateGrid}.
+ * These are only created for blocks that are actually viewable, the grid holds the data for everything else.
+ */
+public class GridBlockInfo implements IViewableBlockInfo {
+    private final BlockStateGrid grid;
+    @Getter private final int index;
+    @Getter private final IntVector originPos;
+    @Getter private volatile boolean removed = false;
+
+    public GridBlockInfo(BlockStateGrid grid, int index, IntVector originPos) {
+        this.grid = grid;
+        this.index = index;
+        this.originPos = originPos;
+    }
+
+    /**
+     * Marks that this block has been removed from the viewable states, so that views will reset it.
+     */
+    public void markRemoved() {
+        removed = true;
+    }
+
+    @Override
+    public WrappedBlockData getOriginData() {
+        return grid.getWrappedOrigin(index);
+    }
+
+    @Override
+    public WrappedBlockData getRenderedDestData() {
+        return grid.getWrappedRendered(index);
+    }
+}
@@ -0,0 +1,52 @@
+package com.lauriethefish.betterportals.bukkit.block.grid;
+
+import java.util.Arrays;
+
+/**
+ * Stores how far the flood fill has got with each block in the array map, packed as 2 bits per block.
+ */
+public class ReachedMap {
+    /**
+     * The flood fill hasn't got to this block yet.
+     */
+    public static final int UNREACHED = 0;
+    /**
+     * The block has been reached by the flood fill.
+     */
+    public static final int REACHED = 1;
+    /**
+     * The block has been reached and added to the viewable states.
+     */
+    public static final int VIEWABLE = 2;
+
+    private static final int BLOCKS_PER_WORD = 32;
+
+    private final long[] words;
+    private final int length;
+
+    public ReachedMap(int length) {
+        this.length = length;
+        this.words = new long[(length + BLOCKS_PER_WORD - 1) / BLOCKS_PER_WORD];
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int get(int index) {
+        return (int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3;
+    }
+
+    public void set(int index, int value) {
+        int shift = (index & 31) << 1;
+        int wordIndex = index >>> 5;
+        words[wordIndex] = (words[wordIndex] & ~(3L << shift)) | ((long) value << shift);
+    }
+
+    /**
+     * Sets every block back to {@link ReachedMap#UNREACHED}.
+     */
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+}
@@ -0,0 +1,229 @@
+package com.lauriethefish.betterportals.bukkit.block.journal;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.block.snapshot.ChunkSnapshotCache;
+import com.lauriethefish.betterportals.bukkit.block.tile.TileEntityIndex;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.BlockState;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
+import org.bukkit.event.player.PlayerBucketFillEvent;
+import org.bukkit.event.world.StructureGrowEvent;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+@Singleton
+public class BlockChangeJournal implements IBlockChangeJournal, Listener {
+    private final Logger logger;
+    private final ChunkSnapshotCache snapshotCache;
+    private final TileEntityIndex tileEntityIndex;
+
+    private final Map<UUID, List<DirtyRegion>> regionsByWorld = new HashMap<>();
+
+    @Inject
+    public BlockChangeJournal(IEventRegistrar eventRegistrar, Logger logger, ChunkSnapshotCache snapshotCache, TileEntityIndex tileEntityIndex) {
+        this.logger = logger;
+        this.snapshotCache = snapshotCache;
+        this.tileEntityIndex = tileEntityIndex;
+
+        eventRegistrar.register(this);
+    }
+
+    @Override
+    public @NotNull DirtyRegion watch(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max) {
+        logger.finer("Watching for block changes from %s to %s", min, max);
+        DirtyRegion region = new DirtyRegion(world, min, max);
+        regionsByWorld.computeIfAbsent(world.getUID(), uid -> new ArrayList<>()).add(region);
+        return region;
+    }
+
+    @Override
+    public void unwatch(@NotNull DirtyRegion region) {
+        UUID worldId = region.getWorld().getUID();
+        List<DirtyRegion> regions = regionsByWorld.get(worldId);
+        if(regions == null) {return;}
+
+        regions.remove(region);
+        // Avoid leaking memory for worlds with no active portals
+        if(regions.isEmpty()) {
+            regionsByWorld.remove(worldId);
+        }
+    }
+
+    /**
+     * Marks the position as dirty in every region containing it, without invalidating any cached block data.
+     * @return Whether any regions are watched in the world
+     */
+    private boolean markRegionsDirty(World world, int x, int y, int z) {
+        List<DirtyRegion> regions = regionsByWorld.get(world.getUID());
+        if(regions == null) {return false;}
+
+        for(DirtyRegion region : regions) {
+            region.markDirty(x, y, z);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a position where a block has actually changed, so the cached data for it must be thrown away.
+     */
+    private void markDirty(World world, int x, int y, int z) {
+        // Snapshots and tile entities are only cached for areas watched by block maps, so there's no need to invalidate them in other worlds
+        if(!markRegionsDirty(world, x, y, z)) {return;}
+
+        snapshotCache.invalidate(world, x, z);
+        tileEntityIndex.invalidate(world, x, y, z);
+    }
+
+    private void markDirty(Block block) {
+        markDirty(block.getWorld(), block.getX(), block.getY(), block.getZ());
+    }
+
+    private void markDirty(BlockState state) {
+        markDirty(state.getWorld(), state.getX(), state.getY(), state.getZ());
+    }
+
+    /**
+     * Marks both the old and new positions of blocks moved by a piston.
+     */
+    private void markMoved(Block piston, List<Block> blocks, BlockFace direction) {
+        markDirty(piston.getRelative(direction));
+        for(Block block : blocks) {
+            markDirty(block);
+            markDirty(block.getRelative(direction));
+        }
+    }
+
+    /**
+     * Also handles beds and doors, which place several blocks at once
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlace(BlockPlaceEvent event) {
+        markDirty(event.getBlock());
+        if(event instanceof BlockMultiPlaceEvent) {
+            ((BlockMultiPlaceEvent) event).getReplacedBlockStates().forEach(this::markDirty);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreak(BlockBreakEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    /**
+     * Physics updates are sent to the neighbours of a changed block, and are very frequent.
+     * The source block is the one that changed. The updated block usually stays the same, and if it does change then it'll cause physics updates of its own, so cached data is only invalidated for the source.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPhysics(BlockPhysicsEvent event) {
+        Block block = event.getBlock();
+        markRegionsDirty(block.getWorld(), block.getX(), block.getY(), block.getZ());
+        markDirty(event.getSourceBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        markDirty(event.getBlock());
+        event.blockList().forEach(this::markDirty);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        event.blockList().forEach(this::markDirty);
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        markMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        markMoved(event.getBlock(), event.getBlocks(), event.getDirection());
+    }
+
+    /**
+     * Called when liquids flow, or dragon eggs teleport
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        markDirty(event.getBlock());
+        markDirty(event.getToBlock());
+    }
+
+    /**
+     * Also handles blocks forming and spreading, as those events extend this one
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockGrow(BlockGrowEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockFade(BlockFadeEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onLeavesDecay(LeavesDecayEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockRedstone(BlockRedstoneEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    /**
+     * Handles falling blocks, endermen, crop trampling, etc.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    /**
+     * Sign text is tile entity data, so doesn't change the block itself
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onSignChange(SignChangeEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketEmpty(PlayerBucketEmptyEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBucketFill(PlayerBucketFillEvent event) {
+        markDirty(event.getBlock());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onStructureGrow(StructureGrowEvent event) {
+        event.getBlocks().forEach(this::markDirty);
+    }
+}
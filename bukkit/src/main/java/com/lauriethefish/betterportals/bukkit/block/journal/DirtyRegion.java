@@ -0,0 +1,76 @@
+package com.lauriethefish.betterportals.bukkit.block.journal;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import lombok.Getter;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.BitSet;
+import java.util.function.Consumer;
+
+/**
+ * A box within a world that is watched for block changes by the {@link IBlockChangeJournal}.
+ * Changed positions are stored as one bit per block within the box, so marking the same block multiple times costs nothing extra.
+ * Should only be used on the main thread.
+ */
+public class DirtyRegion {
+    @Getter private final World world;
+    private final int minX;
+    private final int minY;
+    private final int minZ;
+    private final int sizeX;
+    private final int sizeY;
+    private final int sizeZ;
+
+    private final BitSet dirtyPositions = new BitSet();
+
+    DirtyRegion(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max) {
+        this.world = world;
+        this.minX = min.getX();
+        this.minY = min.getY();
+        this.minZ = min.getZ();
+        this.sizeX = max.getX() - minX + 1;
+        this.sizeY = max.getY() - minY + 1;
+        this.sizeZ = max.getZ() - minZ + 1;
+    }
+
+    /**
+     * @return Whether the given position is within this region
+     */
+    public boolean contains(int x, int y, int z) {
+        x -= minX;
+        y -= minY;
+        z -= minZ;
+        return x >= 0 && y >= 0 && z >= 0 && x < sizeX && y < sizeY && z < sizeZ;
+    }
+
+    /**
+     * Marks the given position as changed. Does nothing if the position isn't within this region.
+     */
+    void markDirty(int x, int y, int z) {
+        if(!contains(x, y, z)) {return;}
+
+        dirtyPositions.set((x - minX) + (z - minZ) * sizeX + (y - minY) * sizeX * sizeZ);
+    }
+
+    public boolean isDirty() {
+        return !dirtyPositions.isEmpty();
+    }
+
+    /**
+     * Calls <code>action</code> with each position changed since the last call, then clears the changed positions.
+     * @param action Called with the absolute position of each changed block
+     */
+    public void drain(@NotNull Consumer<IntVector> action) {
+        int layerSize = sizeX * sizeZ;
+        for(int i = dirtyPositions.nextSetBit(0); i >= 0; i = dirtyPositions.nextSetBit(i + 1)) {
+            int y = i / layerSize;
+            int z = (i - y * layerSize) / sizeX;
+            int x = i - y * layerSize - z * sizeX;
+
+            action.accept(new IntVector(x + minX, y + minY, z + minZ));
+        }
+
+        dirtyPositions.clear();
+    }
+}
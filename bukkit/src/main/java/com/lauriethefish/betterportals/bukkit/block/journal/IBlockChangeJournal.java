@@ -0,0 +1,26 @@
+package com.lauriethefish.betterportals.bukkit.block.journal;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Listens for block changes and records them in any watched {@link DirtyRegion}s, so that block maps only need to re-check the blocks that have actually changed.
+ * Some changes (e.g. those made by other plugins) don't call events, so this can't be relied on completely.
+ */
+public interface IBlockChangeJournal {
+    /**
+     * Starts recording the block changes within the box from <code>min</code> to <code>max</code>.
+     * @param world World of the box
+     * @param min Minimum corner of the box (inclusive)
+     * @param max Maximum corner of the box (inclusive)
+     * @return The region that changes will be recorded in
+     */
+    @NotNull DirtyRegion watch(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max);
+
+    /**
+     * Stops recording block changes in <code>region</code>.
+     * @param region The region to stop watching
+     */
+    void unwatch(@NotNull DirtyRegion region);
+}
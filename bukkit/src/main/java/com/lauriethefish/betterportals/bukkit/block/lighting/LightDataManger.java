@@ -1,6 +1,7 @@
 package com.lauriethefish.betterportals.bukkit.block.lighting;
 
 import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import org.bukkit.Bukkit;
@@ -15,10 +16,12 @@ import jakarta.inject.Singleton;
 @Singleton
 public class LightDataManger implements ILightDataManager   {
     private final RenderConfig renderConfig;
+    private final WrappedBlockDataPool dataPool;
 
     @Inject
-    public LightDataManger(RenderConfig renderConfig) {
+    public LightDataManger(RenderConfig renderConfig, WrappedBlockDataPool dataPool) {
         this.renderConfig = renderConfig;
+        this.dataPool = dataPool;
     }
 
     private int getLightLevel(IPortal portal) {
@@ -60,7 +63,7 @@ public class LightDataManger implements ILightDataManager   {
         }   else    {
             Light lightBlockData = (Light) Bukkit.createBlockData(Material.LIGHT);
             lightBlockData.setLevel(lightLevel);
-            return WrappedBlockData.createData(lightBlockData);
+            return dataPool.intern(lightBlockData);
         }
     }
 }
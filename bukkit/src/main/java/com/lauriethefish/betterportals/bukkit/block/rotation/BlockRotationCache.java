@@ -0,0 +1,96 @@
+package com.lauriethefish.betterportals.bukkit.block.rotation;
+
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
+import com.lauriethefish.betterportals.bukkit.math.IntTransform;
+import com.lauriethefish.betterportals.bukkit.math.Matrix;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the result of rotating each block state with the {@link IBlockRotator}, already wrapped for sending to players.
+ * Portals only use a few distinct rotations, and there are a limited number of block states, so after the first few updates rotating a block is just a map lookup.
+ * This is shared by all portals, and is safe to use from any thread.
+ */
+@Singleton
+public class BlockRotationCache {
+    /**
+     * The maximum number of rotated states stored for each rotation.
+     * This is more than enough for the states that portals usually see.
+     */
+    private static final int MAX_STATES_PER_ROTATION = 16384;
+
+    private final IBlockRotator blockRotator;
+    private final WrappedBlockDataPool dataPool;
+    private final Logger logger;
+
+    private final Map<IntTransform, Rotation> rotations = new ConcurrentHashMap<>();
+
+    @Inject
+    public BlockRotationCache(IBlockRotator blockRotator, WrappedBlockDataPool dataPool, Logger logger) {
+        this.blockRotator = blockRotator;
+        this.dataPool = dataPool;
+        this.logger = logger;
+    }
+
+    /**
+     * Finds the cached rotation for <code>matrix</code>. Portals with the same rotation will share the same instance.
+     * @param matrix The rotation matrix. This must only rotate by multiples of 90 degrees
+     * @return The cached rotation
+     */
+    public @NotNull Rotation getRotation(@NotNull Matrix matrix) {
+        return rotations.computeIfAbsent(IntTransform.fromMatrix(matrix), key -> new Rotation(matrix));
+    }
+
+    public class Rotation {
+        private final Matrix matrix;
+        private final Map<BlockData, WrappedBlockData> rotatedStates = new ConcurrentHashMap<>();
+
+        private Rotation(Matrix matrix) {
+            this.matrix = matrix;
+        }
+
+        /**
+         * Rotates <code>data</code>, or finds the previous result if it has already been rotated.
+         * @param data The data to rotate. This must not be modified afterwards
+         * @return The wrapped rotated data, from the {@link WrappedBlockDataPool}
+         */
+        public @NotNull WrappedBlockData rotate(@NotNull BlockData data) {
+            WrappedBlockData result = rotatedStates.get(data);
+            if(result != null) {
+                return result;
+            }
+
+            if(rotatedStates.size() >= MAX_STATES_PER_ROTATION) {
+                evict();
+            }
+
+            // The pool makes sure that the same instance is returned even if two threads rotate the same state at once
+            result = dataPool.intern(blockRotator.rotateByMatrix(matrix, data));
+            rotatedStates.put(data, result);
+            return result;
+        }
+
+        /**
+         * Removes a quarter of the cached states to make space for new ones.
+         * The order isn't important, since the states that are still in use are quickly added back.
+         */
+        private void evict() {
+            logger.fine("Evicting cached block rotations");
+
+            int toRemove = MAX_STATES_PER_ROTATION / 4;
+            Iterator<BlockData> iterator = rotatedStates.keySet().iterator();
+            while(iterator.hasNext() && toRemove-- > 0) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+}
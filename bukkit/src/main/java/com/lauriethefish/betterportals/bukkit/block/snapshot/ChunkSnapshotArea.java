@@ -0,0 +1,82 @@
+package com.lauriethefish.betterportals.bukkit.block.snapshot;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Holds {@link ChunkSnapshot}s of every chunk within a box in a world.
+ * These are captured on the main thread by a {@link ChunkSnapshotCache.Region}, but can then be read from any thread.
+ * This allows the flood fill to run without touching the Bukkit API.
+ */
+public class ChunkSnapshotArea {
+    private final int minChunkX;
+    private final int minChunkZ;
+    private final int chunkCountX;
+    private final int chunkCountZ;
+
+    private final int minHeight;
+    private final int maxHeight;
+
+    private final ChunkSnapshot[] snapshots;
+    private final BlockData airData = Material.AIR.createBlockData();
+
+    ChunkSnapshotArea(World world, int minChunkX, int minChunkZ, int chunkCountX, int chunkCountZ, ChunkSnapshot[] snapshots) {
+        this.minChunkX = minChunkX;
+        this.minChunkZ = minChunkZ;
+        this.chunkCountX = chunkCountX;
+        this.chunkCountZ = chunkCountZ;
+        this.minHeight = HeightUtil.getMinHeight(world);
+        this.maxHeight = HeightUtil.getMaxHeight(world);
+        this.snapshots = snapshots;
+    }
+
+    private ChunkSnapshot getSnapshot(int x, int z) {
+        int chunkX = (x >> 4) - minChunkX;
+        int chunkZ = (z >> 4) - minChunkZ;
+        if(chunkX < 0 || chunkZ < 0 || chunkX >= chunkCountX || chunkZ >= chunkCountZ) {
+            throw new IllegalArgumentException(String.format("Position (%d, %d) is outside of the captured area", x, z));
+        }
+
+        return snapshots[chunkX * chunkCountZ + chunkZ];
+    }
+
+    /**
+     * Reads the data at the given coordinates.
+     * Positions outside of the world's height limits are treated as air, like the Bukkit API does.
+     * @throws IllegalArgumentException If the X or Z coordinate is outside of the captured area
+     * @return The block data at this position
+     */
+    public @NotNull BlockData getData(int x, int y, int z) {
+        if(y < minHeight || y >= maxHeight) {
+            return airData;
+        }
+
+        return getSnapshot(x, z).getBlockData(x & 15, y, z & 15);
+    }
+
+    public @NotNull BlockData getData(@NotNull IntVector position) {
+        return getData(position.getX(), position.getY(), position.getZ());
+    }
+
+    /**
+     * Reads the material at the given coordinates.
+     * @throws IllegalArgumentException If the X or Z coordinate is outside of the captured area
+     * @return The material of the block at this position
+     */
+    public @NotNull Material getType(int x, int y, int z) {
+        if(y < minHeight || y >= maxHeight) {
+            return Material.AIR;
+        }
+
+        return getSnapshot(x, z).getBlockType(x & 15, y, z & 15);
+    }
+
+    public @NotNull Material getType(@NotNull IntVector position) {
+        return getType(position.getX(), position.getY(), position.getZ());
+    }
+}
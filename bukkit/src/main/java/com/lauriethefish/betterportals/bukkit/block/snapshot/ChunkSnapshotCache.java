@@ -0,0 +1,141 @@
+package com.lauriethefish.betterportals.bukkit.block.snapshot;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.chunk.chunkpos.ChunkPosition;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Stores one {@link ChunkSnapshot} per chunk for every area watched by a block map or block data fetcher.
+ * Portals that overlap the same area (e.g. both sides of a two-way portal, or many portals facing one spawn area) share the same snapshots.
+ * Each chunk is reference counted by the {@link Region}s that contain it, and is removed once the last region is released.
+ * Snapshots are only re-captured when the {@link com.lauriethefish.betterportals.bukkit.block.journal.IBlockChangeJournal} finds a change in their chunk, or a refresh is forced.
+ * Should only be used on the main thread, although the captured {@link ChunkSnapshotArea}s can be read from any thread.
+ */
+@Singleton
+public class ChunkSnapshotCache {
+    private static class Entry {
+        private ChunkSnapshot snapshot;
+        private int capturedTick;
+        private int refCount;
+    }
+
+    private final Logger logger;
+
+    private final Map<ChunkPosition, Entry> entries = new HashMap<>();
+
+    @Inject
+    public ChunkSnapshotCache(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Starts caching the chunks containing the box from <code>min</code> to <code>max</code>.
+     * @param world World to cache the chunks in
+     * @param min Minimum corner of the box (inclusive)
+     * @param max Maximum corner of the box (inclusive)
+     * @return A region used to capture the area. This must be released once it is no longer in use
+     */
+    public @NotNull Region retain(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max) {
+        Region region = new Region(world, min.getX() >> 4, min.getZ() >> 4, max.getX() >> 4, max.getZ() >> 4);
+        region.forEachChunk(position -> entries.computeIfAbsent(position, p -> new Entry()).refCount++);
+        return region;
+    }
+
+    /**
+     * Marks the snapshot of the chunk containing this block as out of date, if it is cached.
+     */
+    public void invalidate(@NotNull World world, int blockX, int blockZ) {
+        Entry entry = entries.get(new ChunkPosition(world, blockX >> 4, blockZ >> 4));
+        if(entry != null) {
+            entry.snapshot = null;
+        }
+    }
+
+    private ChunkSnapshot getSnapshot(ChunkPosition position, boolean forceRefresh) {
+        Entry entry = entries.get(position);
+        int currentTick = Bukkit.getCurrentTick();
+
+        // A forced refresh only needs to happen once per tick, even if the area is shared
+        if(entry.snapshot == null || (forceRefresh && entry.capturedTick != currentTick)) {
+            entry.snapshot = position.getChunk().getChunkSnapshot(false, false, false);
+            entry.capturedTick = currentTick;
+        }
+
+        return entry.snapshot;
+    }
+
+    /**
+     * An area of chunks that are kept in the cache until {@link Region#release()} is called.
+     */
+    public class Region {
+        private final World world;
+        private final int minChunkX;
+        private final int minChunkZ;
+        private final int chunkCountX;
+        private final int chunkCountZ;
+        private boolean isReleased = false;
+
+        private Region(World world, int minChunkX, int minChunkZ, int maxChunkX, int maxChunkZ) {
+            this.world = world;
+            this.minChunkX = minChunkX;
+            this.minChunkZ = minChunkZ;
+            this.chunkCountX = maxChunkX - minChunkX + 1;
+            this.chunkCountZ = maxChunkZ - minChunkZ + 1;
+        }
+
+        private void forEachChunk(Consumer<ChunkPosition> action) {
+            for(int x = 0; x < chunkCountX; x++) {
+                for(int z = 0; z < chunkCountZ; z++) {
+                    action.accept(new ChunkPosition(world, minChunkX + x, minChunkZ + z));
+                }
+            }
+        }
+
+        /**
+         * Captures the current state of this region, re-using any cached snapshots that are still up to date.
+         * @param forceRefresh Whether to re-capture every chunk, in case of changes that the journal didn't find
+         * @return The captured area
+         */
+        public @NotNull ChunkSnapshotArea capture(boolean forceRefresh) {
+            if(isReleased) {
+                throw new IllegalStateException("Attempted to capture a released region");
+            }
+
+            ChunkSnapshot[] snapshots = new ChunkSnapshot[chunkCountX * chunkCountZ];
+            for(int x = 0; x < chunkCountX; x++) {
+                for(int z = 0; z < chunkCountZ; z++) {
+                    snapshots[x * chunkCountZ + z] = getSnapshot(new ChunkPosition(world, minChunkX + x, minChunkZ + z), forceRefresh);
+                }
+            }
+
+            return new ChunkSnapshotArea(world, minChunkX, minChunkZ, chunkCountX, chunkCountZ, snapshots);
+        }
+
+        /**
+         * Stops caching the chunks in this region, unless another region also contains them.
+         * Areas already captured from this region can still be read.
+         */
+        public void release() {
+            if(isReleased) {return;}
+            isReleased = true;
+
+            forEachChunk(position -> {
+                Entry entry = entries.get(position);
+                if(--entry.refCount == 0) {
+                    entries.remove(position);
+                }
+            });
+            logger.finer("Released cached region. Cached chunk count: %d", entries.size());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.lauriethefish.betterportals.bukkit.block.tile;
+
+import com.comphenix.protocol.events.PacketContainer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.nms.BlockDataUtil;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Stores the update packets of the tile entities within the areas viewed by portals, indexed by chunk section.
+ * Packets are only rebuilt when their section has been invalidated by the {@link com.lauriethefish.betterportals.bukkit.block.journal.IBlockChangeJournal}, or a refresh is forced.
+ * The content of rebuilt packets is hashed, and the previous packet instance is kept if it hasn't changed, so the same packet is shared by every portal and player viewing the tile entity.
+ * Should only be used on the main thread.
+ */
+@Singleton
+public class TileEntityIndex {
+    private static final class SectionKey {
+        private final UUID worldId;
+        private final int x;
+        private final int y;
+        private final int z;
+
+        private SectionKey(UUID worldId, int x, int y, int z) {
+            this.worldId = worldId;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(obj == this) {return true;}
+            if(!(obj instanceof SectionKey)) {return false;}
+
+            SectionKey other = (SectionKey) obj;
+            return x == other.x && y == other.y && z == other.z && worldId.equals(other.worldId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(worldId, x, y, z);
+        }
+    }
+
+    private static class TileEntry {
+        private PacketContainer packet;
+        private int contentHash;
+        private int version;
+    }
+
+    private static class Section {
+        private final Map<IntVector, TileEntry> tileEntities = new HashMap<>();
+        // Incremented whenever the section changes, entries built with an older version are rebuilt when next used
+        private int version = 0;
+        private int lastRefreshTick = -1;
+        private int refCount = 0;
+    }
+
+    private final Logger logger;
+
+    private final Map<SectionKey, Section> sections = new HashMap<>();
+
+    @Inject
+    public TileEntityIndex(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Starts indexing the tile entities within the box from <code>min</code> to <code>max</code>.
+     * @param world World of the box
+     * @param min Minimum corner of the box (inclusive)
+     * @param max Maximum corner of the box (inclusive)
+     * @return A region used to find the packets within the box. This must be released once it is no longer in use
+     */
+    public @NotNull Region retain(@NotNull World world, @NotNull IntVector min, @NotNull IntVector max) {
+        Region region = new Region(world, min, max);
+        region.forEachSection(key -> sections.computeIfAbsent(key, k -> new Section()).refCount++);
+        return region;
+    }
+
+    /**
+     * Marks the tile entities in the section containing this block as possibly changed, if the section is indexed.
+     */
+    public void invalidate(@NotNull World world, int blockX, int blockY, int blockZ) {
+        Section section = sections.get(new SectionKey(world.getUID(), blockX >> 4, blockY >> 4, blockZ >> 4));
+        if(section != null) {
+            section.version++;
+        }
+    }
+
+    public class Region {
+        private final World world;
+        private final UUID worldId;
+        private final int minSectionX;
+        private final int minSectionY;
+        private final int minSectionZ;
+        private final int maxSectionX;
+        private final int maxSectionY;
+        private final int maxSectionZ;
+        private boolean isReleased = false;
+
+        private Region(World world, IntVector min, IntVector max) {
+            this.world = world;
+            this.worldId = world.getUID();
+            this.minSectionX = min.getX() >> 4;
+            this.minSectionY = min.getY() >> 4;
+            this.minSectionZ = min.getZ() >> 4;
+            this.maxSectionX = max.getX() >> 4;
+            this.maxSectionY = max.getY() >> 4;
+            this.maxSectionZ = max.getZ() >> 4;
+        }
+
+        private void forEachSection(Consumer<SectionKey> action) {
+            for(int x = minSectionX; x <= maxSectionX; x++) {
+                for(int y = minSectionY; y <= maxSectionY; y++) {
+                    for(int z = minSectionZ; z <= maxSectionZ; z++) {
+                        action.accept(new SectionKey(worldId, x, y, z));
+                    }
+                }
+            }
+        }
+
+        /**
+         * Finds the update packet of the tile entity at <code>position</code>, rebuilding it only if its section has changed.
+         * The returned packet is shared, so must not be modified. Use {@link PacketContainer#shallowClone()} to move it elsewhere.
+         * @param position Position of the tile entity, which must be within this region
+         * @param forceRefresh Whether to rebuild the packet even if no changes have been recorded. This happens at most once per tick for each section
+         * @return The update packet, or null if there is no tile entity at this position
+         */
+        public @Nullable PacketContainer getPacket(@NotNull IntVector position, boolean forceRefresh) {
+            if(isReleased) {
+                throw new IllegalStateException("Attempted to get a tile entity packet from a released region");
+            }
+
+            Section section = sections.get(new SectionKey(worldId, position.getX() >> 4, position.getY() >> 4, position.getZ() >> 4));
+            if(section == null) {
+                throw new IllegalArgumentException("Position " + position + " is outside of the indexed region");
+            }
+
+            int currentTick = Bukkit.getCurrentTick();
+            if(forceRefresh && section.lastRefreshTick != currentTick) {
+                section.lastRefreshTick = currentTick;
+                section.version++;
+            }
+
+            TileEntry entry = section.tileEntities.get(position);
+            if(entry != null && entry.version == section.version) {
+                return entry.packet;
+            }
+
+            PacketContainer newPacket = BlockDataUtil.getUpdatePacket(position.getBlock(world).getState());
+            if(newPacket == null) {
+                section.tileEntities.remove(position);
+                return null;
+            }
+
+            int contentHash = BlockDataUtil.getContentHash(newPacket);
+            if(entry == null) {
+                entry = new TileEntry();
+                section.tileEntities.put(position, entry);
+            }
+
+            // Keep the existing packet if the content is the same, so that it isn't needlessly replaced everywhere it's used
+            if(entry.packet == null || entry.contentHash != contentHash) {
+                logger.finer("Tile entity at %s changed", position);
+                entry.packet = newPacket;
+                entry.contentHash = contentHash;
+            }
+            entry.version = section.version;
+            return entry.packet;
+        }
+
+        /**
+         * Stops indexing the sections in this region, unless another region also contains them.
+         */
+        public void release() {
+            if(isReleased) {return;}
+            isReleased = true;
+
+            forEachSection(key -> {
+                Section section = sections.get(key);
+                if(--section.refCount == 0) {
+                    sections.remove(key);
+                }
+            });
+        }
+    }
+}
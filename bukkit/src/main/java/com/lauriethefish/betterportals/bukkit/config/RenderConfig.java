@@ -5,6 +5,7 @@ import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalPosition;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import lombok.Getter;
 import org.bukkit.Material;
@@ -23,6 +24,7 @@ import java.util.Objects;
 @Getter
 public class RenderConfig {
     private final Logger logger;
+    private final WrappedBlockDataPool dataPool;
 
     private double minXZ;
     private double maxXZ;
@@ -43,6 +45,8 @@ public class RenderConfig {
 
     private Vector collisionBox;
     private int blockUpdateInterval;
+    private int fullBlockCheckInterval;
+    private int initialFillBudget; // Microseconds per tick, or 0 to do the initial fill at once
 
     private int worldSwitchWaitTime;
 
@@ -51,18 +55,25 @@ public class RenderConfig {
     private int blockStateRefreshInterval;
 
     private int entityMetadataUpdateInterval;
+    private double entityVelocityThreshold; // Blocks per tick
 
     private int lightSimulationInterval;
     private int forceLightLevel;
 
+    private int blockMapWorkerThreads;
+    private int blockViewUpdateThreads;
+    private int maxBlockChangesPerTick; // Per player, or 0 for no limit
+    private boolean chunkPacketSplicing;
+
     @Inject
-    public RenderConfig(Logger logger) {
+    public RenderConfig(Logger logger, WrappedBlockDataPool dataPool) {
         this.logger = logger;
+        this.dataPool = dataPool;
     }
 
     private @Nullable WrappedBlockData parseBlockData(String str) {
         try {
-            return WrappedBlockData.createData(Material.valueOf(str.toUpperCase(Locale.ROOT)));
+            return dataPool.intern(Material.valueOf(str.toUpperCase(Locale.ROOT)));
         }   catch(IllegalArgumentException ex) {
             logger.warning("Unknown material for portal edge block " + str);
             logger.warning("Using default of black concrete");
@@ -86,6 +97,10 @@ public class RenderConfig {
 
         lightSimulationInterval = file.getInt("lightBlockInterval");
         forceLightLevel = file.getInt("forceLightLevel");
+        blockMapWorkerThreads = file.getInt("blockMapWorkerThreads");
+        blockViewUpdateThreads = file.getInt("blockViewUpdateThreads");
+        maxBlockChangesPerTick = file.getInt("maxBlockChangesPerTick");
+        chunkPacketSplicing = file.getBoolean("chunkPacketSplicing");
 
         halfFullSize = new IntVector((maxXZ - minXZ) / 2, (maxY - minY) / 2, (maxXZ - minXZ) / 2);
 
@@ -100,8 +115,11 @@ public class RenderConfig {
         if(blockUpdateInterval <= 0) {
             throw new IllegalArgumentException("Block update interval must be at least 1");
         }
+        fullBlockCheckInterval = file.getInt("portalFullBlockCheckInterval");
+        initialFillBudget = file.getInt("portalInitialFillBudget");
 
         entityMetadataUpdateInterval = file.getInt("entityMetadataUpdateInterval");
+        entityVelocityThreshold = file.getDouble("entityVelocityUpdateThreshold");
 
         worldSwitchWaitTime = file.getInt("waitTimeAfterSwitchingWorlds"); // TODO: implement or yeet
         portalBlocksHidden = file.getBoolean("hidePortalBlocks");
@@ -159,7 +177,7 @@ public class RenderConfig {
         // External world's environment types cannot be determined
         // Users can still set them specifically via the world overrides
         if(destPosition.isExternal()) {
-            return WrappedBlockData.createData(Material.BLACK_CONCRETE);
+            return dataPool.intern(Material.BLACK_CONCRETE);
         }
 
         World world = destPosition.getWorld();
@@ -179,6 +197,6 @@ public class RenderConfig {
             material = Material.BLACK_CONCRETE;
         }
 
-        return WrappedBlockData.createData(material);
+        return dataPool.intern(material);
     }
 }
@@ -14,6 +14,8 @@ import java.util.function.Consumer;
 public interface IEntityFinder {
     /**
      * Finds the nearby entities in a given area, in a box, and collects them.
+     * If <code>existing</code> is used, it is cleared and refilled in place, so the result may be the same instance that was passed in.
+     * Callers must not be iterating over <code>existing</code>, or keeping it elsewhere, while this runs.
      * @param existing An existing collection to be reused to avoid re-allocating memory. This can be null, and the implementor doesn't have to use it
      * @param location The location to find the entities from
      * @param xRadius X radius from the location
@@ -9,7 +9,18 @@ import java.util.Collection;
  * Finds the entities within the view distance of the portal, as specified in the config.
  */
 public interface IPortalEntityManager {
+    /**
+     * The returned collection can't be modified, and is refilled in place by the next entity check.
+     * It should be used on the main thread and not kept between ticks.
+     * @return The entities around the origin of the portal
+     */
     Collection<Entity> getOriginEntities();
+
+    /**
+     * The returned collection can't be modified, and is refilled in place by the next entity check.
+     * It should be used on the main thread and not kept between ticks.
+     * @return The entities around the destination of the portal, or null if the destination isn't checked
+     */
     Collection<Entity> getDestinationEntities();
 
     /**
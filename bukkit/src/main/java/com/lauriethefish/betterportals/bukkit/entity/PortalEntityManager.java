@@ -14,7 +14,6 @@ import com.lauriethefish.betterportals.bukkit.portal.predicate.IPortalPredicateM
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import com.lauriethefish.betterportals.shared.net.RequestException;
 import com.lauriethefish.betterportals.shared.net.requests.TeleportRequest;
-import lombok.Getter;
 import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
@@ -43,8 +42,11 @@ public class PortalEntityManager implements IPortalEntityManager {
 
     private final boolean requireDestination;
 
-    @Getter private Collection<Entity> destinationEntities = null;
+    // Reused by the entity finder for each check, so only unmodifiable views of it are handed out
+    private Collection<Entity> destinationEntities = null;
     private Map<Entity, Location> originEntities = null;
+    // The origin entities from before the last update, kept so that the map can be reused
+    private Map<Entity, Location> spareOriginEntities = new HashMap<>();
 
     @Inject
     public PortalEntityManager(@Assisted IPortal portal, @Assisted boolean requireDestination, MiscConfig miscConfig, RenderConfig renderConfig, IPortalPredicateManager predicateManager, Logger logger, IPortalClient
@@ -76,14 +78,21 @@ public class PortalEntityManager implements IPortalEntityManager {
             destinationEntities = getNearbyEntities(destinationEntities, portal.getDestPos());
         }
 
-        // Copy the old entities over to a new hashmap
+        // Copy the old entities over to the spare map, then swap them
         Map<Entity, Location> oldOriginEntities = originEntities;
-        originEntities = new HashMap<>();
+        originEntities = spareOriginEntities;
 
         getNearbyEntities(portal.getOriginPos(), entity -> {
             Location oldLocation = oldOriginEntities == null ? null : oldOriginEntities.get(entity);
             originEntities.put(entity, oldLocation != null ? oldLocation : entity.getLocation());
         });
+
+        if(oldOriginEntities != null) {
+            oldOriginEntities.clear();
+            spareOriginEntities = oldOriginEntities;
+        }   else    {
+            spareOriginEntities = new HashMap<>();
+        }
     }
 
     private void handleTeleportation() {
@@ -104,7 +113,7 @@ public class PortalEntityManager implements IPortalEntityManager {
             if (lastPosition != null) {
                 boolean didWalkThroughPortal = portal.getTransformations()
                         .createIntersectionChecker(lastPosition.toVector())
-                        .checkIfIntersects(currentPosition.toVector());
+                        .checkIfIntersects(currentPosition.getX(), currentPosition.getY(), currentPosition.getZ());
 
 
                 if (didWalkThroughPortal && checkCanTeleport(entity)) {
@@ -125,7 +134,12 @@ public class PortalEntityManager implements IPortalEntityManager {
     }
 
     public Collection<Entity> getOriginEntities() {
-        return originEntities.keySet();
+        return Collections.unmodifiableSet(originEntities.keySet());
+    }
+
+    @Override
+    public Collection<Entity> getDestinationEntities() {
+        return destinationEntities == null ? null : Collections.unmodifiableCollection(destinationEntities);
     }
 
     private Collection<Entity> getNearbyEntities(@Nullable Collection<Entity> existing, PortalPosition position) {
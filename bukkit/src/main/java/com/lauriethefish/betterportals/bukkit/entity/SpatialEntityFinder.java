@@ -0,0 +1,344 @@
+package com.lauriethefish.betterportals.bukkit.entity;
+
+import com.destroystokyo.paper.event.entity.EntityAddToWorldEvent;
+import com.destroystokyo.paper.event.entity.EntityRemoveFromWorldEvent;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.api.PackedBlockPosition;
+import com.lauriethefish.betterportals.bukkit.events.IEventRegistrar;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongObjectMap;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Entity;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Finds entities using a spatial hash of the entities near active portals, kept separately for each world.
+ * The chunks covered by each query are watched, and the entities within them are placed into cells the size of a chunk section.
+ * The index is updated from entity add, remove and teleport events, and from players moving between chunks.
+ * Once per tick, the cell of each indexed entity is updated from its current position.
+ * Each chunk is scanned for entities when it first becomes watched, since spawns and entities loading with chunks are found through events afterwards.
+ * Other entities can walk into a watched chunk without any event, so a ring of chunks around each query is also watched.
+ * Entities walking through the ring are indexed before they reach the queried area. The ring is rescanned often, and the other chunks rarely, in case anything was missed.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class SpatialEntityFinder implements IEntityFinder, Listener {
+    // Chunks that haven't been queried for this many ticks are no longer watched
+    private static final int UNWATCH_DELAY = 100;
+
+    // Chunks in the ring around a query are rescanned this often, to find entities that walked into the ring from unwatched chunks
+    private static final int MARGIN_RESCAN_INTERVAL = 20;
+    // Other watched chunks are only rescanned this often, since their entities are found through events or by walking through the ring
+    private static final int FULL_RESCAN_INTERVAL = 1200;
+
+    // Entities are indexed by their position, so cells this far outside of a query are also checked for entities whose bounding box reaches into it
+    private static final double ENTITY_MARGIN = 4.0;
+
+    // Used for entities that haven't been placed into a cell yet. Sections this far out are beyond the world border
+    private static final long NO_CELL = Long.MIN_VALUE;
+
+    private static class TrackedEntity {
+        private final Entity entity;
+        private long cellKey = NO_CELL;
+
+        private TrackedEntity(Entity entity) {
+            this.entity = entity;
+        }
+    }
+
+    private static class WatchedChunk {
+        private int lastQueriedTick;
+        private int lastScannedTick;
+        private boolean scanned = false;
+    }
+
+    private static class WorldIndex {
+        private final World world;
+        private final LongObjectMap<List<Entity>> cells = new LongObjectMap<>();
+        private final Map<Entity, TrackedEntity> tracked = new HashMap<>();
+        private final LongObjectMap<WatchedChunk> watchedChunks = new LongObjectMap<>();
+        private int refreshedTick = -1;
+
+        private WorldIndex(World world) {
+            this.world = world;
+        }
+
+        private boolean isWatched(int blockX, int blockZ) {
+            return watchedChunks.containsKey(PackedBlockPosition.pack(blockX >> 4, 0, blockZ >> 4));
+        }
+
+        /**
+         * Adds <code>entity</code> to the index without placing it into a cell, which is done on the next refresh.
+         * Used from events where the entity isn't yet at its new position.
+         */
+        private void trackPending(Entity entity) {
+            tracked.computeIfAbsent(entity, TrackedEntity::new);
+        }
+
+        private void untrack(Entity entity) {
+            TrackedEntity trackedEntity = tracked.remove(entity);
+            if(trackedEntity != null) {
+                removeFromCell(trackedEntity);
+            }
+        }
+
+        /**
+         * Moves <code>trackedEntity</code> into the cell at its current position.
+         * @return false if the entity should no longer be indexed. It is removed from its cell, but must be removed from {@link WorldIndex#tracked} by the caller
+         */
+        private boolean updateCell(TrackedEntity trackedEntity, Location scratch) {
+            Entity entity = trackedEntity.entity;
+            if(!entity.isValid() || entity.getWorld() != world) {
+                removeFromCell(trackedEntity);
+                return false;
+            }
+
+            Location position = entity.getLocation(scratch);
+            int blockX = position.getBlockX();
+            int blockZ = position.getBlockZ();
+            if(!isWatched(blockX, blockZ)) {
+                removeFromCell(trackedEntity);
+                return false;
+            }
+
+            long cellKey = PackedBlockPosition.pack(blockX >> 4, position.getBlockY() >> 4, blockZ >> 4);
+            if(cellKey == trackedEntity.cellKey) {return true;}
+
+            removeFromCell(trackedEntity);
+            List<Entity> cell = cells.get(cellKey);
+            if(cell == null) {
+                cell = new ArrayList<>();
+                cells.put(cellKey, cell);
+            }
+            cell.add(entity);
+            trackedEntity.cellKey = cellKey;
+            return true;
+        }
+
+        private void removeFromCell(TrackedEntity trackedEntity) {
+            if(trackedEntity.cellKey == NO_CELL) {return;}
+
+            List<Entity> cell = cells.get(trackedEntity.cellKey);
+            if(cell != null) {
+                cell.remove(trackedEntity.entity);
+                // Empty cells are removed so that areas which are no longer watched don't leak memory
+                if(cell.isEmpty()) {
+                    cells.remove(trackedEntity.cellKey);
+                }
+            }
+            trackedEntity.cellKey = NO_CELL;
+        }
+
+        /**
+         * Moves every indexed entity into the cell at its current position, and stops watching chunks that haven't been queried recently.
+         * Only does anything on the first call each tick.
+         */
+        private void refresh(int currentTick, Location scratch) {
+            if(currentTick == refreshedTick) {return;}
+            refreshedTick = currentTick;
+
+            watchedChunks.removeIf((chunkKey, chunk) -> currentTick - chunk.lastQueriedTick > UNWATCH_DELAY);
+
+            Iterator<TrackedEntity> iterator = tracked.values().iterator();
+            while(iterator.hasNext()) {
+                if(!updateCell(iterator.next(), scratch)) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        /**
+         * Watches a chunk, and adds the entities within it if it is newly watched or hasn't been scanned for <code>rescanInterval</code> ticks.
+         */
+        private void watch(int chunkX, int chunkZ, int currentTick, int rescanInterval, Location scratch) {
+            long chunkKey = PackedBlockPosition.pack(chunkX, 0, chunkZ);
+            WatchedChunk chunk = watchedChunks.get(chunkKey);
+            if(chunk == null) {
+                chunk = new WatchedChunk();
+                watchedChunks.put(chunkKey, chunk);
+            }
+            chunk.lastQueriedTick = currentTick;
+
+            if(chunk.scanned && currentTick - chunk.lastScannedTick < rescanInterval) {return;}
+            // Querying shouldn't load chunks
+            if(!world.isChunkLoaded(chunkX, chunkZ)) {return;}
+
+            for(Entity entity : world.getChunkAt(chunkX, chunkZ).getEntities()) {
+                TrackedEntity trackedEntity = tracked.computeIfAbsent(entity, TrackedEntity::new);
+                if(!updateCell(trackedEntity, scratch)) {
+                    tracked.remove(entity);
+                }
+            }
+            chunk.lastScannedTick = currentTick;
+            chunk.scanned = true;
+        }
+    }
+
+    private final Logger logger;
+
+    private final Map<UUID, WorldIndex> worldIndices = new HashMap<>();
+    // Reused to avoid allocating a location for every entity checked
+    private final Location scratchLocation = new Location(null, 0.0, 0.0, 0.0);
+
+    @Inject
+    public SpatialEntityFinder(Logger logger, IEventRegistrar eventRegistrar) {
+        this.logger = logger;
+        eventRegistrar.register(this);
+    }
+
+    @Override
+    public Collection<Entity> getNearbyEntities(@Nullable Collection<Entity> existing, Location location, double xRadius, double yRadius, double zRadius) {
+        Collection<Entity> result = existing instanceof ArrayList ? existing : new ArrayList<>();
+        result.clear();
+
+        getNearbyEntities(location, xRadius, yRadius, zRadius, result::add);
+        return result;
+    }
+
+    @Override
+    public void getNearbyEntities(Location location, double xRadius, double yRadius, double zRadius, Consumer<Entity> consumer) {
+        World world = Objects.requireNonNull(location.getWorld());
+        WorldIndex index = worldIndices.computeIfAbsent(world.getUID(), id -> {
+            logger.fine("Creating entity index for world %s", world.getName());
+            return new WorldIndex(world);
+        });
+
+        int currentTick = Bukkit.getCurrentTick();
+        index.refresh(currentTick, scratchLocation);
+
+        double minX = location.getX() - xRadius;
+        double minY = location.getY() - yRadius;
+        double minZ = location.getZ() - zRadius;
+        double maxX = location.getX() + xRadius;
+        double maxY = location.getY() + yRadius;
+        double maxZ = location.getZ() + zRadius;
+
+        int minCellX = (int) Math.floor(minX - ENTITY_MARGIN) >> 4;
+        int minCellY = (int) Math.floor(minY - ENTITY_MARGIN) >> 4;
+        int minCellZ = (int) Math.floor(minZ - ENTITY_MARGIN) >> 4;
+        int maxCellX = (int) Math.floor(maxX + ENTITY_MARGIN) >> 4;
+        int maxCellY = (int) Math.floor(maxY + ENTITY_MARGIN) >> 4;
+        int maxCellZ = (int) Math.floor(maxZ + ENTITY_MARGIN) >> 4;
+
+        // The ring of chunks around the query is watched, but not checked
+        for(int cellX = minCellX - 1; cellX <= maxCellX + 1; cellX++) {
+            for(int cellZ = minCellZ - 1; cellZ <= maxCellZ + 1; cellZ++) {
+                boolean isMargin = cellX < minCellX || cellX > maxCellX || cellZ < minCellZ || cellZ > maxCellZ;
+                index.watch(cellX, cellZ, currentTick, isMargin ? MARGIN_RESCAN_INTERVAL : FULL_RESCAN_INTERVAL, scratchLocation);
+                if(isMargin) {continue;}
+
+                for(int cellY = minCellY; cellY <= maxCellY; cellY++) {
+                    List<Entity> cell = index.cells.get(PackedBlockPosition.pack(cellX, cellY, cellZ));
+                    if(cell == null) {continue;}
+
+                    for(int i = 0; i < cell.size(); i++) {
+                        Entity entity = cell.get(i);
+                        Location position = entity.getLocation(scratchLocation);
+                        double halfWidth = entity.getWidth() / 2.0;
+
+                        // Matches the bounding box overlap check used by World#getNearbyEntities
+                        if(position.getX() + halfWidth > minX && position.getX() - halfWidth < maxX
+                                && position.getY() + entity.getHeight() > minY && position.getY() < maxY
+                                && position.getZ() + halfWidth > minZ && position.getZ() - halfWidth < maxZ) {
+                            consumer.accept(entity);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private @Nullable WorldIndex getIndexWatching(Location location) {
+        World world = location.getWorld();
+        if(world == null) {return null;}
+
+        WorldIndex index = worldIndices.get(world.getUID());
+        if(index == null || !index.isWatched(location.getBlockX(), location.getBlockZ())) {
+            return null;
+        }
+        return index;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityAddToWorld(EntityAddToWorldEvent event) {
+        Entity entity = event.getEntity();
+        WorldIndex index = getIndexWatching(entity.getLocation(scratchLocation));
+        if(index != null) {
+            index.trackPending(entity);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onEntityRemoveFromWorld(EntityRemoveFromWorldEvent event) {
+        Entity entity = event.getEntity();
+        WorldIndex index = worldIndices.get(entity.getWorld().getUID());
+        if(index != null) {
+            index.untrack(entity);
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityTeleport(EntityTeleportEvent event) {
+        Location to = event.getTo();
+        if(to == null) {return;}
+
+        WorldIndex index = getIndexWatching(to);
+        if(index != null) {
+            index.trackPending(event.getEntity());
+        }
+    }
+
+    /**
+     * Also receives player teleports, since {@link org.bukkit.event.player.PlayerTeleportEvent} shares its handlers.
+     * Movement within a chunk is ignored, since the entity can only enter the index by moving into a watched chunk.
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        Location from = event.getFrom();
+        Location to = event.getTo();
+        if(from.getWorld() == to.getWorld() && from.getBlockX() >> 4 == to.getBlockX() >> 4 && from.getBlockZ() >> 4 == to.getBlockZ() >> 4) {
+            return;
+        }
+
+        WorldIndex index = getIndexWatching(to);
+        if(index != null) {
+            index.trackPending(event.getPlayer());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        WorldIndex index = worldIndices.get(event.getWorld().getUID());
+        if(index != null) {
+            // The chunk's entities are dropped from the index on the next refresh
+            index.watchedChunks.remove(PackedBlockPosition.pack(event.getChunk().getX(), 0, event.getChunk().getZ()));
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        if(worldIndices.remove(event.getWorld().getUID()) != null) {
+            logger.fine("Removed entity index for world %s", event.getWorld().getName());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.lauriethefish.betterportals.bukkit.entity.faking;
+
+import com.comphenix.protocol.PacketType;
+import com.comphenix.protocol.ProtocolLibrary;
+import com.comphenix.protocol.ProtocolManager;
+import com.comphenix.protocol.events.PacketContainer;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.util.VersionUtil;
+import com.lauriethefish.betterportals.bukkit.util.collection.LongIntMap;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gathers the entity packets sent to each player while the replicated entities are updated, then sends each player's packets together.
+ * Packets which fully replace an earlier packet of the same type for the same entity, e.g. head rotation, velocity, metadata and mounts, overwrite the earlier packet instead of being sent as well.
+ * On versions with bundle packets, each player's packets are sent as one bundle, so that the client applies them all at once.
+ * Must only be used on the main thread.
+ */
+@Singleton
+public class EntityPacketBatch {
+    private static final boolean useBundles = VersionUtil.isMcVersionAtLeast("1.19.4");
+    // The client disconnects if a bundle contains more packets than this
+    private static final int maxBundleSize = 4096;
+
+    private static final List<PacketType> replaceableTypes = List.of(
+            PacketType.Play.Server.ENTITY_HEAD_ROTATION,
+            PacketType.Play.Server.ENTITY_VELOCITY,
+            PacketType.Play.Server.ENTITY_METADATA,
+            PacketType.Play.Server.MOUNT
+    );
+
+    private static class PlayerPackets {
+        private final List<PacketContainer> packets = new ArrayList<>();
+        // Replaceable packet type and entity ID to the index of the packet in the list
+        private final LongIntMap replaceableIndices = new LongIntMap();
+    }
+
+    private final Logger logger;
+    private final Map<Player, PlayerPackets> pendingPackets = new HashMap<>();
+    private boolean active = false;
+
+    @Inject
+    public EntityPacketBatch(Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Starts gathering packets. Until {@link EntityPacketBatch#flush()} is called, packets should be added here instead of being sent.
+     */
+    public void start() {
+        active = true;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Adds a packet to be sent to <code>player</code> when the batch is flushed.
+     * @param player Player to send the packet to
+     * @param packet The packet to send
+     */
+    public void add(Player player, PacketContainer packet) {
+        pendingPackets.computeIfAbsent(player, p -> new PlayerPackets()).packets.add(packet);
+    }
+
+    /**
+     * Adds a packet to be sent to <code>player</code> when the batch is flushed, replacing any earlier packet of the same type for the same entity.
+     * The replaced packet's position is kept, so it still arrives in the same order relative to the other packets.
+     * @param player Player to send the packet to
+     * @param packet The packet to send. Its type must be one of the replaceable types
+     * @param entityId ID of the entity that the packet is for
+     */
+    public void addReplacing(Player player, PacketContainer packet, int entityId) {
+        int typeIndex = replaceableTypes.indexOf(packet.getType());
+        if(typeIndex == -1) {
+            throw new IllegalArgumentException("Packets of type " + packet.getType() + " can't be replaced");
+        }
+
+        PlayerPackets playerPackets = pendingPackets.computeIfAbsent(player, p -> new PlayerPackets());
+        long key = ((long) typeIndex << 32) | (entityId & 0xFFFFFFFFL);
+        int existingIndex = playerPackets.replaceableIndices.getOrDefault(key, -1);
+        if(existingIndex == -1) {
+            playerPackets.replaceableIndices.put(key, playerPackets.packets.size());
+            playerPackets.packets.add(packet);
+        }   else    {
+            playerPackets.packets.set(existingIndex, packet);
+        }
+    }
+
+    /**
+     * Sends every gathered packet, and stops gathering packets.
+     */
+    public void flush() {
+        active = false;
+        if(pendingPackets.isEmpty()) {return;}
+
+        ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
+        pendingPackets.forEach((player, playerPackets) -> {
+            // Sending packets to a player that has left would throw an exception
+            if(!player.isOnline()) {return;}
+
+            try {
+                sendPackets(protocolManager, player, playerPackets.packets);
+            }   catch(Exception ex) {
+                logger.warning("Failed to send entity updates to player %s", player.getName());
+                ex.printStackTrace();
+            }
+        });
+        pendingPackets.clear();
+    }
+
+    private void sendPackets(ProtocolManager protocolManager, Player player, List<PacketContainer> packets) {
+        if(!useBundles || packets.size() == 1) {
+            for(PacketContainer packet : packets) {
+                protocolManager.sendServerPacket(player, packet);
+            }
+            return;
+        }
+
+        for(int start = 0; start < packets.size(); start += maxBundleSize) {
+            List<PacketContainer> bundled = packets.subList(start, Math.min(packets.size(), start + maxBundleSize));
+
+            PacketContainer bundle = new PacketContainer(PacketType.Play.Server.BUNDLE);
+            bundle.getPacketBundles().write(0, new ArrayList<>(bundled));
+            protocolManager.sendServerPacket(player, bundle);
+        }
+        logger.finest("Sent %d entity packets to player %s", packets.size(), player.getName());
+    }
+}
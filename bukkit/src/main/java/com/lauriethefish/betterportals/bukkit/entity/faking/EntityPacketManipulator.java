@@ -7,6 +7,7 @@ import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.reflect.StructureModifier;
 import com.comphenix.protocol.utility.MinecraftVersion;
 import com.comphenix.protocol.wrappers.*;
+import com.google.inject.Inject;
 import com.google.inject.Singleton;
 import com.lauriethefish.betterportals.bukkit.math.MathUtil;
 import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
@@ -33,6 +34,13 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     private static final int entityDataFieldIndex = VersionUtil.isMcVersionAtLeast("1.19.0") ? 4 : 6;
     private static final boolean useNewEntityRotationFields = VersionUtil.isMcVersionAtLeast("1.19.0");
 
+    private final EntityPacketBatch packetBatch;
+
+    @Inject
+    public EntityPacketManipulator(EntityPacketBatch packetBatch) {
+        this.packetBatch = packetBatch;
+    }
+
     @Override
     public void showEntity(EntityInfo tracker, Collection<Player> players) {
         // Generate the packet that NMS would normally use to spawn the entity
@@ -256,7 +264,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         PacketContainer packet = new PacketContainer(PacketType.Play.Server.ENTITY_HEAD_ROTATION);
         packet.getIntegers().write(0, tracker.getEntityId());
         packet.getBytes().write(0, headRotation);
-        sendPacket(packet, players);
+        sendReplaceablePacket(packet, tracker.getEntityId(), players);
     }
 
     @Override
@@ -273,7 +281,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         packet.getIntegers().write(0, tracker.getEntityId());
         packet.getIntegerArrays().write(0, ridingIds);
 
-        sendPacket(packet, players);
+        sendReplaceablePacket(packet, tracker.getEntityId(), players);
     }
 
     @Override
@@ -310,7 +318,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
 
         packet.getDataValueCollectionModifier().write(0, wrappedDataValueList); // Write the data values to the packet
 
-        sendPacket(packet, players); // Send the packet to the specified players
+        sendReplaceablePacket(packet, tracker.getEntityId(), players); // Send the packet to the specified players
     }
 
 
@@ -330,7 +338,7 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
         integers.write(2, (int) (entityVelocity.getY() * 8000.0D));
         integers.write(3, (int) (entityVelocity.getZ() * 8000.0D));
 
-        sendPacket(packet, players);
+        sendReplaceablePacket(packet, tracker.getEntityId(), players);
     }
 
     @Override
@@ -413,6 +421,14 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
     }
 
     private void sendPacket(PacketContainer packet, Collection<Player> players) {
+        // Packets sent while the entities are being updated are gathered and sent together afterwards
+        if(packetBatch.isActive()) {
+            for(Player player : players) {
+                packetBatch.add(player, packet);
+            }
+            return;
+        }
+
         ProtocolManager protocolManager = ProtocolLibrary.getProtocolManager();
         try {
             for (Player player : players) {
@@ -422,4 +438,18 @@ public class EntityPacketManipulator implements IEntityPacketManipulator {
             throw new RuntimeException("Failed to send packet", ex);
         }
     }
+
+    /**
+     * Sends a packet which replaces any earlier packet of the same type for the entity, so only the latest one needs to be sent in each batch.
+     */
+    private void sendReplaceablePacket(PacketContainer packet, int entityId, Collection<Player> players) {
+        if(packetBatch.isActive()) {
+            for(Player player : players) {
+                packetBatch.addReplacing(player, packet, entityId);
+            }
+            return;
+        }
+
+        sendPacket(packet, players);
+    }
 }
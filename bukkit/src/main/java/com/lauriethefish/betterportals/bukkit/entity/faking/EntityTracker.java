@@ -5,9 +5,11 @@ import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.bukkit.nms.AnimationType;
+import com.lauriethefish.betterportals.bukkit.nms.RotationUtil;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import lombok.Getter;
 import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.entity.Entity;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
@@ -35,12 +37,14 @@ public class EntityTracker implements IEntityTracker    {
 
     private final EntityEquipmentWatcher equipmentWatcher;
     private Vector lastPosition;
-    private Vector lastDirection;
     private Vector lastVelocity;
-    private float lastHeadRotation;
+    // Rotations are sent as one byte each, so these are stored in the same form. Changes that don't alter the byte can't be seen, so aren't sent
+    private int lastYaw;
+    private int lastPitch;
     private List<Entity> lastMounts;
 
     private final int metadataUpdateInterval;
+    private final double velocityThresholdSquared;
     private int ticksSinceCreated = 0;
 
     @Inject
@@ -53,11 +57,15 @@ public class EntityTracker implements IEntityTracker    {
         this.entityInfo = new EntityInfo(portal.getTransformations(), entity);
         this.packetManipulator = packetManipulator;
         this.metadataUpdateInterval = renderConfig.getEntityMetadataUpdateInterval();
+        this.velocityThresholdSquared = renderConfig.getEntityVelocityThreshold() * renderConfig.getEntityVelocityThreshold();
         this.pl = pl;
     }
 
     public void update() {
-        sendMovementUpdates();
+        // The spawn packet already contains the initial position, rotation and velocity
+        boolean firstUpdate = lastPosition == null;
+        sendMovementUpdates(firstUpdate);
+        sendVelocityUpdates(firstUpdate);
 
         // Equipment is disabled for living entities
         if(equipmentWatcher != null) {
@@ -88,15 +96,22 @@ public class EntityTracker implements IEntityTracker    {
             packetManipulator.sendMetadata(entityInfo, trackingPlayers);
         }
 
-        packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
+        ticksSinceCreated++;
+    }
 
+    // Sends the velocity if it has changed by more than the threshold, or if the entity has stopped
+    private void sendVelocityUpdates(boolean firstUpdate) {
         Vector velocity = entity.getVelocity();
-        if(lastVelocity != null && !velocity.equals(lastVelocity)) {
-            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
+        if(firstUpdate) {
             lastVelocity = velocity;
+            return;
         }
 
-        ticksSinceCreated++;
+        boolean stopped = velocity.lengthSquared() == 0.0 && lastVelocity.lengthSquared() != 0.0;
+        if(stopped || velocity.distanceSquared(lastVelocity) > velocityThresholdSquared) {
+            packetManipulator.sendEntityVelocity(entityInfo, velocity, trackingPlayers);
+            lastVelocity = velocity;
+        }
     }
 
     @Override
@@ -110,16 +125,20 @@ public class EntityTracker implements IEntityTracker    {
     }
 
     // Handles sending all movement and looking packets
-    private void sendMovementUpdates() {
-        Vector currentPosition = entity.getLocation().toVector();
-        Vector currentDirection = entity.getLocation().getDirection();
+    private void sendMovementUpdates(boolean firstUpdate) {
+        Location location = entity.getLocation();
+        Vector currentPosition = location.toVector();
+        int yaw = RotationUtil.getPacketRotationInt(location.getYaw()) & 0xFF;
+        int pitch = RotationUtil.getPacketRotationInt(location.getPitch()) & 0xFF;
 
-        boolean positionChanged = lastPosition != null && !currentPosition.equals(lastPosition);
-        boolean rotationChanged = lastDirection != null && !currentDirection.equals(lastDirection);
-        Vector posOffset = lastPosition == null ? new Vector() : currentPosition.clone().subtract(lastPosition);
+        boolean positionChanged = !firstUpdate && !currentPosition.equals(lastPosition);
+        boolean yawChanged = !firstUpdate && yaw != lastYaw;
+        boolean rotationChanged = yawChanged || (!firstUpdate && pitch != lastPitch);
+        Vector posOffset = firstUpdate ? new Vector() : currentPosition.clone().subtract(lastPosition);
 
         lastPosition = currentPosition;
-        lastDirection = currentDirection;
+        lastYaw = yaw;
+        lastPitch = pitch;
 
         // Relative move packets have a limit of 8 blocks before we have to just send a teleport packet
         boolean canUseRelativeMove = posOffset.getX() < 8 && posOffset.getY() < 8 && posOffset.getZ() < 8;
@@ -135,9 +154,7 @@ public class EntityTracker implements IEntityTracker    {
         }
 
         // Bukkit uses the yaw as the head rotation for some reason, so we do it with that
-        float headRotation = entity.getLocation().getYaw();
-        if(lastHeadRotation != headRotation) {
-            lastHeadRotation = headRotation;
+        if(yawChanged) {
             packetManipulator.sendEntityHeadRotation(entityInfo, trackingPlayers);
         }
     }
@@ -17,11 +17,13 @@ public abstract class EntityTrackingManager {
     private final IEntityTracker.Factory entityTrackerFactory;
     protected final Map<IPortal, Map<Entity, IEntityTracker>> trackersByPortal = new HashMap<>(); // Used for separating trackers based on portal
     protected final Logger logger;
+    private final EntityPacketBatch packetBatch;
 
     @Inject
-    public EntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory) {
+    public EntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory, EntityPacketBatch packetBatch) {
         this.logger = logger;
         this.entityTrackerFactory = entityTrackerFactory;
+        this.packetBatch = packetBatch;
     }
 
     /**
@@ -84,10 +86,16 @@ public abstract class EntityTrackingManager {
     }
 
     /**
-     * Updates all currently replicated entities
+     * Updates all currently replicated entities.
+     * The update packets are gathered by an {@link EntityPacketBatch}, so that each player is sent all of their updates at once.
      */
     public void update() {
-        trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
+        packetBatch.start();
+        try {
+            trackersByPortal.values().forEach((map) -> map.values().forEach(IEntityTracker::update));
+        }   finally {
+            packetBatch.flush();
+        }
     }
 
     /**
@@ -33,8 +33,8 @@ public class EventEntityTrackingManager extends EntityTrackingManager implements
     private final Map<Entity, EquipmentSlot> lastHandUsed = new HashMap<>();
 
     @Inject
-    public EventEntityTrackingManager(Logger logger, IEventRegistrar eventRegistrar, IEntityTracker.Factory entityTrackerFactory) {
-        super(logger, entityTrackerFactory);
+    public EventEntityTrackingManager(Logger logger, IEventRegistrar eventRegistrar, IEntityTracker.Factory entityTrackerFactory, EntityPacketBatch packetBatch) {
+        super(logger, entityTrackerFactory, packetBatch);
         eventRegistrar.register(this);
     }
 
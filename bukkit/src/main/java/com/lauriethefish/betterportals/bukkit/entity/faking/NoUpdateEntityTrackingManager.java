@@ -13,8 +13,8 @@ import jakarta.inject.Singleton;
 @Singleton
 public class NoUpdateEntityTrackingManager extends EntityTrackingManager {
     @Inject
-    public NoUpdateEntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory) {
-        super(logger, entityTrackerFactory);
+    public NoUpdateEntityTrackingManager(Logger logger, IEntityTracker.Factory entityTrackerFactory, EntityPacketBatch packetBatch) {
+        super(logger, entityTrackerFactory, packetBatch);
     }
 
     @Override
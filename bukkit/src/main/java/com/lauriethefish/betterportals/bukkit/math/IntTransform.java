@@ -0,0 +1,107 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import org.bukkit.util.Vector;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Objects;
+
+/**
+ * An integer version of a {@link Matrix} that only rotates by multiples of 90 degrees and translates by whole blocks, which is always the case for portals.
+ * Each axis of the result is one of the input coordinates multiplied by -1 or 1 (stored as a row of -1, 0 and 1 so that no branching is needed), plus an offset.
+ * This allows transforming block coordinates one axis at a time without allocating or using floating point maths.
+ */
+public class IntTransform {
+    private final int xx, xy, xz, xOffset;
+    private final int yx, yy, yz, yOffset;
+    private final int zx, zy, zz, zOffset;
+
+    private IntTransform(int xx, int xy, int xz, int xOffset, int yx, int yy, int yz, int yOffset, int zx, int zy, int zz, int zOffset) {
+        this.xx = xx;
+        this.xy = xy;
+        this.xz = xz;
+        this.xOffset = xOffset;
+        this.yx = yx;
+        this.yy = yy;
+        this.yz = yz;
+        this.yOffset = yOffset;
+        this.zx = zx;
+        this.zy = zy;
+        this.zz = zz;
+        this.zOffset = zOffset;
+    }
+
+    /**
+     * Creates an integer transform that gives the same results as {@link Matrix#transform(int, int, int)}.
+     * @param matrix The matrix to convert. This must only rotate by multiples of 90 degrees, and translate by whole blocks
+     * @return The equivalent integer transform
+     */
+    public static @NotNull IntTransform fromMatrix(@NotNull Matrix matrix) {
+        IntVector origin = matrix.transform(0, 0, 0);
+        IntVector xAxis = matrix.transform(1, 0, 0).subtract(origin);
+        IntVector yAxis = matrix.transform(0, 1, 0).subtract(origin);
+        IntVector zAxis = matrix.transform(0, 0, 1).subtract(origin);
+
+        return new IntTransform(
+                xAxis.getX(), yAxis.getX(), zAxis.getX(), origin.getX(),
+                xAxis.getY(), yAxis.getY(), zAxis.getY(), origin.getY(),
+                xAxis.getZ(), yAxis.getZ(), zAxis.getZ(), origin.getZ()
+        );
+    }
+
+    /**
+     * Creates a transform that rotates like this one around <code>from</code>, then moves <code>from</code> to <code>to</code>.
+     * This matches a rotation matrix multiplied by translation matrices, except that the offset is found in double precision and rounded once,
+     * so it doesn't have the precision issues of transforming large coordinates with {@link Matrix#transform(int, int, int)}.
+     * @param from The position to rotate around
+     * @param to Where <code>from</code> ends up
+     * @return The new transform
+     */
+    public @NotNull IntTransform withTranslation(@NotNull Vector from, @NotNull Vector to) {
+        double fromX = from.getX();
+        double fromY = from.getY();
+        double fromZ = from.getZ();
+
+        return new IntTransform(
+                xx, xy, xz, (int) Math.round(to.getX() - (fromX * xx + fromY * xy + fromZ * xz)),
+                yx, yy, yz, (int) Math.round(to.getY() - (fromX * yx + fromY * yy + fromZ * yz)),
+                zx, zy, zz, (int) Math.round(to.getZ() - (fromX * zx + fromY * zy + fromZ * zz))
+        );
+    }
+
+    public int transformX(int x, int y, int z) {
+        return x * xx + y * xy + z * xz + xOffset;
+    }
+
+    public int transformY(int x, int y, int z) {
+        return x * yx + y * yy + z * yz + yOffset;
+    }
+
+    public int transformZ(int x, int y, int z) {
+        return x * zx + y * zy + z * zz + zOffset;
+    }
+
+    public @NotNull IntVector transform(int x, int y, int z) {
+        return new IntVector(transformX(x, y, z), transformY(x, y, z), transformZ(x, y, z));
+    }
+
+    public @NotNull IntVector transform(@NotNull IntVector in) {
+        return transform(in.getX(), in.getY(), in.getZ());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if(obj == this) {return true;}
+        if(!(obj instanceof IntTransform)) {return false;}
+
+        IntTransform other = (IntTransform) obj;
+        return xx == other.xx && xy == other.xy && xz == other.xz && xOffset == other.xOffset
+                && yx == other.yx && yy == other.yy && yz == other.yz && yOffset == other.yOffset
+                && zx == other.zx && zy == other.zy && zz == other.zz && zOffset == other.zOffset;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(xx, xy, xz, xOffset, yx, yy, yz, yOffset, zx, zy, zz, zOffset);
+    }
+}
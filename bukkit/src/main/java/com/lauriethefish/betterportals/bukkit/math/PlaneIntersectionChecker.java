@@ -1,16 +1,74 @@
 package com.lauriethefish.betterportals.bukkit.math;
 
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
 import org.bukkit.util.Vector;
 
 /**
  * Handles checking if a ray intersects a specific plane
  * Used for portal view checking, since the plane can be the portal's view plane
+ * Everything that doesn't depend on the position being checked is found once when the checker is created, so checks don't allocate.
  */
 public class PlaneIntersectionChecker {
-    private final Vector planeCenter;
-    private final Vector planeNormal;
-    private final Vector maxDev;
-    private final Vector rayOrigin;
+    private static final double EPSILON_SQUARED = MathUtil.EPSILON * MathUtil.EPSILON;
+
+    // The Vector API can only be used if the server was started with --add-modules jdk.incubator.vector
+    private static final boolean VECTOR_API_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    /**
+     * Batch checks using the Vector API. This is kept in its own class so that the incubator module is only loaded if it is available.
+     * Each comparison is done in the same order as the scalar checks, so the results are identical.
+     */
+    private static class VectorBatch {
+        private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+        /**
+         * Checks positions until fewer than a full vector remain.
+         * @return The number of positions checked
+         */
+        private static int checkIfIntersects(PlaneIntersectionChecker checker, double[] xs, double[] ys, double[] zs, int count, boolean[] output) {
+            int bound = SPECIES.loopBound(count);
+            for(int i = 0; i < bound; i += SPECIES.length()) {
+                DoubleVector dirX = DoubleVector.fromArray(SPECIES, xs, i).sub(checker.originX);
+                DoubleVector dirY = DoubleVector.fromArray(SPECIES, ys, i).sub(checker.originY);
+                DoubleVector dirZ = DoubleVector.fromArray(SPECIES, zs, i).sub(checker.originZ);
+                DoubleVector lengthSq = dirX.mul(dirX).add(dirY.mul(dirY)).add(dirZ.mul(dirZ));
+                DoubleVector denominator = dirX.mul(checker.normalX).add(dirY.mul(checker.normalY)).add(dirZ.mul(checker.normalZ));
+                DoubleVector fraction = DoubleVector.broadcast(SPECIES, checker.planeOffset).div(denominator);
+
+                VectorMask<Double> intersects = denominator.mul(denominator).compare(VectorOperators.GT, lengthSq.mul(EPSILON_SQUARED))
+                        .and(fraction.compare(VectorOperators.LE, 1.0))
+                        .and(fraction.compare(VectorOperators.GT, 0.0))
+                        .and(fraction.mul(fraction).mul(lengthSq).compare(VectorOperators.GT, EPSILON_SQUARED))
+                        .and(dirX.mul(fraction).add(checker.originX).sub(checker.centerX).abs().compare(VectorOperators.LE, checker.maxDevX))
+                        .and(dirY.mul(fraction).add(checker.originY).sub(checker.centerY).abs().compare(VectorOperators.LE, checker.maxDevY))
+                        .and(dirZ.mul(fraction).add(checker.originZ).sub(checker.centerZ).abs().compare(VectorOperators.LE, checker.maxDevZ));
+                intersects.intoArray(output, i);
+            }
+            return bound;
+        }
+    }
+
+    private final double centerX;
+    private final double centerY;
+    private final double centerZ;
+
+    private final double normalX;
+    private final double normalY;
+    private final double normalZ;
+
+    private final double originX;
+    private final double originY;
+    private final double originZ;
+
+    private final double maxDevX;
+    private final double maxDevY;
+    private final double maxDevZ;
+
+    // Distance from the ray origin to the plane along its normal
+    private final double planeOffset;
 
     /**
      * Creates a new {@link PlaneIntersectionChecker} with the specified options.
@@ -20,40 +78,87 @@ public class PlaneIntersectionChecker {
      * @param maxDev Represents the size of the plane. This can be treated like a radius
      */
     public PlaneIntersectionChecker(Vector planeCenter, Vector planeNormal, Vector rayOrigin, Vector maxDev)   {
-        this.planeCenter = planeCenter;
-        this.planeNormal = planeNormal;
-        this.rayOrigin = rayOrigin;
-        this.maxDev = maxDev;
+        this.centerX = planeCenter.getX();
+        this.centerY = planeCenter.getY();
+        this.centerZ = planeCenter.getZ();
+        this.normalX = planeNormal.getX();
+        this.normalY = planeNormal.getY();
+        this.normalZ = planeNormal.getZ();
+        this.originX = rayOrigin.getX();
+        this.originY = rayOrigin.getY();
+        this.originZ = rayOrigin.getZ();
+        this.maxDevX = maxDev.getX();
+        this.maxDevY = maxDev.getY();
+        this.maxDevZ = Math.abs(maxDev.getZ());
+
+        this.planeOffset = (centerX - originX) * normalX + (centerY - originY) * normalY + (centerZ - originZ) * normalZ;
     }
 
     /**
-     * Finds if the line from <code>pos</code> to {@link PlaneIntersectionChecker#rayOrigin} intersects the plane.
+     * Finds if the line from <code>pos</code> to the ray origin intersects the plane.
      * @param pos The destination of the ray
      * @return Whether the ray intersects
      */
     public boolean checkIfIntersects(Vector pos)    {
-        // Find the direction to this position from the player's location
-        Vector direction = pos.clone().subtract(rayOrigin).normalize();
+        return checkIfIntersects(pos.getX(), pos.getY(), pos.getZ());
+    }
 
-        // Find if we intersect the plane, and where
-        double denominator = planeNormal.dot(direction);
-        if(Math.abs(denominator) > MathUtil.EPSILON) {
-            Vector difference = planeCenter.clone().subtract(rayOrigin);
-            double t = difference.dot(planeNormal) / denominator;
-            // If the block was before the portal, return false
-            if(rayOrigin.distance(pos) < t)    {
-                return false;
-            }
+    /**
+     * Finds if the line from <code>(x, y, z)</code> to the ray origin intersects the plane.
+     * The ray's direction isn't normalised. Instead, the comparisons are scaled by its length, which gives the same result without a square root.
+     * @return Whether the ray intersects
+     */
+    public boolean checkIfIntersects(double x, double y, double z) {
+        double dirX = x - originX;
+        double dirY = y - originY;
+        double dirZ = z - originZ;
+        double lengthSq = dirX * dirX + dirY * dirY + dirZ * dirZ;
 
-            if(t > MathUtil.EPSILON) {
-                Vector portalIntersectPoint = rayOrigin.clone().add(direction.multiply(t));
-                Vector distCenter = portalIntersectPoint.subtract(planeCenter);
+        // Find if we intersect the plane, and where
+        double denominator = normalX * dirX + normalY * dirY + normalZ * dirZ;
+        if(denominator * denominator <= EPSILON_SQUARED * lengthSq) {
+            return false;
+        }
 
-                // Return true if the intersection point was close enough to the portal window
-                return Math.abs(distCenter.getX()) <= maxDev.getX() && Math.abs(distCenter.getY()) <= maxDev.getY() && Math.abs(distCenter.getZ()) <= Math.abs(maxDev.getZ());
-            }
+        // The fraction of the way along the ray at which the plane is crossed
+        double fraction = planeOffset / denominator;
+        // If the position was before the portal, or the portal is behind the ray origin, return false
+        if(fraction > 1.0 || fraction <= 0.0 || fraction * fraction * lengthSq <= EPSILON_SQUARED) {
+            return false;
         }
 
-        return false;
+        // Return true if the intersection point was close enough to the portal window
+        return Math.abs(originX + dirX * fraction - centerX) <= maxDevX
+                && Math.abs(originY + dirY * fraction - centerY) <= maxDevY
+                && Math.abs(originZ + dirZ * fraction - centerZ) <= maxDevZ;
+    }
+
+    /**
+     * Checks many positions at once. If the Vector API is available, several positions are checked with each instruction, otherwise they're checked one at a time.
+     * This gives the same results as {@link PlaneIntersectionChecker#checkIfIntersects(double, double, double)}.
+     * @param xs X coordinates of the positions
+     * @param ys Y coordinates of the positions
+     * @param zs Z coordinates of the positions
+     * @param count The number of positions to check
+     * @param output Set to whether the ray to each position intersects the plane
+     */
+    public void checkIfIntersects(double[] xs, double[] ys, double[] zs, int count, boolean[] output) {
+        // Any positions left over after the last full vector, or all of them if the Vector API isn't available, are checked one at a time
+        int checked = VECTOR_API_AVAILABLE ? VectorBatch.checkIfIntersects(this, xs, ys, zs, count, output) : 0;
+        for(int i = checked; i < count; i++) {
+            double dirX = xs[i] - originX;
+            double dirY = ys[i] - originY;
+            double dirZ = zs[i] - originZ;
+            double lengthSq = dirX * dirX + dirY * dirY + dirZ * dirZ;
+            double denominator = normalX * dirX + normalY * dirY + normalZ * dirZ;
+            double fraction = planeOffset / denominator;
+
+            // Non short-circuiting operators are used to avoid branches. A zero denominator gives a fraction that fails every comparison
+            output[i] = denominator * denominator > EPSILON_SQUARED * lengthSq
+                    & fraction <= 1.0 & fraction > 0.0 & fraction * fraction * lengthSq > EPSILON_SQUARED
+                    & Math.abs(originX + dirX * fraction - centerX) <= maxDevX
+                    & Math.abs(originY + dirY * fraction - centerY) <= maxDevY
+                    & Math.abs(originZ + dirZ * fraction - centerZ) <= maxDevZ;
+        }
     }
-}
\ No newline at end of file
+}
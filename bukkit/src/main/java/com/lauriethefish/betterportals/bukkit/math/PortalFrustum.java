@@ -0,0 +1,153 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import org.bukkit.util.Vector;
+
+import java.util.BitSet;
+
+/**
+ * The volume that can be seen through a portal window from one eye position.
+ * Portal windows are always axis aligned, so each slice of blocks parallel to the window can see an axis aligned rectangle of blocks.
+ * This allows visibility to be found for whole rows of blocks at once, instead of casting a ray to each block.
+ * For block centers, this gives the same results as {@link PlaneIntersectionChecker}.
+ */
+public class PortalFrustum {
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+
+    private final double[] eye;
+    private final double[] windowMin;
+    private final double[] windowMax;
+
+    // The axis that the portal window faces along, and the two axes within the window
+    private final int normalAxis;
+    private final int firstAxis;
+    private final int secondAxis;
+
+    /**
+     * Creates a new frustum with the same options as a {@link PlaneIntersectionChecker}.
+     * @param planeCenter The center position of the portal window
+     * @param planeNormal The direction of the window, which must be along one axis
+     * @param eyePos The position that the window is viewed from
+     * @param maxDev The size of the window, treated like a radius
+     */
+    public PortalFrustum(Vector planeCenter, Vector planeNormal, Vector eyePos, Vector maxDev) {
+        this.eye = new double[]{eyePos.getX(), eyePos.getY(), eyePos.getZ()};
+
+        double[] center = {planeCenter.getX(), planeCenter.getY(), planeCenter.getZ()};
+        double[] size = {Math.abs(maxDev.getX()), Math.abs(maxDev.getY()), Math.abs(maxDev.getZ())};
+        this.windowMin = new double[3];
+        this.windowMax = new double[3];
+        for(int axis = 0; axis < 3; axis++) {
+            windowMin[axis] = center[axis] - size[axis];
+            windowMax[axis] = center[axis] + size[axis];
+        }
+
+        if(Math.abs(planeNormal.getX()) > MathUtil.EPSILON) {
+            normalAxis = X;
+        }   else if(Math.abs(planeNormal.getY()) > MathUtil.EPSILON) {
+            normalAxis = Y;
+        }   else    {
+            normalAxis = Z;
+        }
+
+        // X is placed first where possible, since rows along X are next to each other in the array map
+        firstAxis = normalAxis == X ? Z : X;
+        secondAxis = normalAxis == Y ? Z : Y;
+
+        // The window is flat, so its position along the normal is just the center
+        windowMin[normalAxis] = center[normalAxis];
+        windowMax[normalAxis] = center[normalAxis];
+    }
+
+    /**
+     * Finds the fraction of the way from the eye to a position on the normal axis at which the window is crossed.
+     * @param normalPos Position of the point on the normal axis
+     * @return The fraction, which is only within (0, 1] if the point is behind the window
+     */
+    private double findCrossingFraction(double normalPos) {
+        return (windowMin[normalAxis] - eye[normalAxis]) / (normalPos - eye[normalAxis]);
+    }
+
+    /**
+     * Finds if the line from the eye to <code>(x, y, z)</code> passes through the portal window.
+     * @return Whether the position is visible through the window
+     */
+    public boolean isVisible(double x, double y, double z) {
+        double[] pos = {x, y, z};
+        double fraction = findCrossingFraction(pos[normalAxis]);
+        if(!(fraction > MathUtil.EPSILON && fraction <= 1.0)) {return false;}
+
+        return isCrossingInWindow(pos, fraction, firstAxis) && isCrossingInWindow(pos, fraction, secondAxis);
+    }
+
+    private boolean isCrossingInWindow(double[] pos, double fraction, int axis) {
+        double crossing = eye[axis] + (pos[axis] - eye[axis]) * fraction;
+        return crossing >= windowMin[axis] && crossing <= windowMax[axis];
+    }
+
+    /**
+     * Sets the bits of every array map index whose block center is visible through the window.
+     * Each slice of blocks parallel to the window is checked as one rectangle, so the cost depends on the number of visible rows rather than the number of blocks.
+     * @param gridOrigin Block position at the center of the array map
+     * @param renderConfig Config used to find the size of the array map
+     * @param output Set to place the visible indices in. This is cleared first
+     */
+    public void findVisibleIndices(IntVector gridOrigin, RenderConfig renderConfig, BitSet output) {
+        findVisibleIndices(gridOrigin, (int) renderConfig.getMaxXZ(), (int) renderConfig.getMaxY(), output);
+    }
+
+    /**
+     * Sets the bits of every array map index whose block center is visible through the window, for an array map of the given size.
+     * @param gridOrigin Block position at the center of the array map
+     * @param maxXZ Distance from the center to the edge of the array map on the X and Z
+     * @param maxY Distance from the center to the edge of the array map on the Y
+     * @param output Set to place the visible indices in. This is cleared first
+     */
+    void findVisibleIndices(IntVector gridOrigin, int maxXZ, int maxY, BitSet output) {
+        output.clear();
+
+        int zMultip = maxXZ * 2 + 1;
+        int[] origin = {gridOrigin.getX(), gridOrigin.getY(), gridOrigin.getZ()};
+        int[] gridMax = {maxXZ, maxY, maxXZ};
+        int[] strides = {1, zMultip * zMultip, zMultip};
+        int centerIndex = gridMax[X] + gridMax[Z] * strides[Z] + gridMax[Y] * strides[Y];
+
+        for(int relNormal = -gridMax[normalAxis]; relNormal <= gridMax[normalAxis]; relNormal++) {
+            double fraction = findCrossingFraction(origin[normalAxis] + relNormal + 0.5);
+            if(!(fraction > MathUtil.EPSILON && fraction <= 1.0)) {continue;}
+
+            int firstMin = findMinVisible(fraction, firstAxis, origin, gridMax);
+            int firstMax = findMaxVisible(fraction, firstAxis, origin, gridMax);
+            int secondMin = findMinVisible(fraction, secondAxis, origin, gridMax);
+            int secondMax = findMaxVisible(fraction, secondAxis, origin, gridMax);
+            if(firstMin > firstMax || secondMin > secondMax) {continue;}
+
+            int sliceIndex = centerIndex + relNormal * strides[normalAxis];
+            int firstStride = strides[firstAxis];
+            for(int relSecond = secondMin; relSecond <= secondMax; relSecond++) {
+                int rowStart = sliceIndex + relSecond * strides[secondAxis] + firstMin * firstStride;
+                if(firstStride == 1) {
+                    output.set(rowStart, rowStart + firstMax - firstMin + 1);
+                }   else    {
+                    for(int i = 0; i <= firstMax - firstMin; i++) {
+                        output.set(rowStart + i * firstStride);
+                    }
+                }
+            }
+        }
+    }
+
+    // The window is projected back from the eye onto the slice, then converted to coordinates relative to the grid origin.
+    private int findMinVisible(double fraction, int axis, int[] origin, int[] gridMax) {
+        double projected = eye[axis] + (windowMin[axis] - eye[axis]) / fraction;
+        return Math.max(-gridMax[axis], (int) Math.ceil(projected - origin[axis] - 0.5));
+    }
+
+    private int findMaxVisible(double fraction, int axis, int[] origin, int[] gridMax) {
+        double projected = eye[axis] + (windowMax[axis] - eye[axis]) / fraction;
+        return Math.min(gridMax[axis], (int) Math.floor(projected - origin[axis] - 0.5));
+    }
+}
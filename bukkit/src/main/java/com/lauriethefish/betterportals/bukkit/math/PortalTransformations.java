@@ -14,6 +14,7 @@ import org.bukkit.util.Vector;
 
 /**
  * Handles the matrices used for transforming coordinates around the origin and destination of portals.
+ * Portals only rotate by multiples of 90 degrees, so block positions are transformed with {@link IntTransform}s instead, which avoid rounding errors.
  */
 public class PortalTransformations {
     private final PortalPosition originPos;
@@ -27,6 +28,12 @@ public class PortalTransformations {
     @Getter private final Matrix destinationToOrigin;
     @Getter private Matrix rotateToOrigin;
 
+    // Exact integer versions of the matrices above, used for block positions
+    @Getter private final IntTransform originToDestinationInt;
+    @Getter private final IntTransform rotateToDestinationInt;
+    @Getter private final IntTransform destinationToOriginInt;
+    @Getter private final IntTransform rotateToOriginInt;
+
     private final World originWorld;
     private final World destinationWorld;
 
@@ -53,6 +60,11 @@ public class PortalTransformations {
                 .multiply(rotateToOrigin)
                 .multiply(Matrix.makeTranslation(destPos.getVector().multiply(-1.0)));
 
+        rotateToDestinationInt = IntTransform.fromMatrix(rotateToDestination);
+        rotateToOriginInt = IntTransform.fromMatrix(rotateToOrigin);
+        originToDestinationInt = rotateToDestinationInt.withTranslation(originPos.getVector(), destPos.getVector());
+        destinationToOriginInt = rotateToOriginInt.withTranslation(destPos.getVector(), originPos.getVector());
+
         originWorld = originPos.getWorld();
         destinationWorld = destPos.getWorld();
     }
@@ -89,7 +101,7 @@ public class PortalTransformations {
      * @return The vector in the origin coordinate space
      */
     public IntVector moveToOrigin(IntVector vec) {
-        return destinationToOrigin.transform(vec);
+        return destinationToOriginInt.transform(vec);
     }
 
     /**
@@ -98,7 +110,7 @@ public class PortalTransformations {
      * @return The vector in the destination coordinate space
      */
     public IntVector moveToDestination(IntVector vec) {
-        return originToDestination.transform(vec);
+        return originToDestinationInt.transform(vec);
     }
 
     /**
@@ -131,23 +143,36 @@ public class PortalTransformations {
         return rotateToOrigin.transform(vec);
     }
 
-    /**
-     * Finds the correct {@link PlaneIntersectionChecker} for checking if blocks/entities are visible through the parent portal.
-     * @param rayOrigin The origin of rays to check, usually the player's eye position
-     * @return The intersection checker
-     */
-    public PlaneIntersectionChecker createIntersectionChecker(Vector rayOrigin) {
+    // Finds the size of the portal window as a radius, expanded by the collision box in the config
+    private Vector findWindowSize() {
         Vector planeSize = portalSize.clone().multiply(0.5); // The size for the intersection checker is a radius, so we half this since it's the size of the full portal window
         planeSize = originPos.getDirection().swapVector(planeSize); // Must be on the Z and Y, or Z and X if horizontal (portal's sizes always use the XZ, but we don't want this here)
 
         Vector collisionBoxOffset = originPos.getDirection().swapVector(renderConfig.getCollisionBox());
         planeSize.add(collisionBoxOffset); // Expand the size slightly by the values in the config
+        return planeSize;
+    }
 
+    /**
+     * Finds the correct {@link PlaneIntersectionChecker} for checking if blocks/entities are visible through the parent portal.
+     * @param rayOrigin The origin of rays to check, usually the player's eye position
+     * @return The intersection checker
+     */
+    public PlaneIntersectionChecker createIntersectionChecker(Vector rayOrigin) {
         return new PlaneIntersectionChecker(
                 originPos.getVector(),
                 originPos.getDirection().toVector(),
                 rayOrigin, // The origin pos of a portal is always exactly in the center of the plane
-                planeSize // The max deviation acts as a radius, so we half this
+                findWindowSize() // The max deviation acts as a radius, so we half this
         );
     }
-}
\ No newline at end of file
+
+    /**
+     * Finds the {@link PortalFrustum} for checking which blocks of the array map are visible through the parent portal.
+     * @param eyePos The position the portal is viewed from, usually the player's eye position
+     * @return The frustum
+     */
+    public PortalFrustum createFrustum(Vector eyePos) {
+        return new PortalFrustum(originPos.getVector(), originPos.getDirection().toVector(), eyePos, findWindowSize());
+    }
+}
@@ -3,7 +3,11 @@ package com.lauriethefish.betterportals.bukkit.nms;
 import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.ProtocolManager;
 import com.comphenix.protocol.events.PacketContainer;
+import com.comphenix.protocol.reflect.FuzzyReflection;
+import com.comphenix.protocol.reflect.fuzzy.FuzzyMethodContract;
+import com.comphenix.protocol.utility.MinecraftReflection;
 import com.comphenix.protocol.wrappers.BlockPosition;
+import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.lauriethefish.betterportals.api.IntVector;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -13,7 +17,12 @@ import org.bukkit.block.data.BlockData;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Objects;
+
 public class BlockDataUtil {
+    private static volatile Method getBlockIdMethod;
 
     /**
      * Converts {@code blockData} into an integer representation that can store necessary information about the block.
@@ -44,6 +53,30 @@ public class BlockDataUtil {
         return Bukkit.createBlockData(material);
     }
 
+    /**
+     * Finds the ID of {@code blockData} in the global block state palette, which is what chunk packets contain.
+     * Block.getId(BlockState) is found by its signature, since it has different names depending on the mappings.
+     *
+     * @param blockData The data to find the ID of
+     * @return The global palette ID
+     */
+    public static int getGlobalId(@NotNull WrappedBlockData blockData) {
+        if(getBlockIdMethod == null) {
+            getBlockIdMethod = FuzzyReflection.fromClass(MinecraftReflection.getBlockClass()).getMethod(FuzzyMethodContract.newBuilder()
+                    .requireModifier(Modifier.STATIC)
+                    .returnTypeExact(int.class)
+                    .parameterExactArray(MinecraftReflection.getIBlockDataClass())
+                    .build()
+            );
+        }
+
+        try {
+            return (int) getBlockIdMethod.invoke(null, blockData.getHandle());
+        }   catch(ReflectiveOperationException ex) {
+            throw new IllegalStateException("Failed to find the global ID of block data", ex);
+        }
+    }
+
     /**
      * Finds the ProtocolLib wrapper around the tile entity data update packet for {@code tileState}.
      * This is applicable only for states that are instances of {@link TileState}.
@@ -64,6 +97,16 @@ public class BlockDataUtil {
         return packet;
     }
 
+    /**
+     * Hashes the NBT content of a tile entity update packet, so that packets can be compared without keeping the old NBT around.
+     *
+     * @param packet The tile entity update packet
+     * @return The hash of the packet's NBT, or 0 if it has none
+     */
+    public static int getContentHash(@NotNull PacketContainer packet) {
+        return Objects.hashCode(packet.getNbtModifier().readSafely(0));
+    }
+
     /**
      * Sets the position of a PacketPlayOutTileEntityData in the packet itself.
      *
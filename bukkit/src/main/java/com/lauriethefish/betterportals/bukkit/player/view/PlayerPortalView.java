@@ -53,15 +53,11 @@ public class PlayerPortalView implements IPlayerPortalView  {
 
     @Override
     public void update() {
-        // Only compare the coordinates, not the looking direction
-        boolean moved = previousPosition == null || !player.getLocation().toVector().equals(previousPosition.toVector());
-
         // We refresh the block view every N ticks so that if the client doesn't change some of the blocks, they will be resent
-        if(ticksSinceStarted % renderConfig.getBlockStateRefreshInterval() == 0) {
-            blockView.update(true);
-        }   else if(moved) { // Otherwise, an update only happens when we move to save on performance
-            blockView.update(false);
-        }
+        // Otherwise, the block view skips the update unless the player has moved or the viewable blocks have changed
+        // This can be disabled, since blocks in sections that the server has overwritten are resent anyway
+        int refreshInterval = renderConfig.getBlockStateRefreshInterval();
+        blockView.update(refreshInterval > 0 && ticksSinceStarted % refreshInterval == 0);
 
         // This must be called every tick, since entities can move and they might be visible now
         if(entityView != null) {
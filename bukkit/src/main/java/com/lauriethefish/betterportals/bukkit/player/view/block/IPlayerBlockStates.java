@@ -1,22 +1,32 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
+import com.comphenix.protocol.wrappers.WrappedBlockData;
+import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
+
+import java.util.function.BiConsumer;
 
 // Implementors of this class must make sure that it is thread safe
 // Manages the current blocks that the player can see
+// Blocks are identified by their array map index, so each instance must only be used with one block map
 public interface IPlayerBlockStates {
     // Should be called when moving a short distance in the same dimension
     // Actually changes the blocks back to what they should be
     void resetAndUpdate(int minChunkX, int maxChunkY);
 
     // Note: these methods just update the array, they won't actually send any packets
-    // Returns if the block was not viewable last tick, AKA whether or not an update packet is needed
-    boolean setViewable(Vector position, IViewableBlockInfo block);
+    // Returns if the block was not viewable last tick, or its rendered data has changed since it was sent, AKA whether or not an update packet is needed
+    boolean setViewable(IViewableBlockInfo block);
 
     // Returns if the block was viewable last tick, AKA whether or not an update packet is needed
-    boolean setNonViewable(Vector position, IViewableBlockInfo block);
+    boolean setNonViewable(IViewableBlockInfo block);
+
+    // Adds changes to reset any viewed blocks that have been removed from their block map, since they won't be checked again
+    void resetRemoved(IMultiBlockChangeManager multiBlockChangeManager);
+
+    // Calls the consumer with each block currently showing its destination with an array map index from startIndex (inclusive) to endIndex (exclusive), and the data that was sent for it
+    void forEachViewable(int startIndex, int endIndex, BiConsumer<IViewableBlockInfo, WrappedBlockData> consumer);
 
     interface Factory {
         IPlayerBlockStates create(Player player);
@@ -1,56 +1,194 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
+import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 import org.bukkit.entity.Player;
-import org.bukkit.util.Vector;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.BiConsumer;
 
+/**
+ * Tracks the blocks sent to a player by one portal view.
+ * States are stored in an open-addressing table keyed by their array map index, so no objects are created to look up a block.
+ */
 public class PlayerBlockStates implements IPlayerBlockStates {
+    private static final int INITIAL_CAPACITY = 64;
+
     private final Player player;
-    private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
+    private final BlockChangeAggregator changeAggregator;
     private final Logger logger;
 
-    private final Map<Vector, IViewableBlockInfo> viewedStates = new HashMap<>();
+    // Slots with a null block are empty. Linear probing is used, and the table is kept at most half full
+    private int[] indices = new int[INITIAL_CAPACITY];
+    private IViewableBlockInfo[] blocks = new IViewableBlockInfo[INITIAL_CAPACITY];
+    // Wrapped data comes from the WrappedBlockDataPool, so this can be compared by identity
+    private WrappedBlockData[] sentData = new WrappedBlockData[INITIAL_CAPACITY];
+    private int size = 0;
+    // The array map indices in the table, so that ranges of indices can be found without going over the whole table
+    private final BitSet viewableIndices = new BitSet();
 
     @Inject
-    public PlayerBlockStates(@Assisted Player player, IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, Logger logger) {
+    public PlayerBlockStates(@Assisted Player player, BlockChangeAggregator changeAggregator, Logger logger) {
         this.player = player;
-        this.multiBlockChangeManagerFactory = multiBlockChangeManagerFactory;
+        this.changeAggregator = changeAggregator;
         this.logger = logger;
     }
 
+    private int findStartSlot(int index) {
+        int hash = index * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (blocks.length - 1);
+    }
+
+    /**
+     * Finds the slot holding <code>index</code>, or the empty slot where it would be placed.
+     */
+    private int findSlot(int index) {
+        int mask = blocks.length - 1;
+        int slot = findStartSlot(index);
+        while(blocks[slot] != null && indices[slot] != index) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int newCapacity) {
+        int[] oldIndices = indices;
+        IViewableBlockInfo[] oldBlocks = blocks;
+        WrappedBlockData[] oldSentData = sentData;
+
+        indices = new int[newCapacity];
+        blocks = new IViewableBlockInfo[newCapacity];
+        sentData = new WrappedBlockData[newCapacity];
+        for(int i = 0; i < oldBlocks.length; i++) {
+            if(oldBlocks[i] == null) {continue;}
+
+            int slot = findSlot(oldIndices[i]);
+            indices[slot] = oldIndices[i];
+            blocks[slot] = oldBlocks[i];
+            sentData[slot] = oldSentData[i];
+        }
+    }
+
+    private void removeSlot(int slot) {
+        int mask = blocks.length - 1;
+        viewableIndices.clear(indices[slot]);
+        blocks[slot] = null;
+        sentData[slot] = null;
+        size--;
+
+        // Shift back any following entries that would no longer be found past the gap
+        int gap = slot;
+        int current = (slot + 1) & mask;
+        while(blocks[current] != null) {
+            int startSlot = findStartSlot(indices[current]);
+            boolean canMove = gap <= current ? (startSlot <= gap || startSlot > current) : (startSlot <= gap && startSlot > current);
+            if(canMove) {
+                indices[gap] = indices[current];
+                blocks[gap] = blocks[current];
+                sentData[gap] = sentData[current];
+                blocks[current] = null;
+                sentData[current] = null;
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+    }
+
+    private void clear() {
+        if(blocks.length > INITIAL_CAPACITY) {
+            indices = new int[INITIAL_CAPACITY];
+            blocks = new IViewableBlockInfo[INITIAL_CAPACITY];
+            sentData = new WrappedBlockData[INITIAL_CAPACITY];
+        }   else    {
+            Arrays.fill(blocks, null);
+            Arrays.fill(sentData, null);
+        }
+        viewableIndices.clear();
+        size = 0;
+    }
+
     @Override
     public void resetAndUpdate(int minChunkY, int maxChunkY) {
-        if(viewedStates.size() == 0) {
+        if(size == 0) {
             logger.finer("No states to reset!");
             return;
         }
 
-        // Use a MultiBlockChangeManager to actually send the changes
-        IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
+        // The changes are sent along with any others for this player
+        logger.finest("Resetting %d blocks", size);
+        changeAggregator.queueChanges(player, minChunkY, maxChunkY, (multiBlockChangeManager, tileEntityUpdates) -> {
+            for(IViewableBlockInfo block : blocks) {
+                if(block != null) {
+                    multiBlockChangeManager.addChangeOrigin(block);
+                }
+            }
+        });
+
+        clear();
+    }
+
+    @Override
+    public boolean setViewable(IViewableBlockInfo block) {
+        WrappedBlockData newData = block.getRenderedDestData();
 
-        logger.finest("Resetting %d blocks", viewedStates.size());
-        for(Map.Entry<Vector, IViewableBlockInfo> entry : viewedStates.entrySet()) {
-            multiBlockChangeManager.addChangeOrigin(entry.getKey(), entry.getValue());
+        int slot = findSlot(block.getIndex());
+        if(blocks[slot] == null) {
+            indices[slot] = block.getIndex();
+            blocks[slot] = block;
+            sentData[slot] = newData;
+            viewableIndices.set(block.getIndex());
+            if(++size * 2 > blocks.length) {
+                resize(blocks.length * 2);
+            }
+            return true;
         }
-        multiBlockChangeManager.sendChanges();
 
-        viewedStates.clear();
+        // Resend the block if the destination has changed since it was last sent
+        blocks[slot] = block;
+        if(sentData[slot] != newData) {
+            sentData[slot] = newData;
+            return true;
+        }
+        return false;
     }
 
     @Override
-    public boolean setViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.put(position, block) == null;
+    public boolean setNonViewable(IViewableBlockInfo block) {
+        int slot = findSlot(block.getIndex());
+        if(blocks[slot] != block) {
+            return false;
+        }
+
+        removeSlot(slot);
+        return true;
     }
 
     @Override
-    public boolean setNonViewable(Vector position, IViewableBlockInfo block) {
-        return viewedStates.remove(position, block);
+    public void resetRemoved(IMultiBlockChangeManager multiBlockChangeManager) {
+        int slot = 0;
+        while(slot < blocks.length) {
+            IViewableBlockInfo block = blocks[slot];
+            if(block != null && block.isRemoved()) {
+                multiBlockChangeManager.addChangeOrigin(block);
+                // Removing shifts a later entry into this slot, so it must be checked again
+                removeSlot(slot);
+            }   else    {
+                slot++;
+            }
+        }
+    }
+
+    @Override
+    public void forEachViewable(int startIndex, int endIndex, BiConsumer<IViewableBlockInfo, WrappedBlockData> consumer) {
+        for(int index = viewableIndices.nextSetBit(startIndex); index >= 0 && index < endIndex; index = viewableIndices.nextSetBit(index + 1)) {
+            int slot = findSlot(index);
+            consumer.accept(blocks[slot], sentData[slot]);
+        }
     }
 }
@@ -1,16 +1,20 @@
 package com.lauriethefish.betterportals.bukkit.player.view.block;
 
-import com.comphenix.protocol.ProtocolLibrary;
 import com.comphenix.protocol.events.PacketContainer;
 import com.comphenix.protocol.wrappers.WrappedBlockData;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.lauriethefish.betterportals.api.IntVector;
 import com.lauriethefish.betterportals.api.PortalDirection;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
 import com.lauriethefish.betterportals.bukkit.block.IBlockMap;
 import com.lauriethefish.betterportals.bukkit.block.IViewableBlockInfo;
 import com.lauriethefish.betterportals.bukkit.block.IMultiBlockChangeManager;
+import com.lauriethefish.betterportals.bukkit.block.OverwrittenSectionTracker;
+import com.lauriethefish.betterportals.bukkit.block.ViewableStateStore;
+import com.lauriethefish.betterportals.bukkit.block.WrappedBlockDataPool;
+import com.lauriethefish.betterportals.bukkit.block.bukkit.ChunkColumnSplice;
 import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
-import com.lauriethefish.betterportals.bukkit.math.PlaneIntersectionChecker;
 import com.lauriethefish.betterportals.bukkit.portal.IPortal;
 import com.lauriethefish.betterportals.bukkit.tasks.BlockUpdateFinisher;
 import com.lauriethefish.betterportals.bukkit.util.HeightUtil;
@@ -23,20 +27,30 @@ import org.bukkit.util.Vector;
 
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 public class PlayerBlockView implements IPlayerBlockView   {
+    private static final double EYE_POSITION_PRECISION = 16.0;
+
     private final Player player;
     private final IPortal portal;
 
-    private final IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory;
+    private final BlockChangeAggregator changeAggregator;
     private final IPlayerBlockStates blockStates;
     // Avoid resetting block states while they're being updated asynchronously
     private final ReentrantLock statesLock = new ReentrantLock(true);
     private final Logger logger;
     private final BlockUpdateFinisher updateFinisher;
     private final boolean shouldHidePortalBlocks;
+    // Positions of the blocks inside the portal window, which are hidden if shouldHidePortalBlocks is true
+    private final List<IntVector> portalBlockPositions;
+    private final WrappedBlockDataPool dataPool;
+    private final OverwrittenSectionTracker sectionTracker;
+    // Sections that the server has overwritten on the client since our blocks were sent
+    private final OverwrittenSectionTracker.Sections overwrittenSections;
 
     private final int minChunkY;
     private final int maxChunkY;
@@ -47,38 +61,90 @@ public class PlayerBlockView implements IPlayerBlockView   {
     // Used to avoid a situation where the portal is no longer viewable and the blocks were reset, then an async update comes in and resends them
     private volatile boolean didDeactivate = false;
 
+    // Only accessed while holding the states lock
+    private long lastRemovalEpoch = 0;
+    private BitSet visibleIndices = new BitSet();
+    private BitSet lastVisibleIndices = new BitSet();
+    private final BitSet changedIndices = new BitSet();
+    // The states processed by the last update, or null if the blocks have been reset since
+    private ViewableStateStore.Snapshot lastViewableStates;
+
+    // Only accessed on the main thread, used to skip updates when nothing has changed
+    private long lastEyeX;
+    private long lastEyeY;
+    private long lastEyeZ;
+    private ViewableStateStore.Snapshot lastScheduledStates;
+    private boolean portalBlocksHidden = false;
+
+    private final RenderConfig renderConfig;
+    private final IntVector gridOrigin;
+
     @Inject
     public PlayerBlockView(@Assisted Player player, @Assisted IPortal portal,
-                           IMultiBlockChangeManager.Factory multiBlockChangeManagerFactory, IPlayerBlockStates.Factory blockStatesFactory,
-                           Logger logger, BlockUpdateFinisher updateFinisher, RenderConfig renderConfig) {
+                           BlockChangeAggregator changeAggregator, IPlayerBlockStates.Factory blockStatesFactory,
+                           Logger logger, BlockUpdateFinisher updateFinisher, RenderConfig renderConfig, WrappedBlockDataPool dataPool,
+                           OverwrittenSectionTracker sectionTracker) {
         this.player = player;
         this.portal = portal;
-        this.multiBlockChangeManagerFactory = multiBlockChangeManagerFactory;
+        this.changeAggregator = changeAggregator;
         this.blockStates = blockStatesFactory.create(player);
         this.logger = logger;
         this.updateFinisher = updateFinisher;
         this.shouldHidePortalBlocks = portal.isNetherPortal() && renderConfig.isPortalBlocksHidden();
+        this.dataPool = dataPool;
+        this.renderConfig = renderConfig;
+        this.gridOrigin = new IntVector(portal.getOriginPos().getVector());
+        this.sectionTracker = sectionTracker;
+        this.portalBlockPositions = shouldHidePortalBlocks ? findPortalBlockPositions() : new ArrayList<>();
 
         World viewWorld = player.getWorld();
         minChunkY = HeightUtil.getMinHeight(viewWorld) >> 4;
         maxChunkY = HeightUtil.getMaxHeight(viewWorld) >> 4;
+
+        // Done last, since chunk packets may be spliced from another thread straight away
+        this.overwrittenSections = sectionTracker.register(player, this::spliceColumn);
     }
 
     // Called whenever the player moves
     @Override
     public void update(boolean refresh) {
-        playerPosition = player.getEyeLocation().toVector();
-        updateFinisher.scheduleUpdate(this, refresh);
+        Vector eyePosition = player.getEyeLocation().toVector();
+        long eyeX = quantize(eyePosition.getX());
+        long eyeY = quantize(eyePosition.getY());
+        long eyeZ = quantize(eyePosition.getZ());
+        ViewableStateStore.Snapshot viewableStates = portal.getViewableBlocks().getViewableStates();
+
+        // The portal blocks are hidden when the view starts, and again on each refresh in case the client reset them
+        // Blocks in overwritten sections are hidden again by the update
+        if(shouldHidePortalBlocks && (refresh || !portalBlocksHidden)) {
+            setPortalBlocks(dataPool.intern(Material.AIR));
+            portalBlocksHidden = true;
+        }
 
-        if(refresh && shouldHidePortalBlocks) {
-            setPortalBlocks(WrappedBlockData.createData(Material.AIR));
+        // If the player hasn't moved, the viewable states haven't changed and none of our blocks were overwritten, then the update would do nothing
+        boolean moved = eyeX != lastEyeX || eyeY != lastEyeY || eyeZ != lastEyeZ;
+        if(!refresh && !moved && viewableStates == lastScheduledStates && overwrittenSections.isEmpty()) {
+            return;
         }
+        lastEyeX = eyeX;
+        lastEyeY = eyeY;
+        lastEyeZ = eyeZ;
+        lastScheduledStates = viewableStates;
+
+        playerPosition = eyePosition;
+        updateFinisher.scheduleUpdate(this, refresh);
+    }
+
+    // Movements smaller than this fraction of a block don't cause an update
+    private static long quantize(double coordinate) {
+        return (long) Math.floor(coordinate * EYE_POSITION_PRECISION);
     }
 
     @Override
     public void finishReset() {
         statesLock.lock();
         try {
+            lastViewableStates = null;
             blockStates.resetAndUpdate(minChunkY, maxChunkY);
         }   finally {
             statesLock.unlock();
@@ -90,6 +156,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
     public void onDeactivate(boolean shouldResetStates) {
         didDeactivate = true;
         logger.finer("Player block view deactivating. Should reset states: %b", shouldResetStates);
+        sectionTracker.unregister(overwrittenSections);
 
         if(shouldResetStates) {
             // Reset the portal blocks back to the portal material. Avoid reshowing them if the portal is no longer registered, since then breaking a portal will create ghost portal blocks.
@@ -101,6 +168,7 @@ public class PlayerBlockView implements IPlayerBlockView   {
             if(statesLock.tryLock()) {
                 logger.finest("Resetting immediately!");
                 try {
+                    lastViewableStates = null;
                     blockStates.resetAndUpdate(minChunkY, maxChunkY);
                 } finally {
                     statesLock.unlock();
@@ -121,83 +189,194 @@ public class PlayerBlockView implements IPlayerBlockView   {
         statesLock.lock();
 
         try {
-            IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
-            List<PacketContainer> queuedTileEntityUpdates = new ArrayList<>();
+            changeAggregator.setViewFocus(player, portal.getOriginPos().getVector(), playerPosition);
 
-            PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(playerPosition);
+            // The changes are merged with those from the player's other portal views, then sent together
+            changeAggregator.queueChanges(player, minChunkY, maxChunkY, (multiBlockChangeManager, queuedTileEntityUpdates) ->
+                    updateBlocks(refresh, multiBlockChangeManager, queuedTileEntityUpdates)
+            );
 
-            IBlockMap viewableBlockArray = portal.getViewableBlocks();
-            List<IViewableBlockInfo> viewableStates = viewableBlockArray.getViewableStates();
-            if(viewableStates == null) {
-                return;
+            // Removed due to being unreasonably frequent
+            //logger.finest("Performed viewable block process. Time taken: %fms", timer.getTimeTakenMillis());
+        }   finally     {
+            statesLock.unlock();
+        }
+    }
+
+    private void updateBlocks(boolean refresh, IMultiBlockChangeManager multiBlockChangeManager, List<PacketContainer> queuedTileEntityUpdates) {
+        IBlockMap viewableBlockArray = portal.getViewableBlocks();
+        ViewableStateStore.Snapshot viewableStates = viewableBlockArray.getViewableStates();
+        if(viewableStates == null) {
+            return;
+        }
+
+        // Visibility is found for the whole array map at once, which is much cheaper than checking each block
+        portal.getTransformations().createFrustum(playerPosition).findVisibleIndices(gridOrigin, renderConfig, visibleIndices);
+
+        // Taken before sending, so that sections overwritten during this update are resent next time
+        OverwrittenSectionTracker.Sections overwritten = overwrittenSections.take();
+
+        if(!refresh && viewableStates == lastViewableStates) {
+            // The states haven't changed since the last update, so only blocks that have moved in or out of view need updating
+            changedIndices.clear();
+            changedIndices.or(visibleIndices);
+            changedIndices.xor(lastVisibleIndices);
+
+            for(int index = changedIndices.nextSetBit(0); index >= 0; index = changedIndices.nextSetBit(index + 1)) {
+                IViewableBlockInfo blockInfo = viewableStates.getStateAt(index);
+                if(blockInfo != null) {
+                    updateBlock(blockInfo, visibleIndices.get(index), false, viewableBlockArray, multiBlockChangeManager, queuedTileEntityUpdates);
+                }
+            }
+        }   else    {
+            // Blocks that were covered up at the destination are removed from the map, so they must be reset here instead
+            if(viewableStates.getRemovalEpoch() != lastRemovalEpoch) {
+                blockStates.resetRemoved(multiBlockChangeManager);
+                lastRemovalEpoch = viewableStates.getRemovalEpoch();
             }
 
-            for (IViewableBlockInfo blockInfo : viewableStates) {
-                Vector position = blockInfo.getOriginPos().getCenterPos();
-
-                boolean visible = intersectionChecker.checkIfIntersects(position);
-
-                // If visible/non-visible, change to the new state
-                // However, don't bother resending the packet again if the block has already been changed
-                // (unless we're refreshing the sent blocks)
-                if (visible) {
-                    if (blockStates.setViewable(position, blockInfo) || refresh) {
-                        multiBlockChangeManager.addChangeDestination(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getDestinationTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            if (nbtUpdatePacket.getBlocks() != null)
-                                continue;
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at destination");
-                        }
-                    }
-                } else {
-                    if (blockStates.setNonViewable(position, blockInfo)) {
-                        multiBlockChangeManager.addChangeOrigin(position, blockInfo);
-
-                        PacketContainer nbtUpdatePacket = viewableBlockArray.getOriginTileEntityPacket(blockInfo.getOriginPos());
-                        if (nbtUpdatePacket != null) {
-                            if (nbtUpdatePacket.getBlocks() != null)
-                                continue;
-                            queuedTileEntityUpdates.add(nbtUpdatePacket);
-                            logger.fine("Queueing tile state update at origin");
-                        }
-                    }
+            for (IViewableBlockInfo blockInfo : viewableStates.getStates()) {
+                updateBlock(blockInfo, visibleIndices.get(blockInfo.getIndex()), refresh, viewableBlockArray, multiBlockChangeManager, queuedTileEntityUpdates);
+            }
+        }
+
+        // A refresh has already resent every visible block
+        if(!refresh && !overwritten.isEmpty()) {
+            resendOverwritten(viewableStates, overwritten, viewableBlockArray, multiBlockChangeManager, queuedTileEntityUpdates);
+        }
+
+        // The portal blocks aren't part of the viewable states, so they must be hidden again separately if their sections were overwritten
+        if(shouldHidePortalBlocks && !overwritten.isEmpty()) {
+            WrappedBlockData air = dataPool.intern(Material.AIR);
+            for(IntVector position : portalBlockPositions) {
+                if(overwritten.isOverwritten(position.getX(), position.getY(), position.getZ())) {
+                    multiBlockChangeManager.addChange(position.getX(), position.getY(), position.getZ(), air);
                 }
             }
+        }
+
+        // Keep the visible indices for the next update to compare against
+        BitSet previousVisible = lastVisibleIndices;
+        lastVisibleIndices = visibleIndices;
+        visibleIndices = previousVisible;
+        lastViewableStates = viewableStates;
+    }
 
-            // Show the player the changed states
-            multiBlockChangeManager.sendChanges();
-            try {
-                for (PacketContainer packet : queuedTileEntityUpdates) {
-                    ProtocolLibrary.getProtocolManager().sendServerPacket(player, packet);
+    // Places the blocks that currently show the destination into an outgoing chunk packet
+    // This runs on the packet thread, so it gives up instead of waiting for an update. The section is then resent afterwards as usual
+    private boolean spliceColumn(ChunkColumnSplice splice) {
+        if(!statesLock.tryLock()) {return false;}
+        try {
+            if(didDeactivate) {return false;}
+
+            IBlockMap viewableBlockArray = portal.getViewableBlocks();
+            List<PacketContainer> tileEntityUpdates = new ArrayList<>();
+            forEachViewableInColumn(splice.getChunkX(), splice.getChunkZ(), (blockInfo, sentData) -> {
+                IntVector position = blockInfo.getOriginPos();
+                splice.setBlock(position.getX(), position.getY(), position.getZ(), sentData);
+
+                PacketContainer nbtUpdatePacket = viewableBlockArray.getDestinationTileEntityPacket(position);
+                if(nbtUpdatePacket != null && nbtUpdatePacket.getBlocks() == null) {
+                    tileEntityUpdates.add(nbtUpdatePacket);
                 }
-            } catch (Exception ex) {
-                throw new RuntimeException(ex);
+            });
+
+            if(shouldHidePortalBlocks) {
+                WrappedBlockData air = dataPool.intern(Material.AIR);
+                portalBlockPositions.forEach(position -> splice.setBlock(position.getX(), position.getY(), position.getZ(), air));
             }
 
-            // Removed due to being unreasonably frequent
-            //logger.finest("Performed viewable block process. Time taken: %fms", timer.getTimeTakenMillis());
+            // The chunk packet only holds the tile entities of the origin, so those of the destination are sent after it
+            if(!tileEntityUpdates.isEmpty()) {
+                changeAggregator.queueChanges(player, minChunkY, maxChunkY, (multiBlockChangeManager, queuedTileEntityUpdates) ->
+                        queuedTileEntityUpdates.addAll(tileEntityUpdates)
+                );
+            }
+            return true;
         }   finally     {
             statesLock.unlock();
         }
     }
 
+    // Calls the consumer with each block showing its destination within the given chunk column
+    // Each row of the array map along the X axis within the column is checked separately, so blocks in other columns are never visited
+    private void forEachViewableInColumn(int chunkX, int chunkZ, BiConsumer<IViewableBlockInfo, WrappedBlockData> consumer) {
+        int maxXZ = (int) renderConfig.getMaxXZ();
+        int maxY = (int) renderConfig.getMaxY();
+
+        int minRelX = Math.max(-maxXZ, (chunkX << 4) - gridOrigin.getX());
+        int maxRelX = Math.min(maxXZ, (chunkX << 4) + 15 - gridOrigin.getX());
+        int minRelZ = Math.max(-maxXZ, (chunkZ << 4) - gridOrigin.getZ());
+        int maxRelZ = Math.min(maxXZ, (chunkZ << 4) + 15 - gridOrigin.getZ());
+        if(minRelX > maxRelX || minRelZ > maxRelZ) {return;}
+
+        for(int relY = -maxY; relY <= maxY; relY++) {
+            for(int relZ = minRelZ; relZ <= maxRelZ; relZ++) {
+                int rowStart = (minRelX + maxXZ) + (relZ + maxXZ) * renderConfig.getZMultip() + (relY + maxY) * renderConfig.getYMultip();
+                blockStates.forEachViewable(rowStart, rowStart + maxRelX - minRelX + 1, consumer);
+            }
+        }
+    }
+
+    // Resends the visible blocks within sections that the server has replaced on the client
+    private void resendOverwritten(ViewableStateStore.Snapshot viewableStates, OverwrittenSectionTracker.Sections overwritten, IBlockMap viewableBlockArray,
+                                   IMultiBlockChangeManager multiBlockChangeManager, List<PacketContainer> queuedTileEntityUpdates) {
+        for(IViewableBlockInfo blockInfo : viewableStates.getStates()) {
+            if(!visibleIndices.get(blockInfo.getIndex())) {continue;}
+
+            IntVector position = blockInfo.getOriginPos();
+            if(overwritten.isOverwritten(position.getX(), position.getY(), position.getZ())) {
+                updateBlock(blockInfo, true, true, viewableBlockArray, multiBlockChangeManager, queuedTileEntityUpdates);
+            }
+        }
+    }
+
+    private void updateBlock(IViewableBlockInfo blockInfo, boolean visible, boolean refresh, IBlockMap viewableBlockArray,
+                             IMultiBlockChangeManager multiBlockChangeManager, List<PacketContainer> queuedTileEntityUpdates) {
+        // If visible/non-visible, change to the new state
+        // However, don't bother resending the packet again if the block has already been changed
+        // (unless we're refreshing the sent blocks)
+        if (visible) {
+            if (blockStates.setViewable(blockInfo) || refresh) {
+                multiBlockChangeManager.addChangeDestination(blockInfo);
+
+                PacketContainer nbtUpdatePacket = viewableBlockArray.getDestinationTileEntityPacket(blockInfo.getOriginPos());
+                if (nbtUpdatePacket != null) {
+                    if (nbtUpdatePacket.getBlocks() != null)
+                        return;
+                    queuedTileEntityUpdates.add(nbtUpdatePacket);
+                    logger.fine("Queueing tile state update at destination");
+                }
+            }
+        } else {
+            if (blockStates.setNonViewable(blockInfo)) {
+                multiBlockChangeManager.addChangeOrigin(blockInfo);
+
+                PacketContainer nbtUpdatePacket = viewableBlockArray.getOriginTileEntityPacket(blockInfo.getOriginPos());
+                if (nbtUpdatePacket != null) {
+                    if (nbtUpdatePacket.getBlocks() != null)
+                        return;
+                    queuedTileEntityUpdates.add(nbtUpdatePacket);
+                    logger.fine("Queueing tile state update at origin");
+                }
+            }
+        }
+    }
+
     // Gets the right rotation of portal block depending on the portal's direction
     private WrappedBlockData getPortalBlockData() {
         PortalDirection portalDirection = portal.getOriginPos().getDirection();
         if(portalDirection == PortalDirection.EAST || portalDirection == PortalDirection.WEST) {
-            return WrappedBlockData.createData(MaterialUtil.PORTAL_MATERIAL, 2); // EAST/WEST portal blocks must be rotated
+            return dataPool.intern(MaterialUtil.PORTAL_MATERIAL, 2); // EAST/WEST portal blocks must be rotated
         }   else if(portalDirection == PortalDirection.NORTH || portalDirection == PortalDirection.SOUTH) {
-            return WrappedBlockData.createData(MaterialUtil.PORTAL_MATERIAL, 0);
+            return dataPool.intern(MaterialUtil.PORTAL_MATERIAL, 0);
         }   else {
             throw new IllegalStateException("Tried to get portal block data of a horizontal portal");
         }
     }
 
-    // Sets each block inside the portal window to the specified WrappedBlockData
-    private void setPortalBlocks(WrappedBlockData data) {
+    // Finds the position of each block inside the portal window
+    private List<IntVector> findPortalBlockPositions() {
         // Find the position at the bottom-left of the portal by subtracting half of the portal size
         Vector portalPos = portal.getOriginPos().getVector();
         Vector portalSize = portal.getSize();
@@ -205,16 +384,25 @@ public class PlayerBlockView implements IPlayerBlockView   {
         PortalDirection portalDirection = portal.getOriginPos().getDirection();
         portalPos.subtract(portalDirection.swapVector(portalSize).multiply(0.5));
 
-        IMultiBlockChangeManager multiBlockChangeManager = multiBlockChangeManagerFactory.create(player, minChunkY, maxChunkY);
+        List<IntVector> positions = new ArrayList<>();
         for(int x = 0; x < portalSize.getX(); x++) {
             for(int y = 0; y < portalSize.getY(); y++) {
                 // Swap the coordinates if necessary to get the relative position
                 Vector relativePos = portalDirection.swapVector(new Vector(x, y, 0.0));
                 Vector blockPos = portalPos.clone().add(relativePos);
 
-                multiBlockChangeManager.addChange(blockPos, data);
+                positions.add(new IntVector(blockPos.getBlockX(), blockPos.getBlockY(), blockPos.getBlockZ()));
             }
         }
-        multiBlockChangeManager.sendChanges();
+        return positions;
+    }
+
+    // Sets each block inside the portal window to the specified WrappedBlockData
+    private void setPortalBlocks(WrappedBlockData data) {
+        changeAggregator.queueChanges(player, minChunkY, maxChunkY, (multiBlockChangeManager, queuedTileEntityUpdates) -> {
+            for(IntVector position : portalBlockPositions) {
+                multiBlockChangeManager.addChange(position.getX(), position.getY(), position.getZ(), data);
+            }
+        });
     }
 }
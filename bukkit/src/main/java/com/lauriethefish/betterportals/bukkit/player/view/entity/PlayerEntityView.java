@@ -13,6 +13,7 @@ import org.bukkit.entity.Entity;
 import org.bukkit.entity.Player;
 import org.bukkit.metadata.MetadataValue;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -27,6 +28,14 @@ public class PlayerEntityView implements IPlayerEntityView  {
     private final Map<Entity, EntityInfo> hiddenEntities = new HashMap<>();
     private final Set<Entity> replicatedEntities = new HashSet<>();
 
+    // Reused between updates to hold the positions of the entities being checked
+    private double[] batchX = new double[0];
+    private double[] batchY = new double[0];
+    private double[] batchZ = new double[0];
+    private boolean[] batchResults = new boolean[0];
+    private Entity[] batchEntities = new Entity[0];
+    private final Location batchLocation = new Location(null, 0, 0, 0);
+
     @Inject
     public PlayerEntityView(@Assisted IPortal portal, @Assisted Player player, IEntityPacketManipulator packetManipulator, Logger logger, EntityTrackingManager trackingManager) {
         this.portal = portal;
@@ -49,12 +58,27 @@ public class PlayerEntityView implements IPlayerEntityView  {
 
         Set<Entity> nowHidden = new HashSet<>();
 
-        for(Entity entity : portal.getEntityList().getOriginEntities()) {
+        // The positions are checked together in one batch
+        Collection<Entity> originEntities = portal.getEntityList().getOriginEntities();
+        ensureBatchCapacity(originEntities.size());
+        int count = 0;
+        for(Entity entity : originEntities) {
+            Location location = entity.getLocation(batchLocation);
+            batchEntities[count] = entity;
+            batchX[count] = location.getX();
+            batchY[count] = location.getY();
+            batchZ[count] = location.getZ();
+            count++;
+        }
+        intersectionChecker.checkIfIntersects(batchX, batchY, batchZ, count, batchResults);
+
+        for(int i = 0; i < count; i++) {
+            Entity entity = batchEntities[i];
+            batchEntities[i] = null; // Avoid keeping removed entities loaded until the buffer is next filled
             if(entity == player) {continue;}
 
             // If the line from the player's position to the entity intersects the portal, then hide it since it'll spoil the effect by appearing in front of the blocks
-            boolean shouldBeHidden = intersectionChecker.checkIfIntersects(entity.getLocation().toVector());
-            if(!shouldBeHidden) {continue;}
+            if(!batchResults[i]) {continue;}
 
             nowHidden.add(entity);
             if(!hiddenEntities.containsKey(entity)) {
@@ -72,6 +96,17 @@ public class PlayerEntityView implements IPlayerEntityView  {
         });
     }
 
+    private void ensureBatchCapacity(int count) {
+        if(batchX.length >= count) {return;}
+
+        int capacity = Math.max(count, batchX.length * 2);
+        batchX = new double[capacity];
+        batchY = new double[capacity];
+        batchZ = new double[capacity];
+        batchResults = new boolean[capacity];
+        batchEntities = new Entity[capacity];
+    }
+
     private void updateReplicatedEntities() {
         PlaneIntersectionChecker intersectionChecker = portal.getTransformations().createIntersectionChecker(player.getEyeLocation().toVector());
 
@@ -84,7 +119,7 @@ public class PlayerEntityView implements IPlayerEntityView  {
 
             Location originPos = portal.getTransformations().moveToOrigin(entity.getLocation());
 
-            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos.toVector());
+            boolean shouldBeReplicated = intersectionChecker.checkIfIntersects(originPos.getX(), originPos.getY(), originPos.getZ());
             if(!shouldBeReplicated) {continue;}
             nowReplicated.add(entity);
 
@@ -0,0 +1,70 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs block map updates (flood fills and change checks) on a pool of worker threads, so that they don't take up time on the main thread.
+ * The pool is created when the first update is submitted, since the thread count comes from the config.
+ */
+@Singleton
+public class BlockMapWorkerPool {
+    private final RenderConfig renderConfig;
+    private final Logger logger;
+
+    private ExecutorService executor;
+
+    @Inject
+    public BlockMapWorkerPool(RenderConfig renderConfig, Logger logger) {
+        this.renderConfig = renderConfig;
+        this.logger = logger;
+    }
+
+    private ExecutorService createExecutor() {
+        int threadCount = renderConfig.getBlockMapWorkerThreads();
+        if(threadCount <= 0) {
+            // Leave most of the cores for the server itself
+            threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        }
+        logger.fine("Starting block map worker pool with %d threads", threadCount);
+
+        AtomicInteger threadId = new AtomicInteger();
+        ThreadFactory threadFactory = (runnable) -> {
+            Thread thread = new Thread(runnable, "BetterPortals Block Map Thread #" + threadId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+
+        return Executors.newFixedThreadPool(threadCount, threadFactory);
+    }
+
+    /**
+     * Runs <code>task</code> on one of the worker threads.
+     * @param task The task to run
+     */
+    public synchronized void submit(Runnable task) {
+        if(executor == null) {
+            executor = createExecutor();
+        }
+
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the worker threads once any queued updates have finished.
+     * The pool will be recreated if another task is submitted.
+     */
+    public synchronized void stop() {
+        if(executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
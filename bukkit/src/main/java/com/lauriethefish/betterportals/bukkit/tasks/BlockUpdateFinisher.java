@@ -1,73 +1,125 @@
 package com.lauriethefish.betterportals.bukkit.tasks;
 
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
 import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 /**
- * Handles doing the final processing for portal block updates on another thread
+ * Handles doing the final processing for portal block updates on other threads
  * Doing tons of raycasts to find which blocks are visible is moderately expensive, so happens on another thread
+ * Views are split between a number of shards, each of which is processed by one thread at a time, so that the updates of each view stay in order.
+ * Updates scheduled while a view already has one pending are merged into it, rather than being queued again.
  */
 public abstract class BlockUpdateFinisher {
+    // Later types take precedence when merging pending updates
     private enum BlockViewUpdateType {
         REGULAR, // Update blocks
         REFRESH, // Update and refresh all blocks
-        RESET // Reset all blocks
+        RESET // Reset all blocks. Views are deactivated before being reset, so any update afterwards would do nothing
     }
 
-    private static class BlockViewUpdateInfo {
-        PlayerBlockView blockView;
-        BlockViewUpdateType type;
-        public BlockViewUpdateInfo(PlayerBlockView blockView, BlockViewUpdateType type) {
-            this.blockView = blockView;
-            this.type = type;
-        }
+    // The pending update of each view. Views are only in their shard's queue while they have an entry here
+    private final ConcurrentMap<PlayerBlockView, BlockViewUpdateType> pendingUpdates = new ConcurrentHashMap<>();
+    private volatile List<BlockingQueue<PlayerBlockView>> shards = createShardQueues(1);
+
+    protected final Logger logger;
+    private final BlockChangeAggregator changeAggregator;
 
-        // Equals only requires the BlockViewUpdateInfo to be equal - used to check if an update is already pending
-        @Override
-        public boolean equals(Object other) {
-            if(!(other instanceof BlockViewUpdateInfo)) {return false;}
+    private volatile boolean hasStopped = false;
+
+    protected BlockUpdateFinisher(Logger logger, BlockChangeAggregator changeAggregator) {
+        this.logger = logger;
+        this.changeAggregator = changeAggregator;
+    }
 
-            return blockView == ((BlockViewUpdateInfo) other).blockView;
+    private static List<BlockingQueue<PlayerBlockView>> createShardQueues(int count) {
+        List<BlockingQueue<PlayerBlockView>> queues = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            queues.add(new LinkedBlockingQueue<>());
         }
+        return queues;
     }
 
-    private final BlockingQueue<BlockViewUpdateInfo> updateQueue = new LinkedBlockingQueue<>();
-    protected final Logger logger;
+    /**
+     * Sets the number of shards that views are split between. Must be called before any updates are scheduled.
+     * @param count The number of shards
+     */
+    protected void setShardCount(int count) {
+        shards = createShardQueues(count);
+    }
 
-    private volatile boolean hasStopped = false;
+    protected int getShardCount() {
+        return shards.size();
+    }
 
-    protected BlockUpdateFinisher(Logger logger) {
-        this.logger = logger;
+    private BlockingQueue<PlayerBlockView> getShard(PlayerBlockView blockView) {
+        List<BlockingQueue<PlayerBlockView>> currentShards = shards;
+        return currentShards.get(Math.floorMod(System.identityHashCode(blockView), currentShards.size()));
     }
 
-    private void processUpdate(BlockViewUpdateInfo next) {
-        if(next.type == BlockViewUpdateType.RESET) {
+    /**
+     * Runs the pending update of <code>blockView</code>, if it has one.
+     * @param blockView The view to update
+     */
+    protected void processUpdate(PlayerBlockView blockView) {
+        // Any updates scheduled after this will queue the view again
+        BlockViewUpdateType type = pendingUpdates.remove(blockView);
+        if(type == null) {return;}
+
+        if(type == BlockViewUpdateType.RESET) {
             logger.fine("Running scheduled reset");
-            next.blockView.finishReset();
+            blockView.finishReset();
         }   else    {
-            next.blockView.finishUpdate(next.type == BlockViewUpdateType.REFRESH);
+            blockView.finishUpdate(type == BlockViewUpdateType.REFRESH);
         }
     }
 
-    protected void processUpdatesContinually()  {
+    /**
+     * Processes the updates of one shard until this finisher is stopped.
+     * @param shard Index of the shard
+     */
+    protected void processUpdatesContinually(int shard)  {
+        BlockingQueue<PlayerBlockView> queue = shards.get(shard);
         try {
             while (!hasStopped) {
-                BlockViewUpdateInfo next = updateQueue.take();
-                processUpdate(next);
+                processUpdate(queue.take());
+
+                // Changes from all of the views updated together are sent at once
+                if(queue.isEmpty()) {
+                    flushChanges();
+                }
             }
         }   catch(InterruptedException ignored) { }
     }
 
     protected void finishPendingUpdates() {
-        while(true) {
-            BlockViewUpdateInfo next = updateQueue.poll();
-            if(next == null) {return;}
+        for(BlockingQueue<PlayerBlockView> queue : shards) {
+            while(true) {
+                PlayerBlockView next = queue.poll();
+                if(next == null) {break;}
 
-            processUpdate(next);
+                processUpdate(next);
+            }
         }
+        flushChanges();
+    }
+
+    /**
+     * Sends the block changes made by the views updated so far.
+     */
+    protected void flushChanges() {
+        changeAggregator.flush();
+    }
+
+    protected boolean isStopped() {
+        return hasStopped;
     }
 
     /**
@@ -82,42 +134,53 @@ public abstract class BlockUpdateFinisher {
         hasStopped = true;
     }
 
-    /**
-     * Schedules the update for <code>blockView</code> to happen on another thread.
-     * @param blockView The block view to be updated
-     * @param refresh Whether to resend all block states regardless of if they were already sent
-     */
-    public void scheduleUpdate(PlayerBlockView blockView, boolean refresh) {
-        BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, refresh ? BlockViewUpdateType.REFRESH : BlockViewUpdateType.REGULAR);
+    private void schedule(PlayerBlockView blockView, BlockViewUpdateType type) {
+        boolean[] wasPending = {false};
+        pendingUpdates.compute(blockView, (view, existing) -> {
+            if(existing == null) {
+                return type;
+            }
+
+            wasPending[0] = true;
+            return existing.ordinal() >= type.ordinal() ? existing : type;
+        });
 
-        if(updateQueue.contains(updateInfo)) {
-            logger.fine("Block update was scheduled when previous update had not finished. Server is running behind!");
+        if(wasPending[0]) {
+            logger.finest("Block update was scheduled when previous update had not finished. Merging with the previous update");
             return;
         }
 
+        queueUpdate(blockView);
+    }
+
+    /**
+     * Called when <code>blockView</code> has a new pending update, so needs to be processed.
+     * By default, this places it in the queue of its shard.
+     * @param blockView The view to queue
+     */
+    protected void queueUpdate(PlayerBlockView blockView) {
         try {
-            updateQueue.put(updateInfo);
+            getShard(blockView).put(blockView);
         }   catch(InterruptedException ex) {
             ex.printStackTrace();
         }
     }
 
+    /**
+     * Schedules the update for <code>blockView</code> to happen on another thread.
+     * @param blockView The block view to be updated
+     * @param refresh Whether to resend all block states regardless of if they were already sent
+     */
+    public void scheduleUpdate(PlayerBlockView blockView, boolean refresh) {
+        schedule(blockView, refresh ? BlockViewUpdateType.REFRESH : BlockViewUpdateType.REGULAR);
+    }
+
     /**
      * Schedules a block reset which will call {@link PlayerBlockView#finishReset()} when ran.
-     * This will remove any block updates currently queued for this view
+     * This will replace any block updates currently queued for this view
      * @param blockView The block view to reset
      */
     public void scheduleReset(PlayerBlockView blockView) {
-        try {
-            BlockViewUpdateInfo updateInfo = new BlockViewUpdateInfo(blockView, BlockViewUpdateType.RESET);
-
-            // Remove any updates pending to update the given view
-            updateQueue.remove(updateInfo);
-
-            // Now we can schedule our reset
-            updateQueue.put(updateInfo);
-        }   catch(InterruptedException ex) {
-            ex.printStackTrace();
-        }
+        schedule(blockView, BlockViewUpdateType.RESET);
     }
 }
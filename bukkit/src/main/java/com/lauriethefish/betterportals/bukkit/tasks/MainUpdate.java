@@ -2,6 +2,7 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
 import com.lauriethefish.betterportals.bukkit.block.external.IExternalBlockWatcherManager;
 import com.lauriethefish.betterportals.bukkit.entity.faking.EntityTrackingManager;
 import com.lauriethefish.betterportals.bukkit.net.ClientRequestHandler;
@@ -25,6 +26,7 @@ public class MainUpdate implements Runnable {
     private final EntityTrackingManager entityTrackingManager;
     private final ClientRequestHandler requestHandler;
     private final IExternalBlockWatcherManager blockWatcherManager;
+    private final BlockChangeAggregator changeAggregator;
     private final Logger logger;
 
     @Inject
@@ -33,13 +35,15 @@ public class MainUpdate implements Runnable {
                       IPortalActivityManager activityManager,
                       EntityTrackingManager entityTrackingManager,
                       ClientRequestHandler requestHandler,
-                      IExternalBlockWatcherManager blockWatcherManager, Logger logger) {
+                      IExternalBlockWatcherManager blockWatcherManager,
+                      BlockChangeAggregator changeAggregator, Logger logger) {
         this.pl = pl;
         this.playerDataManager = playerDataManager;
         this.activityManager = activityManager;
         this.entityTrackingManager = entityTrackingManager;
         this.requestHandler = requestHandler;
         this.blockWatcherManager = blockWatcherManager;
+        this.changeAggregator = changeAggregator;
         this.logger = logger;
     }
 
@@ -62,6 +66,9 @@ public class MainUpdate implements Runnable {
 
             blockWatcherManager.update();
 
+            // Send any block changes made on the main thread this tick, e.g. resets from deactivated portal views
+            changeAggregator.flush();
+
         }   catch(RuntimeException ex) {
             logger.severe("A critical error occurred during main update.");
             logger.severe("Please create an issue at %s to get this fixed.", ISSUES_URL);
@@ -2,40 +2,60 @@ package com.lauriethefish.betterportals.bukkit.tasks;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
+import com.lauriethefish.betterportals.bukkit.config.RenderConfig;
 import com.lauriethefish.betterportals.shared.logging.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
- * Uses a thread instead of a Bukkit task to finish block view updates
+ * Uses threads instead of a Bukkit task to finish block view updates
  * Probably less idiomatic, but does provide lower latency
+ * Each thread processes one shard of the views, so the work can be spread between cores when there are lots of players
  */
 @Singleton
-public class ThreadedBlockUpdateFinisher extends BlockUpdateFinisher implements Runnable    {
-    private Thread thread;
+public class ThreadedBlockUpdateFinisher extends BlockUpdateFinisher {
+    private final RenderConfig renderConfig;
+    private final List<Thread> threads = new ArrayList<>();
 
     @Inject
-    public ThreadedBlockUpdateFinisher(Logger logger) {
-        super(logger);
+    public ThreadedBlockUpdateFinisher(Logger logger, BlockChangeAggregator changeAggregator, RenderConfig renderConfig) {
+        super(logger, changeAggregator);
+        this.renderConfig = renderConfig;
     }
 
     @Override
     public void start() {
-        thread = new Thread(this, "BetterPortals View Update Thread");
-        thread.start();
+        int threadCount = renderConfig.getBlockViewUpdateThreads();
+        if(threadCount <= 0) {
+            // Leave most of the cores for the server itself
+            threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 4);
+        }
+        logger.fine("Starting %d block view update threads", threadCount);
+
+        setShardCount(threadCount);
+        for(int i = 0; i < threadCount; i++) {
+            int shard = i;
+            Thread thread = new Thread(() -> run(shard), "BetterPortals View Update Thread #" + (i + 1));
+            threads.add(thread);
+            thread.start();
+        }
     }
 
     @Override
     public void stop() {
-        if(thread != null) {
+        for(Thread thread : threads) {
             thread.interrupt();
         }
+        threads.clear();
         super.stop();
     }
 
-    @Override
-    public void run() {
+    private void run(int shard) {
         logger.fine("Hello from block view update thread!");
 
-        super.processUpdatesContinually();
+        super.processUpdatesContinually(shard);
 
         logger.fine("Goodbye from block view update thread!");
     }
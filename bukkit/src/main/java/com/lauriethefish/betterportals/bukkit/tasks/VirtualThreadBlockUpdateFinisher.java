@@ -0,0 +1,115 @@
+package com.lauriethefish.betterportals.bukkit.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.lauriethefish.betterportals.bukkit.block.BlockChangeAggregator;
+import com.lauriethefish.betterportals.bukkit.player.view.block.PlayerBlockView;
+import com.lauriethefish.betterportals.shared.logging.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the updates of each view on its own virtual thread, which waits until the view is scheduled.
+ * This avoids both the latency of the Bukkit task, and views waiting behind others in the same shard.
+ * Threads exit after their view hasn't been scheduled for a while, since views that are deactivated without a reset are never told.
+ */
+@Singleton
+public class VirtualThreadBlockUpdateFinisher extends BlockUpdateFinisher {
+    private static final long IDLE_TIMEOUT_SECONDS = 10;
+
+    private class ViewWorker implements Runnable {
+        private final PlayerBlockView blockView;
+        private final Semaphore signal = new Semaphore(0);
+
+        private ViewWorker(PlayerBlockView blockView) {
+            this.blockView = blockView;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!isStopped()) {
+                    if(!signal.tryAcquire(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                        if(tryExit()) {return;}
+                        continue;
+                    }
+
+                    busyWorkers.incrementAndGet();
+                    runSafely(() -> processUpdate(blockView));
+                    // Changes from views updated at the same time are sent together
+                    if(busyWorkers.decrementAndGet() == 0) {
+                        runSafely(VirtualThreadBlockUpdateFinisher.this::flushChanges);
+                    }
+                }
+            }   catch(InterruptedException ignored) { }
+        }
+
+        // Errors must not end the loop, since the view may have been scheduled again while updating, and would then never be processed
+        private void runSafely(Runnable action) {
+            try {
+                action.run();
+            }   catch(RuntimeException ex) {
+                logger.severe("Error occurred while updating block view");
+                ex.printStackTrace();
+            }
+        }
+
+        // Removing the worker is atomic with scheduling the view, so a signal can't be missed
+        private boolean tryExit() {
+            boolean[] didExit = {false};
+            workers.computeIfPresent(blockView, (view, existing) -> {
+                if(existing != this || signal.availablePermits() > 0) {
+                    return existing;
+                }
+
+                didExit[0] = true;
+                return null;
+            });
+            return didExit[0];
+        }
+    }
+
+    private final Map<PlayerBlockView, ViewWorker> workers = new ConcurrentHashMap<>();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    @Inject
+    public VirtualThreadBlockUpdateFinisher(Logger logger, BlockChangeAggregator changeAggregator) {
+        super(logger, changeAggregator);
+    }
+
+    @Override
+    public void start() {
+        logger.fine("Using virtual threads for block view updates");
+    }
+
+    @Override
+    protected void queueUpdate(PlayerBlockView blockView) {
+        if(isStopped()) {return;}
+
+        workers.compute(blockView, (view, existing) -> {
+            ViewWorker worker = existing;
+            if(worker == null) {
+                worker = new ViewWorker(view);
+                Thread.ofVirtual().name("BetterPortals View Update Thread").start(worker);
+            }
+
+            worker.signal.release();
+            return worker;
+        });
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+
+        // Wake up the workers so that they notice the finisher has stopped
+        for(ViewWorker worker : workers.values()) {
+            worker.signal.release();
+        }
+        workers.clear();
+    }
+}
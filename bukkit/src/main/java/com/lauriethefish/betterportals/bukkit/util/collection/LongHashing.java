@@ -0,0 +1,33 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+/**
+ * Shared parts of the open addressing tables keyed by <code>long</code>s.
+ * Empty slots hold {@link LongHashing#EMPTY}. Since that is also a valid key, each table stores it separately.
+ */
+final class LongHashing {
+    static final long EMPTY = Long.MIN_VALUE;
+    static final int INITIAL_CAPACITY = 16;
+
+    private LongHashing() {}
+
+    static int findStartSlot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Finds if the entry in slot <code>current</code>, which would first be placed at <code>startSlot</code>, can be moved back into the empty slot <code>gap</code>.
+     */
+    static boolean canShiftBack(int gap, int current, int startSlot) {
+        return gap <= current ? (startSlot <= gap || startSlot > current) : (startSlot <= gap && startSlot > current);
+    }
+
+    static int findCapacity(int size) {
+        int capacity = INITIAL_CAPACITY;
+        // Tables are kept at most half full
+        while(capacity < size * 2) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+}
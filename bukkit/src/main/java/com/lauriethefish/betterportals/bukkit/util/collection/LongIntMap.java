@@ -0,0 +1,147 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A map from <code>long</code> keys to <code>int</code> values, stored in an open addressing table so that nothing is boxed.
+ * When serialized, only the entries are written rather than the whole table. Not thread safe.
+ */
+public class LongIntMap implements Serializable {
+    private static final long serialVersionUID = 1;
+
+    public interface EntryConsumer {
+        void accept(long key, int value);
+    }
+
+    private transient long[] keys;
+    private transient int[] values;
+    private transient boolean containsEmptyKey;
+    private transient int emptyKeyValue;
+    private transient int size;
+
+    public LongIntMap() {
+        this(LongHashing.INITIAL_CAPACITY);
+    }
+
+    private LongIntMap(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, LongHashing.EMPTY);
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = LongHashing.findStartSlot(key, mask);
+        while(keys[slot] != LongHashing.EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public boolean containsKey(long key) {
+        if(key == LongHashing.EMPTY) {return containsEmptyKey;}
+        return keys[findSlot(key)] == key;
+    }
+
+    /**
+     * @return The value for <code>key</code>, or <code>defaultValue</code> if there is none
+     */
+    public int getOrDefault(long key, int defaultValue) {
+        if(key == LongHashing.EMPTY) {
+            return containsEmptyKey ? emptyKeyValue : defaultValue;
+        }
+
+        int slot = findSlot(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    public void put(long key, int value) {
+        if(key == LongHashing.EMPTY) {
+            if(!containsEmptyKey) {size++;}
+            containsEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+
+        int slot = findSlot(key);
+        values[slot] = value;
+        if(keys[slot] == key) {return;}
+
+        keys[slot] = key;
+        if(++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, LongHashing.EMPTY);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == LongHashing.EMPTY) {continue;}
+
+            int slot = findSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    public void forEach(EntryConsumer action) {
+        if(containsEmptyKey) {
+            action.accept(LongHashing.EMPTY, emptyKeyValue);
+        }
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != LongHashing.EMPTY) {
+                action.accept(keys[i], values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if(keys.length > LongHashing.INITIAL_CAPACITY) {
+            keys = new long[LongHashing.INITIAL_CAPACITY];
+            values = new int[LongHashing.INITIAL_CAPACITY];
+        }
+        Arrays.fill(keys, LongHashing.EMPTY);
+        containsEmptyKey = false;
+        size = 0;
+    }
+
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        output.writeInt(size);
+        if(containsEmptyKey) {
+            output.writeLong(LongHashing.EMPTY);
+            output.writeInt(emptyKeyValue);
+        }
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] == LongHashing.EMPTY) {continue;}
+
+            output.writeLong(keys[i]);
+            output.writeInt(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException {
+        int entryCount = input.readInt();
+        keys = new long[LongHashing.findCapacity(entryCount + 1)];
+        values = new int[keys.length];
+        Arrays.fill(keys, LongHashing.EMPTY);
+        for(int i = 0; i < entryCount; i++) {
+            put(input.readLong(), input.readInt());
+        }
+    }
+}
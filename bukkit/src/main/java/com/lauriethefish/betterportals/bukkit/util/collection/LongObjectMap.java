@@ -0,0 +1,201 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A map from <code>long</code> keys to objects, stored in an open addressing table so that keys aren't boxed.
+ * Null values are not allowed. Not thread safe, although a map that is no longer modified can be read from any thread once safely published.
+ * @param <V> Type of the values
+ */
+public class LongObjectMap<V> {
+    public interface EntryConsumer<V> {
+        void accept(long key, V value);
+    }
+
+    public interface EntryPredicate<V> {
+        boolean test(long key, V value);
+    }
+
+    private long[] keys;
+    private Object[] values;
+    private Object emptyKeyValue;
+    private int size = 0;
+
+    public LongObjectMap() {
+        this(LongHashing.INITIAL_CAPACITY);
+    }
+
+    private LongObjectMap(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, LongHashing.EMPTY);
+    }
+
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = LongHashing.findStartSlot(key, mask);
+        while(keys[slot] != LongHashing.EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        if(key == LongHashing.EMPTY) {return (V) emptyKeyValue;}
+        return (V) values[findSlot(key)];
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return The previous value for this key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(long key, @NotNull V value) {
+        if(key == LongHashing.EMPTY) {
+            V previous = (V) emptyKeyValue;
+            if(previous == null) {size++;}
+            emptyKeyValue = value;
+            return previous;
+        }
+
+        int slot = findSlot(key);
+        V previous = (V) values[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        if(previous == null && ++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return previous;
+    }
+
+    /**
+     * @return The removed value, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        if(key == LongHashing.EMPTY) {
+            V previous = (V) emptyKeyValue;
+            if(previous != null) {size--;}
+            emptyKeyValue = null;
+            return previous;
+        }
+
+        int slot = findSlot(key);
+        V previous = (V) values[slot];
+        if(previous != null) {
+            removeSlot(slot);
+        }
+        return previous;
+    }
+
+    private void removeSlot(int slot) {
+        int mask = keys.length - 1;
+        keys[slot] = LongHashing.EMPTY;
+        values[slot] = null;
+        size--;
+
+        // Shift back any following entries that would no longer be found past the gap
+        int gap = slot;
+        int current = (slot + 1) & mask;
+        while(keys[current] != LongHashing.EMPTY) {
+            if(LongHashing.canShiftBack(gap, current, LongHashing.findStartSlot(keys[current], mask))) {
+                keys[gap] = keys[current];
+                values[gap] = values[current];
+                keys[current] = LongHashing.EMPTY;
+                values[current] = null;
+                gap = current;
+            }
+            current = (current + 1) & mask;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        Arrays.fill(keys, LongHashing.EMPTY);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] == LongHashing.EMPTY) {continue;}
+
+            int slot = findSlot(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(EntryConsumer<V> action) {
+        if(emptyKeyValue != null) {
+            action.accept(LongHashing.EMPTY, (V) emptyKeyValue);
+        }
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != LongHashing.EMPTY) {
+                action.accept(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes every entry that matches <code>predicate</code>.
+     * @return Whether any entries were removed
+     */
+    @SuppressWarnings("unchecked")
+    public boolean removeIf(EntryPredicate<V> predicate) {
+        int oldSize = size;
+        if(emptyKeyValue != null && predicate.test(LongHashing.EMPTY, (V) emptyKeyValue)) {
+            emptyKeyValue = null;
+            size--;
+        }
+
+        int slot = 0;
+        while(slot < keys.length) {
+            if(keys[slot] != LongHashing.EMPTY && predicate.test(keys[slot], (V) values[slot])) {
+                // Removing shifts a later entry into this slot, so it must be checked again
+                removeSlot(slot);
+            }   else    {
+                slot++;
+            }
+        }
+        return size != oldSize;
+    }
+
+    /**
+     * @return A new map with the same entries
+     */
+    public @NotNull LongObjectMap<V> copy() {
+        LongObjectMap<V> result = new LongObjectMap<>(keys.length);
+        System.arraycopy(keys, 0, result.keys, 0, keys.length);
+        System.arraycopy(values, 0, result.values, 0, values.length);
+        result.emptyKeyValue = emptyKeyValue;
+        result.size = size;
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if(keys.length > LongHashing.INITIAL_CAPACITY) {
+            keys = new long[LongHashing.INITIAL_CAPACITY];
+            values = new Object[LongHashing.INITIAL_CAPACITY];
+        }   else    {
+            Arrays.fill(values, null);
+        }
+        Arrays.fill(keys, LongHashing.EMPTY);
+        emptyKeyValue = null;
+        size = 0;
+    }
+}
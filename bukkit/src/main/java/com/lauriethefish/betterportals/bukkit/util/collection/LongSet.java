@@ -0,0 +1,93 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A set of <code>long</code>s stored in an open addressing table, so values aren't boxed.
+ * Not thread safe.
+ */
+public class LongSet {
+    private long[] keys;
+    private boolean containsEmpty = false;
+    private int size = 0;
+
+    public LongSet() {
+        keys = new long[LongHashing.INITIAL_CAPACITY];
+        Arrays.fill(keys, LongHashing.EMPTY);
+    }
+
+    private int findSlot(long value) {
+        int mask = keys.length - 1;
+        int slot = LongHashing.findStartSlot(value, mask);
+        while(keys[slot] != LongHashing.EMPTY && keys[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return Whether the value was not already in the set
+     */
+    public boolean add(long value) {
+        if(value == LongHashing.EMPTY) {
+            if(containsEmpty) {return false;}
+            containsEmpty = true;
+            size++;
+            return true;
+        }
+
+        int slot = findSlot(value);
+        if(keys[slot] == value) {return false;}
+
+        keys[slot] = value;
+        if(++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if(value == LongHashing.EMPTY) {return containsEmpty;}
+        return keys[findSlot(value)] == value;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        keys = new long[capacity];
+        Arrays.fill(keys, LongHashing.EMPTY);
+        for(long key : oldKeys) {
+            if(key != LongHashing.EMPTY) {
+                keys[findSlot(key)] = key;
+            }
+        }
+    }
+
+    public void forEach(LongConsumer action) {
+        if(containsEmpty) {
+            action.accept(LongHashing.EMPTY);
+        }
+        for(long key : keys) {
+            if(key != LongHashing.EMPTY) {
+                action.accept(key);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if(keys.length > LongHashing.INITIAL_CAPACITY) {
+            keys = new long[LongHashing.INITIAL_CAPACITY];
+        }
+        Arrays.fill(keys, LongHashing.EMPTY);
+        containsEmpty = false;
+        size = 0;
+    }
+}
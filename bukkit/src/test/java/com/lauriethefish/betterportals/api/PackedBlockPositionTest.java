@@ -0,0 +1,65 @@
+package com.lauriethefish.betterportals.api;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PackedBlockPositionTest {
+    // The world border is at 30 million blocks, and the packed Y can hold 12 bits
+    private static final int MAX_XZ = 30_000_000;
+    private static final int MIN_Y = -2048;
+    private static final int MAX_Y = 2047;
+
+    private static void assertRoundTrip(int x, int y, int z) {
+        long packed = PackedBlockPosition.pack(x, y, z);
+        String message = String.format("(%d, %d, %d)", x, y, z);
+        assertEquals(x, PackedBlockPosition.unpackX(packed), message);
+        assertEquals(y, PackedBlockPosition.unpackY(packed), message);
+        assertEquals(z, PackedBlockPosition.unpackZ(packed), message);
+    }
+
+    @Test
+    public void testNegativeCoordinates() {
+        assertRoundTrip(-1, -1, -1);
+        assertRoundTrip(-1, 0, 1);
+        assertRoundTrip(1, -64, -1);
+        assertRoundTrip(-123456, -33, -654321);
+    }
+
+    @Test
+    public void testLimits() {
+        int[] xzValues = {-MAX_XZ, -MAX_XZ + 1, -1, 0, 1, MAX_XZ - 1, MAX_XZ, -(1 << 25), (1 << 25) - 1};
+        int[] yValues = {MIN_Y, -64, -1, 0, 1, 319, MAX_Y};
+        for(int x : xzValues) {
+            for(int y : yValues) {
+                for(int z : xzValues) {
+                    assertRoundTrip(x, y, z);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testVectorRoundTrip() {
+        IntVector position = new IntVector(-29_999_999, -64, 29_999_999);
+        assertEquals(position, PackedBlockPosition.unpack(PackedBlockPosition.pack(position)));
+    }
+
+    @Test
+    public void testDistinctPositions() {
+        // Neighbouring positions must never pack to the same value, including across the sign boundaries
+        Set<Long> packed = new HashSet<>();
+        for(int x = -2; x <= 2; x++) {
+            for(int y = -2; y <= 2; y++) {
+                for(int z = -2; z <= 2; z++) {
+                    assertTrue(packed.add(PackedBlockPosition.pack(x, y, z)));
+                    assertTrue(packed.add(PackedBlockPosition.pack(x + MAX_XZ, y + MAX_Y - 2, z - MAX_XZ)));
+                }
+            }
+        }
+    }
+}
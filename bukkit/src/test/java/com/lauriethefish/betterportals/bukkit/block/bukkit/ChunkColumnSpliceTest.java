@@ -0,0 +1,226 @@
+package com.lauriethefish.betterportals.bukkit.block.bukkit;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Section data is built here in the same layout as the server, then compared against what {@link ChunkColumnSplice} encodes.
+ */
+public class ChunkColumnSpliceTest {
+    private static final int SECTION_VOLUME = 4096;
+    private static final int DIRECT_BITS = 15;
+    private static final int[] AIR_IDS = {0, 12000, 12001};
+    private static final int STONE = 1;
+    private static final int DIRT = 10;
+    private static final int GLASS = 262;
+
+    private static final int CHUNK_X = -3;
+    private static final int CHUNK_Z = 7;
+    private static final int MIN_SECTION_Y = -4;
+
+    private static int[] filledSection(int id) {
+        int[] ids = new int[SECTION_VOLUME];
+        Arrays.fill(ids, id);
+        return ids;
+    }
+
+    // A section with a few layers of different blocks, which needs an indirect palette
+    private static int[] layeredSection() {
+        int[] ids = new int[SECTION_VOLUME];
+        for(int i = 0; i < SECTION_VOLUME; i++) {
+            int y = i >> 8;
+            ids[i] = y < 4 ? STONE : y < 6 ? DIRT : y == 6 ? GLASS : AIR_IDS[0];
+        }
+        return ids;
+    }
+
+    // A section with more different blocks than an indirect palette can hold
+    private static int[] directSection() {
+        int[] ids = new int[SECTION_VOLUME];
+        for(int i = 0; i < SECTION_VOLUME; i++) {
+            ids[i] = i % 600;
+        }
+        return ids;
+    }
+
+    private static int index(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static int blockX(int relX) {
+        return (CHUNK_X << 4) + relX;
+    }
+
+    private static int blockZ(int relZ) {
+        return (CHUNK_Z << 4) + relZ;
+    }
+
+    private static int blockY(int section, int relY) {
+        return ((section + MIN_SECTION_Y) << 4) + relY;
+    }
+
+    private static void writeVarInt(DataOutputStream output, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    private static void writeSection(DataOutputStream output, int[] ids, boolean lengthPrefixed, boolean forceDirect) throws IOException {
+        Map<Integer, Integer> paletteIndices = new LinkedHashMap<>();
+        int nonAirCount = 0;
+        for(int id : ids) {
+            paletteIndices.putIfAbsent(id, paletteIndices.size());
+            if(Arrays.stream(AIR_IDS).noneMatch(airId -> airId == id)) {nonAirCount++;}
+        }
+        output.writeShort(nonAirCount);
+
+        if(paletteIndices.size() == 1 && !forceDirect) {
+            output.writeByte(0);
+            writeVarInt(output, ids[0]);
+            if(lengthPrefixed) {writeVarInt(output, 0);}
+        }   else    {
+            int bits = Math.max(4, Integer.SIZE - Integer.numberOfLeadingZeros(paletteIndices.size() - 1));
+            boolean direct = forceDirect || bits > 8;
+            if(direct) {
+                bits = DIRECT_BITS;
+            }
+
+            output.writeByte(bits);
+            if(!direct) {
+                writeVarInt(output, paletteIndices.size());
+                for(int id : paletteIndices.keySet()) {
+                    writeVarInt(output, id);
+                }
+            }
+
+            int valuesPerLong = Long.SIZE / bits;
+            int longCount = (SECTION_VOLUME + valuesPerLong - 1) / valuesPerLong;
+            if(lengthPrefixed) {writeVarInt(output, longCount);}
+            for(int i = 0; i < longCount; i++) {
+                long packed = 0;
+                for(int j = 0; j < valuesPerLong && i * valuesPerLong + j < SECTION_VOLUME; j++) {
+                    int id = ids[i * valuesPerLong + j];
+                    packed |= (long) (direct ? id : paletteIndices.get(id)) << (j * bits);
+                }
+                output.writeLong(packed);
+            }
+        }
+
+        // Single valued biomes, which are copied unchanged
+        output.writeByte(0);
+        writeVarInt(output, 3);
+        if(lengthPrefixed) {writeVarInt(output, 0);}
+    }
+
+    private static byte[] buildColumn(boolean lengthPrefixed, boolean firstDirect, int[]... sections) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        try {
+            for(int i = 0; i < sections.length; i++) {
+                writeSection(output, sections[i], lengthPrefixed, i == 0 && firstDirect);
+            }
+        }   catch(IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ChunkColumnSplice createSplice(byte[] buffer, boolean lengthPrefixed) {
+        return new ChunkColumnSplice(CHUNK_X, CHUNK_Z, MIN_SECTION_Y, buffer, lengthPrefixed, AIR_IDS);
+    }
+
+    @Test
+    public void testUnchangedBlocksEncodeToSameBytes() {
+        for(boolean lengthPrefixed : new boolean[]{false, true}) {
+            int[] layered = layeredSection();
+            byte[] buffer = buildColumn(lengthPrefixed, true, directSection(), filledSection(STONE), layered, filledSection(AIR_IDS[0]));
+
+            // Setting a block to the state it already has decodes and encodes each section again
+            ChunkColumnSplice splice = createSplice(buffer.clone(), lengthPrefixed);
+            splice.setBlock(blockX(1), blockY(0, 2), blockZ(3), directSection()[index(1, 2, 3)]);
+            splice.setBlock(blockX(0), blockY(1, 0), blockZ(0), STONE);
+            splice.setBlock(blockX(15), blockY(2, 6), blockZ(15), layered[index(15, 6, 15)]);
+            splice.setBlock(blockX(4), blockY(3, 9), blockZ(2), AIR_IDS[0]);
+
+            assertTrue(splice.isModified());
+            assertArrayEquals(buffer, splice.encode());
+        }
+    }
+
+    @Test
+    public void testSingleValueToIndirect() {
+        for(boolean lengthPrefixed : new boolean[]{false, true}) {
+            byte[] buffer = buildColumn(lengthPrefixed, false, filledSection(STONE), filledSection(AIR_IDS[0]));
+
+            ChunkColumnSplice splice = createSplice(buffer, lengthPrefixed);
+            splice.setBlock(blockX(5), blockY(1, 8), blockZ(9), GLASS);
+            splice.setBlock(blockX(6), blockY(1, 8), blockZ(9), AIR_IDS[1]);
+            byte[] result = splice.encode();
+
+            int[] expected = filledSection(AIR_IDS[0]);
+            expected[index(5, 8, 9)] = GLASS;
+            expected[index(6, 8, 9)] = AIR_IDS[1];
+            assertArrayEquals(buildColumn(lengthPrefixed, false, filledSection(STONE), expected), result);
+
+            // The first section is copied unchanged, then the second should have one non-air block and a 4 bit palette of 3 states
+            ByteBuffer reader = ByteBuffer.wrap(result);
+            reader.position(buffer.length / 2);
+            assertEquals(1, reader.getShort());
+            assertEquals(4, reader.get());
+            assertEquals(3, reader.get());
+            assertEquals(AIR_IDS[0], reader.get());
+        }
+    }
+
+    @Test
+    public void testIndirectToDirect() {
+        for(boolean lengthPrefixed : new boolean[]{false, true}) {
+            // The number of bits used for direct sections is only known after one has been read
+            int[] layered = layeredSection();
+            byte[] buffer = buildColumn(lengthPrefixed, true, directSection(), layered);
+
+            ChunkColumnSplice splice = createSplice(buffer, lengthPrefixed);
+            splice.setBlock(blockX(0), blockY(0, 0), blockZ(0), 599);
+
+            int[] expected = layered.clone();
+            for(int i = 0; i < 300; i++) {
+                int x = i & 15;
+                int z = (i >> 4) & 15;
+                splice.setBlock(blockX(x), blockY(1, 12), blockZ(z), 1000 + i);
+                expected[index(x, 12, z)] = 1000 + i;
+            }
+
+            int[] expectedDirect = directSection();
+            expectedDirect[0] = 599;
+            assertArrayEquals(buildColumn(lengthPrefixed, true, expectedDirect, expected), splice.encode());
+        }
+    }
+
+    @Test
+    public void testBlocksOutsideColumnIgnored() {
+        byte[] buffer = buildColumn(false, false, filledSection(STONE));
+
+        ChunkColumnSplice splice = createSplice(buffer, false);
+        splice.setBlock(blockX(16), blockY(0, 0), blockZ(0), GLASS);
+        splice.setBlock(blockX(0), blockY(0, 0), blockZ(-1), GLASS);
+        splice.setBlock(blockX(0), blockY(-1, 15), blockZ(0), GLASS);
+        splice.setBlock(blockX(0), blockY(1, 0), blockZ(0), GLASS);
+
+        assertFalse(splice.isModified());
+        assertArrayEquals(buffer, splice.encode());
+    }
+}
@@ -0,0 +1,58 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the batch check gives the same results as checking each position, including positions left over after the last full vector.
+ */
+public class PlaneIntersectionCheckerTest {
+    private static final Vector CENTER = new Vector(100.5, 64.5, -40.5);
+    private static final Vector WINDOW_SIZE = new Vector(1.5, 2.0, 0.5);
+
+    @Test
+    public void testBatchMatchesSingleChecks() {
+        Random random = new Random(-2205471935123L);
+        Vector[] normals = {new Vector(1.0, 0.0, 0.0), new Vector(0.0, 1.0, 0.0), new Vector(0.0, 0.0, -1.0)};
+
+        int intersecting = 0;
+        for(Vector normal : normals) {
+            for(int count = 0; count <= 67; count++) {
+                Vector eyePos = CENTER.clone().add(new Vector(random.nextDouble() * 6.0 - 3.0, random.nextDouble() * 6.0 - 3.0, random.nextDouble() * 6.0 - 3.0));
+                PlaneIntersectionChecker checker = new PlaneIntersectionChecker(CENTER, normal, eyePos, WINDOW_SIZE);
+
+                double[] xs = new double[count];
+                double[] ys = new double[count];
+                double[] zs = new double[count];
+                for(int i = 0; i < count; i++) {
+                    // Some positions are on block centers, so that some lie exactly on the plane
+                    xs[i] = i % 3 == 0 ? Math.floor(CENTER.getX() + random.nextInt(9) - 4) + 0.5 : CENTER.getX() + random.nextDouble() * 8.0 - 4.0;
+                    ys[i] = i % 3 == 0 ? Math.floor(CENTER.getY() + random.nextInt(9) - 4) + 0.5 : CENTER.getY() + random.nextDouble() * 8.0 - 4.0;
+                    zs[i] = i % 3 == 0 ? Math.floor(CENTER.getZ() + random.nextInt(9) - 4) + 0.5 : CENTER.getZ() + random.nextDouble() * 8.0 - 4.0;
+                }
+                // The ray origin itself gives a zero length direction
+                if(count > 0) {
+                    xs[0] = eyePos.getX();
+                    ys[0] = eyePos.getY();
+                    zs[0] = eyePos.getZ();
+                }
+
+                boolean[] output = new boolean[count];
+                checker.checkIfIntersects(xs, ys, zs, count, output);
+                for(int i = 0; i < count; i++) {
+                    boolean expected = checker.checkIfIntersects(xs[i], ys[i], zs[i]);
+                    assertEquals(expected, output[i], String.format("normal %s, eye %s, position (%f, %f, %f)", normal, eyePos, xs[i], ys[i], zs[i]));
+                    if(expected) {intersecting++;}
+                }
+            }
+        }
+
+        // Make sure that both results were actually compared
+        assertTrue(intersecting > 0);
+    }
+}
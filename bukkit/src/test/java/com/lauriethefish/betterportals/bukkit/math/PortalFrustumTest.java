@@ -0,0 +1,101 @@
+package com.lauriethefish.betterportals.bukkit.math;
+
+import com.lauriethefish.betterportals.api.IntVector;
+import com.lauriethefish.betterportals.api.PortalDirection;
+import org.bukkit.util.Vector;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that {@link PortalFrustum} finds exactly the same visible blocks as {@link PlaneIntersectionChecker}, for every pair of portal directions.
+ * Eye positions are sampled around the destination and moved back to the origin, like a player looking through from the other side of a rotated, cross-world portal.
+ */
+public class PortalFrustumTest {
+    private static final int MAX_XZ = 6;
+    private static final int MAX_Y = 5;
+    private static final int EYES_PER_PORTAL = 12;
+
+    // Block centers on the normal axis lie exactly on the origin plane, since every coordinate ends in .5
+    private static final Vector ORIGIN_CENTER = new Vector(100.5, 64.5, -40.5);
+    // Like a nether portal, the destination is in a different world at far away coordinates
+    private static final Vector DEST_CENTER = new Vector(-3012.5, 31.0, 880.25);
+
+    private static final Vector PORTAL_SIZE = new Vector(2.0, 3.0, 0.0);
+    private static final Vector COLLISION_BOX = new Vector(0.5, 0.5, 0.5);
+
+    // The window size is found in the same way as PortalTransformations
+    private static Vector findWindowSize(PortalDirection direction) {
+        Vector planeSize = direction.swapVector(PORTAL_SIZE.clone().multiply(0.5));
+        return planeSize.add(direction.swapVector(COLLISION_BOX));
+    }
+
+    private static Vector findEyePosition(Random random, PortalDirection originDir, PortalDirection destDir) {
+        Matrix destinationToOrigin = Matrix.makeTranslation(ORIGIN_CENTER)
+                .multiply(Matrix.makeRotation(destDir, originDir))
+                .multiply(Matrix.makeTranslation(DEST_CENTER.clone().multiply(-1.0)));
+
+        // Eyes within the epsilon of the plane are skipped, since the two checks use different tolerances there
+        Vector offset;
+        double normalDistance;
+        do {
+            offset = new Vector(random.nextDouble() * 8.0 - 4.0, random.nextDouble() * 8.0 - 4.0, random.nextDouble() * 8.0 - 4.0);
+            normalDistance = offset.dot(destDir.toVector());
+        } while(Math.abs(normalDistance) < 0.05);
+
+        return destinationToOrigin.transform(DEST_CENTER.clone().add(offset));
+    }
+
+    @Test
+    public void testFrustumMatchesIntersectionChecker() {
+        Random random = new Random(7309245176857806033L);
+        IntVector gridOrigin = new IntVector(ORIGIN_CENTER);
+        int zMultip = MAX_XZ * 2 + 1;
+        int yMultip = zMultip * zMultip;
+        BitSet visible = new BitSet();
+
+        for(PortalDirection originDir : PortalDirection.values()) {
+            Vector normal = originDir.toVector();
+            Vector windowSize = findWindowSize(originDir);
+
+            for(PortalDirection destDir : PortalDirection.values()) {
+                int onPlaneVisible = 0;
+                for(int i = 0; i < EYES_PER_PORTAL; i++) {
+                    Vector eyePos = findEyePosition(random, originDir, destDir);
+                    PlaneIntersectionChecker checker = new PlaneIntersectionChecker(ORIGIN_CENTER, normal, eyePos, windowSize);
+                    PortalFrustum frustum = new PortalFrustum(ORIGIN_CENTER, normal, eyePos, windowSize);
+                    frustum.findVisibleIndices(gridOrigin, MAX_XZ, MAX_Y, visible);
+
+                    for(int z = -MAX_XZ; z <= MAX_XZ; z++) {
+                        for(int y = -MAX_Y; y <= MAX_Y; y++) {
+                            for(int x = -MAX_XZ; x <= MAX_XZ; x++) {
+                                double posX = gridOrigin.getX() + x + 0.5;
+                                double posY = gridOrigin.getY() + y + 0.5;
+                                double posZ = gridOrigin.getZ() + z + 0.5;
+                                boolean expected = checker.checkIfIntersects(posX, posY, posZ);
+                                String message = String.format("%s -> %s, eye %s, block (%d, %d, %d)", originDir, destDir, eyePos, x, y, z);
+
+                                assertEquals(expected, frustum.isVisible(posX, posY, posZ), message);
+                                int index = (x + MAX_XZ) + (z + MAX_XZ) * zMultip + (y + MAX_Y) * yMultip;
+                                assertEquals(expected, visible.get(index), message);
+
+                                double normalPos = posX * normal.getX() + posY * normal.getY() + posZ * normal.getZ();
+                                double centerNormalPos = ORIGIN_CENTER.dot(normal);
+                                if(expected && normalPos == centerNormalPos) {
+                                    onPlaneVisible++;
+                                }
+                            }
+                        }
+                    }
+                }
+
+                // Make sure that blocks exactly on the portal plane were actually compared
+                assertTrue(onPlaneVisible > 0, String.format("No visible blocks on the plane for %s -> %s", originDir, destDir));
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongHashingTest {
+    private static final int MASK = LongHashing.INITIAL_CAPACITY - 1;
+
+    /**
+     * Finds keys that are all first placed in the same slot of a new table, so that they collide.
+     * @param startSlot The slot to find keys for
+     * @param count The number of keys to find
+     * @return The keys, in increasing order
+     */
+    static long[] findCollidingKeys(int startSlot, int count) {
+        long[] result = new long[count];
+        int found = 0;
+        for(long key = 0; found < count; key++) {
+            if(LongHashing.findStartSlot(key, MASK) == startSlot) {
+                result[found++] = key;
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testStartSlotWithinTable() {
+        for(long key : new long[]{0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE + 1, 0x123456789L}) {
+            int slot = LongHashing.findStartSlot(key, MASK);
+            assertTrue(slot >= 0 && slot <= MASK);
+        }
+    }
+
+    @Test
+    public void testCanShiftBack() {
+        // Without wrapping, an entry can move back to the gap unless it starts after the gap
+        assertTrue(LongHashing.canShiftBack(3, 5, 2));
+        assertTrue(LongHashing.canShiftBack(3, 5, 3));
+        assertFalse(LongHashing.canShiftBack(3, 5, 4));
+        assertFalse(LongHashing.canShiftBack(3, 5, 5));
+
+        // The entry has wrapped around past the end of the table, so the gap is after it
+        assertTrue(LongHashing.canShiftBack(14, 1, 13));
+        assertTrue(LongHashing.canShiftBack(14, 1, 14));
+        assertFalse(LongHashing.canShiftBack(14, 1, 15));
+        assertFalse(LongHashing.canShiftBack(14, 1, 0));
+        assertFalse(LongHashing.canShiftBack(14, 1, 1));
+    }
+
+    @Test
+    public void testFindCapacity() {
+        assertEquals(LongHashing.INITIAL_CAPACITY, LongHashing.findCapacity(0));
+        assertEquals(LongHashing.INITIAL_CAPACITY, LongHashing.findCapacity(8));
+        assertEquals(32, LongHashing.findCapacity(9));
+        assertEquals(2048, LongHashing.findCapacity(1000));
+    }
+}
@@ -0,0 +1,118 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongIntMapTest {
+    private static void assertSameEntries(Map<Long, Integer> expected, LongIntMap map) {
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> {
+            assertTrue(map.containsKey(key));
+            assertEquals((int) value, map.getOrDefault(key, -1));
+        });
+
+        Map<Long, Integer> found = new HashMap<>();
+        map.forEach((key, value) -> assertNull(found.put(key, value)));
+        assertEquals(expected, found);
+    }
+
+    private static LongIntMap roundTrip(LongIntMap map) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(map);
+        }
+        try(ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (LongIntMap) input.readObject();
+        }
+    }
+
+    @Test
+    public void testPutGetOverwrite() {
+        LongIntMap map = new LongIntMap();
+        map.put(7, 1);
+        map.put(-7, 2);
+        map.put(7, 3);
+
+        assertEquals(3, map.getOrDefault(7, -1));
+        assertEquals(2, map.getOrDefault(-7, -1));
+        assertEquals(-1, map.getOrDefault(8, -1));
+        assertFalse(map.containsKey(8));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testCollisions() {
+        long[] keys = LongHashingTest.findCollidingKeys(LongHashing.INITIAL_CAPACITY - 1, 5);
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for(int i = 0; i < keys.length; i++) {
+            map.put(keys[i], i);
+            expected.put(keys[i], i);
+        }
+        map.put(keys[2], 100);
+        expected.put(keys[2], 100);
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void testEmptyKey() {
+        LongIntMap map = new LongIntMap();
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+        assertEquals(-1, map.getOrDefault(Long.MIN_VALUE, -1));
+
+        map.put(Long.MIN_VALUE, 0);
+        map.put(Long.MIN_VALUE, 5);
+        map.put(1, 6);
+        assertSameEntries(Map.of(Long.MIN_VALUE, 5, 1L, 6), map);
+
+        map.clear();
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public void testResize() {
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for(int i = 0; i < 10000; i++) {
+            long key = (long) i << 20;
+            map.put(key, i);
+            expected.put(key, i);
+        }
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void testSerialization() throws IOException, ClassNotFoundException {
+        assertSameEntries(Map.of(), roundTrip(new LongIntMap()));
+
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for(int i = -300; i < 300; i++) {
+            map.put(i * 1000003L, i);
+            expected.put(i * 1000003L, i);
+        }
+        map.put(Long.MIN_VALUE, 42);
+        expected.put(Long.MIN_VALUE, 42);
+
+        LongIntMap result = roundTrip(map);
+        assertSameEntries(expected, result);
+
+        // The read map must still grow normally
+        result.put(Long.MAX_VALUE, 1);
+        expected.put(Long.MAX_VALUE, 1);
+        assertSameEntries(expected, result);
+    }
+}
@@ -0,0 +1,150 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongObjectMapTest {
+    private static void assertSameEntries(Map<Long, String> expected, LongObjectMap<String> map) {
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+
+        Map<Long, String> found = new HashMap<>();
+        map.forEach((key, value) -> assertNull(found.put(key, value)));
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void testPutGetOverwrite() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(5, "a"));
+        assertNull(map.put(-5, "b"));
+        assertEquals("a", map.put(5, "c"));
+
+        assertEquals("c", map.get(5));
+        assertEquals("b", map.get(-5));
+        assertNull(map.get(6));
+        assertTrue(map.containsKey(-5));
+        assertFalse(map.containsKey(6));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testRemoveWithinCollisions() {
+        // Starting in the last slot makes the entries wrap around to the start of the table
+        long[] keys = LongHashingTest.findCollidingKeys(LongHashing.INITIAL_CAPACITY - 1, 4);
+        long[] nextKeys = LongHashingTest.findCollidingKeys(0, 2);
+        Map<Long, String> expected = new HashMap<>();
+        LongObjectMap<String> map = new LongObjectMap<>();
+        for(long key : keys) {
+            map.put(key, "first " + key);
+            expected.put(key, "first " + key);
+        }
+        for(long key : nextKeys) {
+            map.put(key, "next " + key);
+            expected.put(key, "next " + key);
+        }
+
+        // Removing entries in the middle of the cluster must leave the ones after it reachable
+        assertEquals("first " + keys[1], map.remove(keys[1]));
+        expected.remove(keys[1]);
+        assertNull(map.remove(keys[1]));
+        assertSameEntries(expected, map);
+
+        assertEquals("first " + keys[0], map.remove(keys[0]));
+        expected.remove(keys[0]);
+        assertSameEntries(expected, map);
+
+        assertNull(map.put(keys[1], "again"));
+        expected.put(keys[1], "again");
+        assertNull(map.put(keys[0], "again"));
+        expected.put(keys[0], "again");
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void testEmptyKey() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        assertNull(map.get(Long.MIN_VALUE));
+        assertFalse(map.containsKey(Long.MIN_VALUE));
+
+        assertNull(map.put(Long.MIN_VALUE, "min"));
+        map.put(0, "zero");
+        assertEquals("min", map.put(Long.MIN_VALUE, "min2"));
+        assertEquals("min2", map.get(Long.MIN_VALUE));
+        assertEquals(2, map.size());
+        assertSameEntries(Map.of(Long.MIN_VALUE, "min2", 0L, "zero"), map);
+
+        LongObjectMap<String> copy = map.copy();
+        assertEquals("min2", map.remove(Long.MIN_VALUE));
+        assertNull(map.remove(Long.MIN_VALUE));
+        assertEquals(1, map.size());
+        assertEquals("min2", copy.get(Long.MIN_VALUE));
+
+        assertTrue(copy.removeIf((key, value) -> key == Long.MIN_VALUE));
+        assertSameEntries(Map.of(0L, "zero"), copy);
+    }
+
+    @Test
+    public void testResize() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for(long i = -5000; i < 5000; i++) {
+            long key = i * 31;
+            map.put(key, Long.toString(i));
+            expected.put(key, Long.toString(i));
+        }
+        assertSameEntries(expected, map);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(31));
+        map.put(31, "after clear");
+        assertSameEntries(Map.of(31L, "after clear"), map);
+    }
+
+    @Test
+    public void testRemoveIf() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for(long key = 0; key < 1000; key++) {
+            map.put(key, Long.toString(key));
+            expected.put(key, Long.toString(key));
+        }
+
+        assertTrue(map.removeIf((key, value) -> key % 3 != 0));
+        expected.keySet().removeIf(key -> key % 3 != 0);
+        assertSameEntries(expected, map);
+        assertFalse(map.removeIf((key, value) -> key % 3 != 0));
+    }
+
+    @Test
+    public void testRandomOperations() {
+        // A small range of keys gives lots of collisions, removals and re-insertions
+        Random random = new Random(1234);
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        for(int i = 0; i < 20000; i++) {
+            long key = random.nextInt(64) - 32L;
+            if(random.nextInt(8) == 0) {
+                key = Long.MIN_VALUE;
+            }
+
+            if(random.nextBoolean()) {
+                String value = Integer.toString(i);
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }   else    {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+        }
+        assertSameEntries(expected, map);
+    }
+}
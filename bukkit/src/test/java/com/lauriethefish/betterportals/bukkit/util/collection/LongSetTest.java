@@ -0,0 +1,79 @@
+package com.lauriethefish.betterportals.bukkit.util.collection;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongSetTest {
+    private static void assertSameValues(Set<Long> expected, LongSet set) {
+        assertEquals(expected.size(), set.size());
+        expected.forEach(value -> assertTrue(set.contains(value)));
+
+        Set<Long> found = new HashSet<>();
+        set.forEach(value -> assertTrue(found.add(value)));
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void testAddContains() {
+        LongSet set = new LongSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(3));
+        assertTrue(set.add(-3));
+        assertFalse(set.add(3));
+
+        assertTrue(set.contains(-3));
+        assertFalse(set.contains(4));
+        assertSameValues(Set.of(3L, -3L), set);
+    }
+
+    @Test
+    public void testCollisions() {
+        long[] values = LongHashingTest.findCollidingKeys(LongHashing.INITIAL_CAPACITY - 1, 6);
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<>();
+        for(long value : values) {
+            assertTrue(set.add(value));
+            expected.add(value);
+        }
+        for(long value : values) {
+            assertFalse(set.add(value));
+        }
+        assertSameValues(expected, set);
+    }
+
+    @Test
+    public void testEmptyValue() {
+        LongSet set = new LongSet();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.add(Long.MIN_VALUE));
+        assertFalse(set.add(Long.MIN_VALUE));
+        set.add(0);
+        assertSameValues(Set.of(Long.MIN_VALUE, 0L), set);
+
+        set.clear();
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testResize() {
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<>();
+        for(long i = 0; i < 10000; i++) {
+            set.add(i * -7919);
+            expected.add(i * -7919);
+        }
+        assertSameValues(expected, set);
+
+        set.clear();
+        assertSameValues(Set.of(), set);
+        set.add(12);
+        assertSameValues(Set.of(12L), set);
+    }
+}
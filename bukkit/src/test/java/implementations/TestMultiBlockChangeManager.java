@@ -9,9 +9,6 @@ import lombok.Getter;
 import org.bukkit.entity.Player;
 import org.bukkit.util.Vector;
 
-import java.util.HashMap;
-import java.util.Map;
-
 public class TestMultiBlockChangeManager implements IMultiBlockChangeManager {
     @Getter private final Player player;
     @Getter private boolean wereChangesSent = false;
@@ -22,12 +19,12 @@ public class TestMultiBlockChangeManager implements IMultiBlockChangeManager {
     }
 
     @Override
-    public void addChangeOrigin(Vector position, IViewableBlockInfo newData) {
+    public void addChangeOrigin(IViewableBlockInfo newData) {
 
     }
 
     @Override
-    public void addChangeDestination(Vector position, IViewableBlockInfo newData) {
+    public void addChangeDestination(IViewableBlockInfo newData) {
 
     }
 
@@ -36,8 +33,24 @@ public class TestMultiBlockChangeManager implements IMultiBlockChangeManager {
 
     }
 
+    @Override
+    public void addChange(int x, int y, int z, WrappedBlockData newData) {
+
+    }
+
     @Override
     public void sendChanges() {
         wereChangesSent = true;
     }
+
+    @Override
+    public int sendChanges(int maxBlocks, SectionPriority sectionPriority) {
+        wereChangesSent = true;
+        return 0;
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return false;
+    }
 }